@@ -23,6 +23,8 @@ package ca.jimr.gae.profiler;
 
 import java.io.Closeable;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
 
 /**
@@ -48,6 +50,22 @@ import java.util.*;
  * Steps can be nested (e.g. starting a step while inside another step)
  * <p>
  * Profiling data is stored in a {@link ThreadLocal}.
+ * <p>
+ * If profiling was started with resource tracking enabled (see
+ * {@link #start(boolean)}), each step also records the CPU time used and the
+ * bytes allocated by the current thread while the step was running.
+ * <p>
+ * Steps can also be timed as metrics (whether the request is being profiled
+ * or not) by passing a {@link MiniProfilerTimer} to
+ * {@link #step(String, MiniProfilerTimer)}.
+ * <p>
+ * Steps can be given a category (e.g. {@link #DATASTORE} or one registered with
+ * {@link #category(String)}), and the total time and number of steps in each
+ * category are rolled up for the request (see {@link Root#getCategories()}).
+ * <p>
+ * Log records can be captured while a request is profiled (see
+ * {@link MiniProfilerLogHandler}). Each record is attached to the step that was
+ * running when it was logged.
  */
 public class MiniProfiler
 {
@@ -76,8 +94,46 @@ public class MiniProfiler
     private long duration;
     /** How far from the start of profiling did this step start (in nanoseconds) */
     private long offset;
+    /** How much CPU time the step used (in nanoseconds), or -1 if not tracked */
+    private long cpuTime = -1;
+    /** How many bytes the step allocated, or -1 if not tracked */
+    private long allocatedBytes = -1;
+    /**
+     * How much longer (or shorter) the step took than its baseline (e.g. 0.3
+     * for 30% longer), or null if there is no baseline.
+     */
+    private Double deviation;
+    /**
+     * Whether the step was still running when the profile was taken (only
+     * true for snapshots of a profile that is still in progress).
+     */
+    private boolean running;
+    /**
+     * Whether the step was started with {@link MiniProfiler#asyncStep(String)}
+     * (so it may overlap its parent's other steps).
+     */
+    private boolean async;
+    /** The thread CPU time when the step started (nanoseconds) */
+    private transient long cpuStart;
+    /** The bytes allocated by the thread when the step started */
+    private transient long allocatedStart;
     /** The child steps of this step */
     private List<Profile> children = new ArrayList<Profile>();
+    /** Extra details about the step (e.g. the number of rows a query fetched) */
+    private Map<String, Object> details;
+    /** The log records captured while this was the current step */
+    private List<Log> logs;
+    /** The name of the step's category (or null if it doesn't have one) */
+    private String category;
+    /** The id of the step's category (only used while the step is running) */
+    private transient int categoryId = NO_CATEGORY;
+    /** The step this was started in (only used by {@link Root#snapshot()}) */
+    private transient Profile parent;
+    /**
+     * Whether the step has finished (written last when it finishes, so that
+     * {@link Root#snapshot()} sees its duration).
+     */
+    private transient volatile boolean finished;
 
     public Profile(int id, String name)
     {
@@ -191,6 +247,107 @@ public class MiniProfiler
       return offset;
     }
 
+    /**
+     * Get how much CPU time the step used (nanoseconds).
+     * 
+     * @return The CPU time, or -1 if resource tracking was not enabled (or is
+     *         not supported by the JVM).
+     */
+    public long getCpuTime()
+    {
+      return cpuTime;
+    }
+
+    /**
+     * Get how many bytes were allocated by the thread while the step was
+     * running.
+     * 
+     * @return The allocated bytes, or -1 if resource tracking was not enabled
+     *         (or is not supported by the JVM).
+     */
+    public long getAllocatedBytes()
+    {
+      return allocatedBytes;
+    }
+
+    /**
+     * Get how much longer (or shorter) the step took than the baseline for
+     * steps with the same name and URL pattern (see
+     * {@link MiniProfilerBaselines}).
+     * 
+     * @return The deviation (e.g. 0.3 for 30% longer, -0.1 for 10% shorter),
+     *         or null if there is no baseline.
+     */
+    public Double getDeviation()
+    {
+      return deviation;
+    }
+
+    /**
+     * Set how much longer (or shorter) the step took than its baseline.
+     * 
+     * @param deviation
+     *          The deviation.
+     */
+    public void setDeviation(Double deviation)
+    {
+      this.deviation = deviation;
+    }
+
+    /**
+     * Get whether the step was still running when the profile was taken. This
+     * is the case for snapshots of a profile that is still in progress (see
+     * {@link Root#snapshot()}) and for async steps that hadn't finished when
+     * the request did. The duration of a running step is how long it had been
+     * running for.
+     * 
+     * @return Whether the step was running.
+     */
+    public boolean isRunning()
+    {
+      return running;
+    }
+
+    /**
+     * Get whether the step was started with
+     * {@link MiniProfiler#asyncStep(String)}. Async steps may overlap the other
+     * steps of their parent, so they aren't subtracted from its self time.
+     * 
+     * @return Whether the step is async.
+     */
+    public boolean isAsync()
+    {
+      return async;
+    }
+
+    /**
+     * Get the extra details that have been recorded for the step (see
+     * {@link Step#setDetail(String, Object)}).
+     * 
+     * @return The details, or null if there are none.
+     */
+    public Map<String, Object> getDetails()
+    {
+      return details;
+    }
+
+    /**
+     * Record an extra detail about the step.
+     * 
+     * @param key
+     *          The name of the detail.
+     * @param value
+     *          The value (this should be serializable).
+     */
+    public void setDetail(String key, Object value)
+    {
+      if (details == null)
+      {
+        details = new LinkedHashMap<String, Object>();
+      }
+      details.put(key, value);
+    }
+
     /**
      * Calculate the duration of this step, minus the duration of all the child
      * steps.
@@ -204,7 +361,10 @@ public class MiniProfiler
       long result = duration;
       for (Profile p : children)
       {
-        result -= p.duration;
+        if (!p.async)
+        {
+          result -= p.duration;
+        }
       }
       return result;
     }
@@ -229,14 +389,145 @@ public class MiniProfiler
     {
       children.add(child);
     }
+
+    /**
+     * Get the name of the step's category (see
+     * {@link MiniProfiler#step(String, int)}).
+     * 
+     * @return The category, or null if the step doesn't have one.
+     */
+    public String getCategory()
+    {
+      return category;
+    }
+
+    /**
+     * Set the category of the step.
+     * 
+     * @param categoryId
+     *          The id of the category (see {@link MiniProfiler#category(String)}
+     *          ), or {@link MiniProfiler#NO_CATEGORY}.
+     */
+    public void setCategory(int categoryId)
+    {
+      this.categoryId = categoryId;
+      this.category = categoryId == NO_CATEGORY ? null : getCategoryName(categoryId);
+    }
+
+    /**
+     * Get the log records captured while this was the current step (in the
+     * order they were logged).
+     * 
+     * @return The log records, or null if there are none.
+     */
+    public List<Log> getLogs()
+    {
+      return logs;
+    }
+
+    /**
+     * Add a log record to this step.
+     * 
+     * @param log
+     *          The log record to add.
+     */
+    public void addLog(Log log)
+    {
+      if (logs == null)
+      {
+        logs = new ArrayList<Log>();
+      }
+      logs.add(log);
+    }
+  }
+
+  /**
+   * A log record captured while a request was being profiled.
+   */
+  protected static class Log implements Serializable
+  {
+    private static final long serialVersionUID = 2745166215187006411L;
+
+    /** The id of the step that was running when the record was logged */
+    private int stepId;
+    /** How long after the start of the request the record was logged */
+    private long offset;
+    /** The name of the level (e.g. WARNING) */
+    private String level;
+    /** The name of the logger */
+    private String logger;
+    /** The formatted message */
+    private String message;
+
+    public Log(int stepId, long offset, String level, String logger, String message)
+    {
+      this.stepId = stepId;
+      this.offset = offset;
+      this.level = level;
+      this.logger = logger;
+      this.message = message;
+    }
+
+    /**
+     * Get the id of the step that was running when the record was logged.
+     * 
+     * @return The step id.
+     */
+    public int getStepId()
+    {
+      return stepId;
+    }
+
+    /**
+     * Get how long after the start of the request the record was logged.
+     * 
+     * @return The offset (nanoseconds).
+     */
+    public long getOffset()
+    {
+      return offset;
+    }
+
+    /**
+     * Get the name of the level of the record (e.g. {@code WARNING}).
+     * 
+     * @return The level.
+     */
+    public String getLevel()
+    {
+      return level;
+    }
+
+    /**
+     * Get the name of the logger the record was logged to.
+     * 
+     * @return The logger name (may be null).
+     */
+    public String getLogger()
+    {
+      return logger;
+    }
+
+    /**
+     * Get the formatted message of the record.
+     * 
+     * @return The message.
+     */
+    public String getMessage()
+    {
+      return message;
+    }
   }
 
   /**
    * The root of the profiling data.
    * <p>
-   * This is what's stored in the {@code ThreadLocal}.
+   * This is what's stored in the {@code ThreadLocal}. Steps are only ever
+   * added and finished by the thread being profiled, but a copy of the
+   * profile so far can be taken from another thread (see {@link #snapshot()})
+   * without making the thread being profiled wait.
    */
-  private static class Root implements Serializable
+  protected static class Root implements Serializable
   {
     private static final long serialVersionUID = -7244418353632893875L;
 
@@ -248,14 +539,61 @@ public class MiniProfiler
      * The stack of steps (the top of the stack will always be the current step)
      */
     private Stack<Profile> stack = new Stack<Profile>();
+    /** Whether CPU time and allocated bytes should be recorded for each step */
+    private boolean trackResources;
+    /** The async steps that haven't finished yet */
+    private Set<Profile> openAsync = Collections.newSetFromMap(new IdentityHashMap<Profile, Boolean>());
+    /** Values that are reused for the rest of the request (created when needed) */
+    private transient Map<Object, Object> cache;
+    /** The id the profile is stored under (if it is being stored) */
+    private String requestId;
+    /**
+     * The captured log records (a ring buffer, created when the first record
+     * is captured)
+     */
+    private Log[] logs;
+    /** The step that was running when each log record was captured */
+    private Profile[] logSteps;
+    /** The number of log records captured (including ones that were dropped) */
+    private int logCount;
+    /**
+     * The total time of the steps in each category, indexed by category id
+     * (created when the first step with a category finishes)
+     */
+    private long[] categoryTimes;
+    /** The number of steps in each category, indexed by category id */
+    private int[] categoryCounts;
+    /**
+     * The number of steps in each category that are on the stack (so that the
+     * time of steps nested in a step of the same category isn't counted twice)
+     */
+    private int[] categoryDepths;
+    /**
+     * Every step that has been started, in the order they were started. Steps
+     * are only added (by the thread being profiled), and
+     * {@link #stepCount} is written after each one so that
+     * {@link #snapshot()} can read them without locking.
+     */
+    private volatile Profile[] steps = new Profile[16];
+    /** The number of steps in {@link #steps}. */
+    private volatile int stepCount;
 
     /**
      * Create the root of the profile - records the start time.
+     * 
+     * @param trackResources
+     *          Whether to record CPU time and allocated bytes for each step.
      */
-    public Root()
+    public Root(boolean trackResources)
     {
+      this.trackResources = trackResources;
       root.setStart(System.nanoTime());
+      if (trackResources)
+      {
+        ResourceUsage.begin(root);
+      }
       stack.push(root);
+      addStep(root);
     }
 
     /**
@@ -274,14 +612,42 @@ public class MiniProfiler
      * @param d
      *          The profile step to add
      */
-    public void pushData(Profile d)
+    public synchronized void pushData(Profile d)
     {
       long now = System.nanoTime();
       d.setDepth(stack.size());
       d.setStart(now);
       d.setOffset(now - root.getStart());
-      stack.peek().addChild(d);
+      if (d.categoryId != NO_CATEGORY)
+      {
+        categoryArrays();
+        categoryDepths[d.categoryId]++;
+      }
+      if (trackResources)
+      {
+        ResourceUsage.begin(d);
+      }
+      d.parent = stack.peek();
+      d.parent.addChild(d);
       stack.push(d);
+      addStep(d);
+    }
+
+    /**
+     * Add a step that has just been started to {@link #steps}.
+     */
+    private void addStep(Profile d)
+    {
+      int n = stepCount;
+      Profile[] current = steps;
+      if (n == current.length)
+      {
+        // The new array has all of the existing steps before it is published
+        current = Arrays.copyOf(current, n * 2);
+        steps = current;
+      }
+      current[n] = d;
+      stepCount = n + 1;
     }
 
     /**
@@ -289,13 +655,387 @@ public class MiniProfiler
      * 
      * @return The top profile step.
      */
-    public Profile popData()
+    public synchronized Profile popData()
     {
       long now = System.nanoTime();
       Profile d = stack.pop();
       d.setDuration(now - d.getStart());
+      if (trackResources)
+      {
+        ResourceUsage.end(d);
+      }
+      if (d.categoryId != NO_CATEGORY)
+      {
+        categoryDepths[d.categoryId]--;
+        addToCategory(d);
+      }
+      d.finished = true;
       return d;
     }
+
+    /**
+     * Start an async step. The step is added to the current step, but isn't
+     * put on the stack (so other steps can start and finish while it is
+     * running).
+     * 
+     * @param d
+     *          The profile step to start.
+     */
+    public synchronized void startAsync(Profile d)
+    {
+      long now = System.nanoTime();
+      d.setDepth(stack.size());
+      d.setStart(now);
+      d.setOffset(now - root.getStart());
+      d.async = true;
+      d.parent = stack.peek();
+      d.parent.addChild(d);
+      openAsync.add(d);
+      addStep(d);
+    }
+
+    /**
+     * Finish an async step. This can be called from any thread.
+     * 
+     * @param d
+     *          The profile step to finish.
+     */
+    public synchronized void endAsync(Profile d)
+    {
+      if (openAsync.remove(d))
+      {
+        d.setDuration(System.nanoTime() - d.getStart());
+        if (d.categoryId != NO_CATEGORY)
+        {
+          categoryArrays();
+          addToCategory(d);
+        }
+        d.finished = true;
+      }
+    }
+
+    /**
+     * Finish the async steps that are still open when the profiler is stopped
+     * (e.g. a call whose result was never retrieved). Their duration is how
+     * long they had been running for, and they are marked as running.
+     */
+    public synchronized void closeAsync()
+    {
+      long now = System.nanoTime();
+      for (Profile d : openAsync)
+      {
+        d.setDuration(now - d.getStart());
+        d.running = true;
+        if (d.categoryId != NO_CATEGORY)
+        {
+          categoryArrays();
+          addToCategory(d);
+        }
+        d.finished = true;
+      }
+      openAsync.clear();
+    }
+
+    /**
+     * Get a map of values that are reused for the rest of the request (e.g. to
+     * avoid building the same step name more than once). This should only be
+     * used by the thread being profiled.
+     * 
+     * @return The map.
+     */
+    public Map<Object, Object> getCache()
+    {
+      if (cache == null)
+      {
+        cache = new HashMap<Object, Object>();
+      }
+      return cache;
+    }
+
+    /**
+     * Get the id the profile is stored under.
+     * 
+     * @return The request id, or {@code null} if it isn't known.
+     */
+    public String getRequestId()
+    {
+      return requestId;
+    }
+
+    /**
+     * Set the id the profile is stored under.
+     * 
+     * @param requestId
+     *          The request id.
+     */
+    public void setRequestId(String requestId)
+    {
+      this.requestId = requestId;
+    }
+
+    /**
+     * Get the total time and number of steps in each category, for the steps
+     * that have finished. The time of a step that is nested in a step of the
+     * same category is only counted once, but async steps may overlap other
+     * steps (so the total time of a category can be more than the time of the
+     * request).
+     * 
+     * @return The categories (each with its {@code name}, {@code duration} in
+     *         nanoseconds and {@code count}), longest first, or {@code null} if
+     *         no steps had a category.
+     */
+    public synchronized List<Map<String, Object>> getCategories()
+    {
+      if (categoryCounts == null)
+      {
+        return null;
+      }
+      List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+      for (int i = 0; i < categoryCounts.length; i++)
+      {
+        if (categoryCounts[i] > 0)
+        {
+          Map<String, Object> category = new HashMap<String, Object>();
+          category.put("name", getCategoryName(i));
+          category.put("duration", categoryTimes[i]);
+          category.put("count", categoryCounts[i]);
+          result.add(category);
+        }
+      }
+      Collections.sort(result, new Comparator<Map<String, Object>>()
+      {
+        @Override
+        public int compare(Map<String, Object> a, Map<String, Object> b)
+        {
+          return ((Long) b.get("duration")).compareTo((Long) a.get("duration"));
+        }
+      });
+      return result;
+    }
+
+    private void categoryArrays()
+    {
+      if (categoryCounts == null)
+      {
+        categoryTimes = new long[MAX_CATEGORIES];
+        categoryCounts = new int[MAX_CATEGORIES];
+        categoryDepths = new int[MAX_CATEGORIES];
+      }
+    }
+
+    private void addToCategory(Profile d)
+    {
+      categoryCounts[d.categoryId]++;
+      if (categoryDepths[d.categoryId] == 0)
+      {
+        categoryTimes[d.categoryId] += d.duration;
+      }
+    }
+
+    /**
+     * Capture a log record against the current step. Only the most recent
+     * records are kept; once the buffer is full, the oldest record is dropped.
+     * 
+     * @param level
+     *          The name of the level of the record.
+     * @param logger
+     *          The name of the logger.
+     * @param message
+     *          The formatted message.
+     * @param maxLogs
+     *          The maximum number of records to keep.
+     */
+    public synchronized void addLog(String level, String logger, String message, int maxLogs)
+    {
+      if (maxLogs <= 0 || stack.isEmpty())
+      {
+        return;
+      }
+      if (logs == null)
+      {
+        logs = new Log[maxLogs];
+        logSteps = new Profile[maxLogs];
+      }
+      Profile step = stack.peek();
+      int i = logCount++ % logs.length;
+      logs[i] = new Log(step.id, System.nanoTime() - root.getStart(), level, logger, message);
+      logSteps[i] = step;
+    }
+
+    /**
+     * Add the captured log records to the steps they were captured against.
+     * If any records were dropped, the number dropped is recorded as the
+     * {@code droppedLogs} detail of the root step.
+     */
+    public synchronized void attachLogs()
+    {
+      if (logs == null)
+      {
+        return;
+      }
+      int kept = Math.min(logCount, logs.length);
+      for (int n = logCount - kept; n < logCount; n++)
+      {
+        int i = n % logs.length;
+        logSteps[i].addLog(logs[i]);
+      }
+      if (logCount > kept)
+      {
+        root.setDetail("droppedLogs", logCount - kept);
+      }
+      logs = null;
+      logSteps = null;
+    }
+
+    /**
+     * Take a copy of the profile so far. This can be called from any thread,
+     * and the steps that haven't finished yet are marked as running.
+     * <p>
+     * This doesn't lock the profile, so the thread being profiled carries on
+     * starting and finishing steps while the copy is made. The copy is built
+     * from the steps that had been started when it was taken (see
+     * {@link #steps}), and a step that finishes while it is being made may
+     * still be marked as running.
+     * 
+     * @return The copy of the profile.
+     */
+    public Profile snapshot()
+    {
+      // Read the count first: the array is at least as new as the count
+      int n = stepCount;
+      Profile[] started = steps;
+      long now = System.nanoTime();
+      Map<Profile, Profile> copies = new IdentityHashMap<Profile, Profile>(n * 2);
+      Profile result = null;
+      for (int i = 0; i < n; i++)
+      {
+        Profile d = started[i];
+        Profile copy = copy(d, now);
+        copies.put(d, copy);
+        if (d.parent == null)
+        {
+          result = copy;
+        } else
+        {
+          copies.get(d.parent).children.add(copy);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Copy a single step (without its children).
+     */
+    private static Profile copy(Profile d, long now)
+    {
+      Profile result = new Profile(d.id, d.name);
+      result.depth = d.depth;
+      result.start = d.start;
+      result.offset = d.offset;
+      result.deviation = d.deviation;
+      result.async = d.async;
+      result.category = d.category;
+      if (d.finished)
+      {
+        result.running = d.running;
+        result.duration = d.duration;
+        result.cpuTime = d.cpuTime;
+        result.allocatedBytes = d.allocatedBytes;
+      } else
+      {
+        result.running = true;
+        result.duration = now - d.start;
+      }
+      Map<String, Object> details = d.details;
+      if (details != null)
+      {
+        try
+        {
+          result.details = new LinkedHashMap<String, Object>(details);
+        } catch (ConcurrentModificationException e)
+        {
+          // The details are being added to, leave them out
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Records thread CPU time and allocated bytes using the JVM's
+   * {@link ThreadMXBean}.
+   * <p>
+   * This is in its own class so that the management classes are only loaded
+   * when resource tracking is actually used (they may not be available in
+   * every runtime).
+   */
+  private static class ResourceUsage
+  {
+    private static final ThreadMXBean THREAD_MX_BEAN;
+    private static final boolean CPU_TIME_SUPPORTED;
+    private static final boolean ALLOCATED_BYTES_SUPPORTED;
+
+    static
+    {
+      ThreadMXBean bean = null;
+      boolean cpuTime = false;
+      boolean allocatedBytes = false;
+      try
+      {
+        bean = ManagementFactory.getThreadMXBean();
+        cpuTime = bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled();
+        allocatedBytes = bean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+      } catch (Throwable t)
+      {
+        // Not available in this runtime - nothing will be recorded.
+      }
+      THREAD_MX_BEAN = bean;
+      CPU_TIME_SUPPORTED = cpuTime;
+      ALLOCATED_BYTES_SUPPORTED = allocatedBytes;
+    }
+
+    /**
+     * Record the starting resource usage for a step.
+     * 
+     * @param d
+     *          The step that is starting.
+     */
+    public static void begin(Profile d)
+    {
+      if (CPU_TIME_SUPPORTED)
+      {
+        d.cpuStart = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+      }
+      if (ALLOCATED_BYTES_SUPPORTED)
+      {
+        d.allocatedStart = allocatedBytes();
+      }
+    }
+
+    /**
+     * Record the resource usage of a step that has finished.
+     * 
+     * @param d
+     *          The step that has finished.
+     */
+    public static void end(Profile d)
+    {
+      if (CPU_TIME_SUPPORTED)
+      {
+        d.cpuTime = THREAD_MX_BEAN.getCurrentThreadCpuTime() - d.cpuStart;
+      }
+      if (ALLOCATED_BYTES_SUPPORTED)
+      {
+        d.allocatedBytes = allocatedBytes() - d.allocatedStart;
+      }
+    }
+
+    private static long allocatedBytes()
+    {
+      return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
   }
 
   /**
@@ -307,6 +1047,14 @@ public class MiniProfiler
   public static class Step implements Closeable
   {
     private Root root;
+    /** The step data (null if the profiler isn't running) */
+    private Profile data;
+    /** The timer to record the step's duration in (may be null) */
+    private MiniProfilerTimer timer;
+    /** When the step started (only used if there is a timer but no root) */
+    private long start;
+    /** Whether this is an async step */
+    private boolean async;
 
     /**
      * Create a step object.
@@ -317,11 +1065,71 @@ public class MiniProfiler
      *          The current step data.
      */
     public Step(Root root, Profile data)
+    {
+      this(root, data, null);
+    }
+
+    /**
+     * Create a step object.
+     * 
+     * @param root
+     *          The profile root.
+     * @param data
+     *          The current step data.
+     * @param timer
+     *          The timer to record the step's duration in (may be null).
+     */
+    public Step(Root root, Profile data, MiniProfilerTimer timer)
+    {
+      this(root, data, timer, false);
+    }
+
+    /**
+     * Create a step object.
+     * 
+     * @param root
+     *          The profile root.
+     * @param data
+     *          The current step data.
+     * @param timer
+     *          The timer to record the step's duration in (may be null).
+     * @param async
+     *          Whether the step is async (see
+     *          {@link MiniProfiler#asyncStep(String)}).
+     */
+    public Step(Root root, Profile data, MiniProfilerTimer timer, boolean async)
     {
       this.root = root;
-      if (root != null)
+      this.data = data;
+      this.timer = timer;
+      this.async = async;
+      if (root != null && async)
+      {
+        root.startAsync(data);
+      } else if (root != null)
       {
         root.pushData(data);
+      } else if (timer != null)
+      {
+        start = System.nanoTime();
+      }
+    }
+
+    /**
+     * Record an extra detail about the step (e.g. the number of rows a query
+     * fetched). This does nothing if the profiler isn't running, and can also
+     * be done after the step has been closed.
+     * 
+     * @param key
+     *          The name of the detail.
+     * @param value
+     *          The value (this should be serializable).
+     */
+    public void setDetail(String key, Object value)
+    {
+      if (data != null)
+      {
+        data.setDetail(key, value);
       }
     }
 
@@ -331,22 +1139,126 @@ public class MiniProfiler
     @Override
     public void close()
     {
-      if (root != null)
+      if (root != null && async)
+      {
+        root.endAsync(data);
+      } else if (root != null)
       {
-        root.popData();
+        Profile d = root.popData();
+        if (timer != null)
+        {
+          timer.record(d.getDuration());
+        }
+      } else if (timer != null)
+      {
+        timer.record(System.nanoTime() - start);
       }
     }
   }
 
+  /** The name of the step that short steps are folded into. */
+  public static final String TRIVIAL_STEPS = "Trivial steps";
+  /** The name of the step that steps below the maximum depth are folded into. */
+  public static final String DEEPER_STEPS = "Deeper steps";
+
   /** Thread local that contains the profiling data for the current thread */
   private static final ThreadLocal<Root> PROFILER_STEPS = new ThreadLocal<Root>();
 
+  /** The maximum number of step categories. */
+  public static final int MAX_CATEGORIES = 64;
+  /** The category id of steps that don't have a category. */
+  public static final int NO_CATEGORY = -1;
+  /**
+   * The names of the categories, indexed by id. The array is never modified;
+   * registering a category publishes a longer copy, so it can be read without
+   * locking.
+   */
+  private static volatile String[] categoryNames = new String[0];
+  /** The ids of the categories, keyed by name (guarded by itself). */
+  private static final Map<String, Integer> CATEGORY_IDS = new HashMap<String, Integer>();
+
+  /** The category of datastore steps. */
+  public static final int DATASTORE = category("datastore");
+  /** The category of SQL steps (see {@link MiniProfilerJdbc}). */
+  public static final int SQL = category("sql");
+  /** The category of outbound HTTP steps (see {@link MiniProfilerHttp}). */
+  public static final int HTTP = category("http");
+  /** The category of memcache steps (see {@link MiniProfilerMemcache}). */
+  public static final int CACHE = category("cache");
+  /** The category of task queue steps (see {@link MiniProfilerTasks}). */
+  public static final int TASKS = category("tasks");
+  /** The category of rendering steps (e.g. templates). */
+  public static final int RENDER = category("render");
+
+  /**
+   * Get the id of a step category, registering it if it hasn't been seen
+   * before. Ids are only meaningful within an instance, so this should be done
+   * once (e.g. in a static field) rather than for each step.
+   * 
+   * @param name
+   *          The name of the category.
+   * @return The id of the category.
+   * @throws IllegalStateException
+   *           If there are already {@link #MAX_CATEGORIES} categories.
+   */
+  public static int category(String name)
+  {
+    synchronized (CATEGORY_IDS)
+    {
+      Integer id = CATEGORY_IDS.get(name);
+      if (id == null)
+      {
+        if (CATEGORY_IDS.size() >= MAX_CATEGORIES)
+        {
+          throw new IllegalStateException("Too many step categories (the maximum is " + MAX_CATEGORIES + ")");
+        }
+        id = CATEGORY_IDS.size();
+        String[] names = Arrays.copyOf(categoryNames, id + 1);
+        names[id] = name;
+        CATEGORY_IDS.put(name, id);
+        categoryNames = names;
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Get the name of a step category.
+   * 
+   * @param id
+   *          The id of the category.
+   * @return The name, or {@code null} if there is no category with the id.
+   */
+  public static String getCategoryName(int id)
+  {
+    String[] names = categoryNames;
+    return id >= 0 && id < names.length ? names[id] : null;
+  }
+
   /**
    * Start the profiler.
+   * 
+   * @return The root of the profiling data.
+   */
+  protected static Root start()
+  {
+    return start(false);
+  }
+
+  /**
+   * Start the profiler.
+   * 
+   * @param trackResources
+   *          Whether to record the CPU time and allocated bytes of each step
+   *          (in addition to the elapsed time). This makes each step slightly
+   *          more expensive.
+   * @return The root of the profiling data.
    */
-  protected static void start()
+  protected static Root start(boolean trackResources)
   {
-    PROFILER_STEPS.set(new Root());
+    Root root = new Root(trackResources);
+    PROFILER_STEPS.set(root);
+    return root;
   }
 
   /**
@@ -361,7 +1273,192 @@ public class MiniProfiler
   {
     Root result = PROFILER_STEPS.get();
     PROFILER_STEPS.remove();
-    return result != null ? result.popData() : null;
+    if (result == null)
+    {
+      return null;
+    }
+    Profile profile = result.popData();
+    result.closeAsync();
+    result.attachLogs();
+    return profile;
+  }
+
+  /**
+   * Stop the profiler, and prune the steps that aren't worth keeping.
+   * <p>
+   * Steps that took less than the minimum duration are folded into a single
+   * {@value #TRIVIAL_STEPS} step under their parent (if there are at least two
+   * of them), and steps deeper than the maximum depth are folded into a single
+   * {@value #DEEPER_STEPS} step. The folded step's duration is the total
+   * duration of the steps it replaces (not including async steps), so the
+   * durations and self times of the remaining steps don't change, and its
+   * {@code steps} detail is how many steps it replaces. The names don't
+   * include the count, so that folded steps still line up across requests
+   * (e.g. for baselines). Async steps are never folded for being short. The
+   * log records of the folded steps are moved to the folded step. Each step is
+   * visited once.
+   * 
+   * @param minDuration
+   *          The minimum duration of a step (nanoseconds), or 0 to keep all
+   *          steps.
+   * @param maxDepth
+   *          The maximum depth of a step (the root is 0), or 0 for no limit.
+   * @return The profiling data.
+   */
+  protected static Profile stop(long minDuration, int maxDepth)
+  {
+    Profile result = stop();
+    if (result != null && (minDuration > 0 || maxDepth > 0))
+    {
+      prune(result, 0, minDuration, maxDepth > 0 ? maxDepth : Integer.MAX_VALUE);
+    }
+    return result;
+  }
+
+  /**
+   * Prune the children of a step (and their descendants).
+   */
+  private static void prune(Profile parent, int depth, long minDuration, int maxDepth)
+  {
+    List<Profile> children = parent.children;
+    if (children.isEmpty())
+    {
+      return;
+    }
+    if (depth >= maxDepth)
+    {
+      parent.children = new ArrayList<Profile>();
+      parent.children.add(fold(parent, children, DEEPER_STEPS));
+      return;
+    }
+
+    List<Profile> trivial = null;
+    for (Profile child : children)
+    {
+      if (!child.async && child.duration < minDuration)
+      {
+        if (trivial == null)
+        {
+          trivial = new ArrayList<Profile>();
+        }
+        trivial.add(child);
+      } else
+      {
+        prune(child, depth + 1, minDuration, maxDepth);
+      }
+    }
+    if (trivial != null && trivial.size() > 1)
+    {
+      List<Profile> kept = new ArrayList<Profile>(children.size() - trivial.size() + 1);
+      Profile folded = null;
+      int i = 0;
+      for (Profile child : children)
+      {
+        if (i < trivial.size() && child == trivial.get(i))
+        {
+          // The folded step goes where the first trivial step was
+          if (folded == null)
+          {
+            folded = fold(parent, trivial, TRIVIAL_STEPS);
+            kept.add(folded);
+          }
+          i++;
+        } else
+        {
+          kept.add(child);
+        }
+      }
+      parent.children = kept;
+    } else if (trivial != null)
+    {
+      prune(trivial.get(0), depth + 1, minDuration, maxDepth);
+    }
+  }
+
+  /**
+   * Build the step that replaces some folded steps.
+   */
+  private static Profile fold(Profile parent, List<Profile> steps, String name)
+  {
+    Profile first = steps.get(0);
+    Profile result = new Profile(first.id, name);
+    result.setDepth(parent.depth + 1);
+    result.setStart(first.start);
+    result.setOffset(first.offset);
+    long duration = 0;
+    for (Profile step : steps)
+    {
+      if (!step.async)
+      {
+        duration += step.duration;
+      }
+    }
+    result.setDuration(duration);
+
+    // Count the steps (and their descendants), and keep their log records
+    int count = 0;
+    List<Profile> stack = new ArrayList<Profile>(steps);
+    while (!stack.isEmpty())
+    {
+      Profile step = stack.remove(stack.size() - 1);
+      count++;
+      stack.addAll(step.children);
+      if (step.logs != null)
+      {
+        for (Log log : step.logs)
+        {
+          result.addLog(log);
+        }
+      }
+    }
+    result.setDetail("steps", count);
+    if (result.logs != null)
+    {
+      Collections.sort(result.logs, new Comparator<Log>()
+      {
+        @Override
+        public int compare(Log a, Log b)
+        {
+          return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Get a map of values that are reused for the rest of the current request
+   * (see {@link Root#getCache()}).
+   * 
+   * @return The map, or {@code null} if the profiler isn't running.
+   */
+  protected static Map<Object, Object> getRequestCache()
+  {
+    Root root = PROFILER_STEPS.get();
+    return root != null ? root.getCache() : null;
+  }
+
+  /**
+   * Get the root of the profiling data for the current thread.
+   * 
+   * @return The root, or {@code null} if the profiler isn't running.
+   */
+  protected static Root getRoot()
+  {
+    return PROFILER_STEPS.get();
+  }
+
+  /**
+   * Get the id the current request's profile is stored under (see
+   * {@link Root#getRequestId()}).
+   * 
+   * @return The request id, or {@code null} if the profiler isn't running or
+   *         the id isn't known.
+   */
+  protected static String getRequestId()
+  {
+    Root root = PROFILER_STEPS.get();
+    return root != null ? root.getRequestId() : null;
   }
 
   /**
@@ -373,15 +1470,110 @@ public class MiniProfiler
    *         called to finish the step.
    */
   public static Step step(String stepName)
+  {
+    return step(stepName, null);
+  }
+
+  /**
+   * Start a profiling step that is also timed as a metric (even if the request
+   * isn't being profiled).
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @param timer
+   *          The timer to record the step's duration in (see
+   *          {@link MiniProfilerMetrics#stepTimer(String)}). This should be
+   *          created once and reused.
+   * @return A {@code Step} object whose {@link Step#close()} method should be
+   *         called to finish the step.
+   */
+  public static Step step(String stepName, MiniProfilerTimer timer)
+  {
+    return step(stepName, timer, NO_CATEGORY);
+  }
+
+  /**
+   * Start a profiling step with a category. The step's time is added to the
+   * category's total for the request (see {@link Root#getCategories()}).
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @param category
+   *          The id of the category (see {@link #category(String)}).
+   * @return A {@code Step} object whose {@link Step#close()} method should be
+   *         called to finish the step.
+   */
+  public static Step step(String stepName, int category)
+  {
+    return step(stepName, null, category);
+  }
+
+  /**
+   * Start a profiling step with a category that is also timed as a metric.
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @param timer
+   *          The timer to record the step's duration in (may be null).
+   * @param category
+   *          The id of the category (see {@link #category(String)}), or
+   *          {@link #NO_CATEGORY}.
+   * @return A {@code Step} object whose {@link Step#close()} method should be
+   *         called to finish the step.
+   */
+  public static Step step(String stepName, MiniProfilerTimer timer, int category)
+  {
+    Root root = PROFILER_STEPS.get();
+    if (root != null)
+    {
+      Profile data = new Profile(root.nextId(), stepName);
+      data.setCategory(category);
+      return new Step(root, data, timer);
+    } else
+    {
+      return new Step(null, null, timer);
+    }
+  }
+
+  /**
+   * Start an async profiling step - one that can overlap the other steps of the
+   * current step (e.g. an RPC that runs in the background while other work is
+   * done). Unlike a normal step, the step can be closed at any time, and from
+   * any thread.
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @return A {@code Step} object whose {@link Step#close()} method should be
+   *         called when the work has finished.
+   */
+  public static Step asyncStep(String stepName)
+  {
+    return asyncStep(stepName, NO_CATEGORY);
+  }
+
+  /**
+   * Start an async profiling step with a category (see
+   * {@link #asyncStep(String)} and {@link #step(String, int)}).
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @param category
+   *          The id of the category (see {@link #category(String)}), or
+   *          {@link #NO_CATEGORY}.
+   * @return A {@code Step} object whose {@link Step#close()} method should be
+   *         called when the work has finished.
+   */
+  public static Step asyncStep(String stepName, int category)
   {
     Root root = PROFILER_STEPS.get();
     if (root != null)
     {
       Profile data = new Profile(root.nextId(), stepName);
-      return new Step(root, data);
+      data.setCategory(category);
+      return new Step(root, data, null, true);
     } else
     {
-      return new Step(null, null);
+      return new Step(null, null, null, true);
     }
   }
 }
@@ -0,0 +1,599 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * Stores profiling data in the datastore so that it can be looked at after it
+ * has expired from memcache.
+ * <p>
+ * Profiles are not written immediately. They are queued up in memory and
+ * written in batches (using the asynchronous datastore API) once enough of them
+ * have been queued or the oldest one has been waiting long enough. Profiles are
+ * only serialized when their batch is written. Frontend instances can't run
+ * background threads, so whether a batch is due is checked by
+ * {@link #flushIfDue()} (which the {@link MiniProfilerFilter} calls at the end
+ * of every request), and an instance that stops getting requests holds on to
+ * its batch until it is shut down.
+ * <p>
+ * Each archived profile is indexed by:
+ * <ul>
+ * <li>Its URL pattern (the request path with any ids replaced by {@code *})
+ * <li>The email of the user that made the request (if any)
+ * <li>Its timestamp, and the hour it was made in
+ * <li>Its duration, and its duration band (see {@link #getDurationBand})
+ * </ul>
+ * The datastore only allows an inequality filter on one property, so the hour
+ * and duration band can be used to look for slow requests in a period of time
+ * (e.g. the slowest requests in an hour, or the requests in a duration band
+ * over a day).
+ * Profiles whose data is too big for an entity are not archived.
+ */
+public class MiniProfilerArchive
+{
+  public static final String ENTITY_KIND = "MiniProfile";
+
+  /** The maximum length of an indexed string property. */
+  private static final int MAX_INDEXED_LENGTH = 500;
+  /**
+   * The maximum size of the serialized data of a profile (leaving room for the
+   * rest of the entity under the datastore's 1MB limit).
+   */
+  private static final int MAX_DATA_BYTES = 1000 * 1000 - 16 * 1024;
+  /** Path segments that look like ids (numbers, hex strings, UUIDs) */
+  private static final Pattern ID_SEGMENT = Pattern.compile("^(\\d+|[0-9a-fA-F-]{16,}|[A-Za-z0-9_-]{32,})$");
+
+  /** The number of profiles to write to the datastore at a time. */
+  private int batchSize;
+  /**
+   * The maximum number of milliseconds a profile will wait to be written if the
+   * batch doesn't fill up.
+   */
+  private long maxDelayMillis;
+
+  private static final Logger logger = Logger.getLogger(MiniProfilerArchive.class.getName());
+
+  /** The profiles waiting to be written. */
+  private ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+  /** The number of profiles waiting to be written. */
+  private AtomicInteger pendingCount = new AtomicInteger();
+  /** When the oldest profile waiting to be written was queued. */
+  private AtomicLong oldestPending = new AtomicLong();
+  /** The writes that haven't been checked for errors yet. */
+  private ConcurrentLinkedQueue<Future<List<Key>>> puts = new ConcurrentLinkedQueue<Future<List<Key>>>();
+  /** The Appengine AsyncDatastoreService. */
+  private AsyncDatastoreService ds;
+
+  /**
+   * Create an archive.
+   *
+   * @param batchSize
+   *          The number of profiles to write to the datastore at a time.
+   * @param maxDelayMillis
+   *          The maximum number of milliseconds a profile will wait to be
+   *          written if the batch doesn't fill up.
+   */
+  public MiniProfilerArchive(int batchSize, long maxDelayMillis)
+  {
+    this.batchSize = Math.max(1, batchSize);
+    this.maxDelayMillis = maxDelayMillis;
+    ds = DatastoreServiceFactory.getAsyncDatastoreService();
+  }
+
+  /**
+   * Queue profiling data to be archived. If the current batch is full (or has
+   * been waiting too long), the batch is written.
+   * <p>
+   * The request data must not be changed after it has been added.
+   *
+   * @param requestId
+   *          The profile request id.
+   * @param user
+   *          The email of the user that made the request (may be null).
+   * @param requestData
+   *          The request data (as stored in memcache by the
+   *          {@link MiniProfilerFilter}).
+   */
+  public void add(String requestId, String user, Map<String, Object> requestData)
+  {
+    oldestPending.compareAndSet(0, System.currentTimeMillis());
+    pending.add(new Pending(requestId, user, requestData));
+    pendingCount.incrementAndGet();
+    flushIfDue();
+  }
+
+  /**
+   * Write the queued profiles if the batch is full or the oldest profile has
+   * been waiting too long.
+   *
+   * @return The result of the write, or {@code null} if nothing was written.
+   */
+  public Future<List<Key>> flushIfDue()
+  {
+    long oldest = oldestPending.get();
+    if (pendingCount.get() >= batchSize || (oldest > 0 && System.currentTimeMillis() - oldest >= maxDelayMillis))
+    {
+      return flush();
+    }
+    checkPuts(false);
+    return null;
+  }
+
+  /**
+   * Write all of the queued profiles to the datastore (asynchronously).
+   *
+   * @return The result of the write, or {@code null} if there was nothing to
+   *         write.
+   */
+  public Future<List<Key>> flush()
+  {
+    checkPuts(false);
+    oldestPending.set(0);
+    List<Entity> batch = new ArrayList<Entity>();
+    Pending next;
+    while ((next = pending.poll()) != null)
+    {
+      pendingCount.decrementAndGet();
+      Entity entity = toEntity(next.requestId, next.user, next.requestData);
+      if (entity != null)
+      {
+        batch.add(entity);
+      }
+    }
+    if (batch.isEmpty())
+    {
+      return null;
+    }
+    Future<List<Key>> result = ds.put(batch);
+    puts.add(result);
+    return result;
+  }
+
+  /**
+   * Write all of the queued profiles and wait for all of the writes to finish
+   * (e.g. when the instance is shutting down).
+   */
+  public void close()
+  {
+    flush();
+    checkPuts(true);
+  }
+
+  /**
+   * Log any writes that have failed.
+   *
+   * @param wait
+   *          Whether to wait for writes that haven't finished yet.
+   */
+  private void checkPuts(boolean wait)
+  {
+    Iterator<Future<List<Key>>> i = puts.iterator();
+    while (i.hasNext())
+    {
+      Future<List<Key>> put = i.next();
+      if (!wait && !put.isDone())
+      {
+        continue;
+      }
+      i.remove();
+      try
+      {
+        put.get();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e)
+      {
+        logger.log(Level.WARNING, "Couldn't archive profiles", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Find archived profiles, most recent first (or slowest first if a minimum
+   * duration is specified).
+   * <p>
+   * Combining more than one filter requires a composite datastore index (see
+   * the README).
+   *
+   * @param urlPattern
+   *          Only return profiles for this URL pattern (may be null).
+   * @param user
+   *          Only return profiles for requests made by this user (may be null).
+   * @param from
+   *          Only return profiles for requests made at or after this time (may
+   *          be null).
+   * @param to
+   *          Only return profiles for requests made before this time (may be
+   *          null).
+   * @param hour
+   *          Only return profiles for requests made in this hour (see
+   *          {@link #getHour}, may be null).
+   * @param durationBand
+   *          Only return profiles for requests in this duration band (see
+   *          {@link #getDurationBand}, may be null).
+   * @param minDuration
+   *          Only return profiles for requests that took at least this many
+   *          milliseconds (may be null).
+   * @param cursor
+   *          The cursor returned by the previous page of results (may be null).
+   * @param limit
+   *          The maximum number of profiles to return.
+   * @return A map containing the list of profile summaries ({@code requests})
+   *         and the cursor to use to get the next page ({@code cursor}, null if
+   *         there are no more results).
+   */
+  public Map<String, Object> query(String urlPattern, String user, Long from, Long to, Long hour, Long durationBand, Long minDuration, String cursor,
+      int limit)
+  {
+    Query query = buildQuery(urlPattern, user, from, to, hour, durationBand, minDuration);
+    // The datastore only allows inequality filters on a single property, so a
+    // minimum duration is only checked after loading if there's a time range
+    // (filtering by hour or duration band instead avoids this).
+    boolean checkDuration = (from != null || to != null) && minDuration != null;
+
+    FetchOptions options = FetchOptions.Builder.withLimit(limit);
+    if (cursor != null)
+    {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultList<Entity> entities = ds.prepare(query).asQueryResultList(options);
+
+    List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+    for (Entity entity : entities)
+    {
+      if (checkDuration && (Long) entity.getProperty("duration") < minDuration * 1000000)
+      {
+        continue;
+      }
+      requests.add(toSummary(entity));
+    }
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("requests", requests);
+    result.put("cursor", entities.size() == limit ? entities.getCursor().toWebSafeString() : null);
+    return result;
+  }
+
+  /**
+   * Build a query for archived profiles (see {@link #query}).
+   */
+  private static Query buildQuery(String urlPattern, String user, Long from, Long to, Long hour, Long durationBand, Long minDuration)
+  {
+    Query query = new Query(ENTITY_KIND);
+    List<Filter> filters = new ArrayList<Filter>();
+    if (urlPattern != null)
+    {
+      filters.add(new FilterPredicate("urlPattern", FilterOperator.EQUAL, truncate(urlPattern, MAX_INDEXED_LENGTH)));
+    }
+    if (user != null)
+    {
+      filters.add(new FilterPredicate("user", FilterOperator.EQUAL, user));
+    }
+    if (hour != null)
+    {
+      filters.add(new FilterPredicate("hour", FilterOperator.EQUAL, hour));
+    }
+    if (durationBand != null)
+    {
+      filters.add(new FilterPredicate("durationBand", FilterOperator.EQUAL, durationBand));
+    }
+    if (from != null || to != null)
+    {
+      if (from != null)
+      {
+        filters.add(new FilterPredicate("timestamp", FilterOperator.GREATER_THAN_OR_EQUAL, from));
+      }
+      if (to != null)
+      {
+        filters.add(new FilterPredicate("timestamp", FilterOperator.LESS_THAN, to));
+      }
+      query.addSort("timestamp", SortDirection.DESCENDING);
+    } else if (minDuration != null)
+    {
+      filters.add(new FilterPredicate("duration", FilterOperator.GREATER_THAN_OR_EQUAL, minDuration * 1000000));
+      query.addSort("duration", SortDirection.DESCENDING);
+    } else
+    {
+      query.addSort("timestamp", SortDirection.DESCENDING);
+    }
+
+    if (filters.size() == 1)
+    {
+      query.setFilter(filters.get(0));
+    } else if (filters.size() > 1)
+    {
+      query.setFilter(CompositeFilterOperator.and(filters));
+    }
+
+    return query;
+  }
+
+  /**
+   * Write archived profiles to a segment (so that they can be analyzed offline
+   * with the {@link MiniProfilerSegmentTool}).
+   *
+   * @param urlPattern
+   *          Only write profiles for this URL pattern (may be null).
+   * @param user
+   *          Only write profiles for requests made by this user (may be null).
+   * @param from
+   *          Only write profiles for requests made at or after this time (may
+   *          be null).
+   * @param to
+   *          Only write profiles for requests made before this time (may be
+   *          null).
+   * @param hour
+   *          Only write profiles for requests made in this hour (may be null).
+   * @param durationBand
+   *          Only write profiles for requests in this duration band (may be
+   *          null).
+   * @param minDuration
+   *          Only write profiles for requests that took at least this many
+   *          milliseconds (may be null).
+   * @param limit
+   *          The maximum number of profiles to write.
+   * @param writer
+   *          The segment to write to.
+   * @return The number of profiles written.
+   */
+  public int export(String urlPattern, String user, Long from, Long to, Long hour, Long durationBand, Long minDuration, int limit,
+      MiniProfilerSegmentWriter writer) throws IOException
+  {
+    Query query = buildQuery(urlPattern, user, from, to, hour, durationBand, minDuration);
+    boolean checkDuration = (from != null || to != null) && minDuration != null;
+
+    int count = 0;
+    for (Entity entity : ds.prepare(query).asIterable(FetchOptions.Builder.withLimit(limit).chunkSize(100)))
+    {
+      if (checkDuration && (Long) entity.getProperty("duration") < minDuration * 1000000)
+      {
+        continue;
+      }
+      Map<String, Object> requestData;
+      try
+      {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = (Map<String, Object>) deserialize(((Blob) entity.getProperty("data")).getBytes());
+        requestData = data;
+      } catch (ClassNotFoundException e)
+      {
+        continue;
+      }
+      writer.write((String) entity.getProperty("requestId"), (String) entity.getProperty("user"), requestData);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Get the full data for an archived profile.
+   *
+   * @param id
+   *          The archive id of the profile (from {@link #query}).
+   * @return The request data (in the same format as is stored in memcache by
+   *         the {@link MiniProfilerFilter}), or {@code null} if there is no
+   *         archived profile with the id.
+   */
+  public Map<String, Object> get(long id)
+  {
+    try
+    {
+      Entity entity = ds.get(KeyFactory.createKey(ENTITY_KIND, id)).get();
+      @SuppressWarnings("unchecked")
+      Map<String, Object> requestData = (Map<String, Object>) deserialize(((Blob) entity.getProperty("data")).getBytes());
+      return requestData;
+    } catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Get the URL pattern for a request URI. Path segments that look like ids
+   * are replaced by {@code *} so that similar requests are grouped together.
+   *
+   * @param uri
+   *          The request URI.
+   * @return The URL pattern.
+   */
+  public static String getURLPattern(String uri)
+  {
+    int queryIndex = uri.indexOf('?');
+    String path = queryIndex >= 0 ? uri.substring(0, queryIndex) : uri;
+    String[] segments = path.split("/", -1);
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < segments.length; i++)
+    {
+      if (i > 0)
+      {
+        result.append('/');
+      }
+      result.append(ID_SEGMENT.matcher(segments[i]).matches() ? "*" : segments[i]);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Get the hour that a timestamp is in.
+   *
+   * @param timestamp
+   *          The timestamp (milliseconds since the epoch).
+   * @return The hour (hours since the epoch).
+   */
+  public static long getHour(long timestamp)
+  {
+    return timestamp / (60 * 60 * 1000);
+  }
+
+  /**
+   * Get the duration band for a duration. The band is the duration (in
+   * milliseconds) rounded down to a power of two.
+   *
+   * @param durationNanos
+   *          The duration (in nanoseconds).
+   * @return The duration band (in milliseconds).
+   */
+  public static long getDurationBand(long durationNanos)
+  {
+    long millis = durationNanos / 1000000;
+    return millis > 0 ? Long.highestOneBit(millis) : 0;
+  }
+
+  /**
+   * Convert request data to an entity that can be stored in the datastore.
+   *
+   * @return The entity, or {@code null} if the data couldn't be serialized or
+   *         is too big.
+   */
+  private static Entity toEntity(String requestId, String user, Map<String, Object> requestData)
+  {
+    byte[] data;
+    try
+    {
+      data = serialize(requestData);
+    } catch (IOException e)
+    {
+      logger.log(Level.WARNING, "Couldn't archive profile " + requestId, e);
+      return null;
+    }
+    if (data.length > MAX_DATA_BYTES)
+    {
+      logger.warning("Profile " + requestId + " is too big to archive (" + data.length + " bytes)");
+      return null;
+    }
+
+    MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+    long duration = profile != null ? profile.getDuration() : 0;
+    long timestamp = (Long) requestData.get("timestamp");
+    String requestURL = (String) requestData.get("requestURL");
+
+    Entity entity = new Entity(ENTITY_KIND);
+    entity.setUnindexedProperty("requestId", requestId);
+    entity.setUnindexedProperty("requestURL", new Text(requestURL));
+    entity.setProperty("urlPattern", truncate(getURLPattern(requestURL), MAX_INDEXED_LENGTH));
+    entity.setProperty("user", user);
+    entity.setProperty("timestamp", timestamp);
+    entity.setProperty("hour", getHour(timestamp));
+    entity.setProperty("duration", duration);
+    entity.setProperty("durationBand", getDurationBand(duration));
+    entity.setUnindexedProperty("data", new Blob(data));
+    return entity;
+  }
+
+  /**
+   * Convert an entity to a summary of the profile.
+   */
+  private static Map<String, Object> toSummary(Entity entity)
+  {
+    Map<String, Object> summary = new HashMap<String, Object>();
+    summary.put("archiveId", entity.getKey().getId());
+    summary.put("id", entity.getProperty("requestId"));
+    summary.put("requestURL", ((Text) entity.getProperty("requestURL")).getValue());
+    summary.put("urlPattern", entity.getProperty("urlPattern"));
+    summary.put("user", entity.getProperty("user"));
+    summary.put("timestamp", entity.getProperty("timestamp"));
+    summary.put("duration", entity.getProperty("duration"));
+    summary.put("hour", entity.getProperty("hour"));
+    summary.put("durationBand", entity.getProperty("durationBand"));
+    return summary;
+  }
+
+  /**
+   * Serialize (and compress) an object.
+   */
+  private static byte[] serialize(Object o) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+    try
+    {
+      out.writeObject(o);
+    } finally
+    {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decompress and deserialize an object.
+   */
+  private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+    try
+    {
+      return in.readObject();
+    } finally
+    {
+      in.close();
+    }
+  }
+
+  private static String truncate(String s, int maxLength)
+  {
+    if (s != null && s.length() > maxLength)
+    {
+      return s.substring(0, maxLength);
+    } else
+    {
+      return s;
+    }
+  }
+
+  /**
+   * A profile waiting to be written.
+   */
+  private static class Pending
+  {
+    private String requestId;
+    private String user;
+    private Map<String, Object> requestData;
+
+    public Pending(String requestId, String user, Map<String, Object> requestData)
+    {
+      this.requestId = requestId;
+      this.user = user;
+      this.requestData = requestData;
+    }
+  }
+}
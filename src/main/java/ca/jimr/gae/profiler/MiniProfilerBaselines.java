@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+
+/**
+ * Keeps a rolling baseline of how long each step takes for each URL pattern,
+ * and uses it to detect regressions.
+ * <p>
+ * Each (URL pattern, step name) pair has a fixed-size {@link Sketch} of its
+ * recent durations. When a profile is recorded, each of its steps is tagged
+ * with how far it deviates from the median of its baseline (see
+ * {@link MiniProfiler.Profile#getDeviation()}). A moving average of the
+ * deviations is kept, and if it goes over the regression threshold, the step is
+ * added to the list of regressions in memcache (see {@link #getRegressions}).
+ * <p>
+ * Baselines are kept in memory, so each instance has its own. Once there are
+ * too many, the least recently used ones are dropped to make room for new
+ * steps.
+ */
+public class MiniProfilerBaselines
+{
+  public static final String MEMCACHE_REGRESSIONS_KEY = "mini_profile_regressions";
+
+  /** The number of samples needed before a baseline is used. */
+  private static final int MIN_SAMPLES = 20;
+  /** The maximum number of baselines kept (to bound memory use). */
+  private static final int MAX_BASELINES = 2000;
+  /** The number of baselines dropped at a time when there are too many. */
+  private static final int EVICTED_BASELINES = MAX_BASELINES / 10;
+  /** The maximum number of regressions kept in memcache. */
+  private static final int MAX_REGRESSIONS = 100;
+  /** How often a regression that is still happening is updated in memcache. */
+  private static final long REGRESSION_UPDATE_MILLIS = 60 * 1000;
+  /** How long regressions are kept in memcache. */
+  private static final int REGRESSION_EXPIRY_SECONDS = 24 * 60 * 60;
+  /** The weight of each new deviation in the moving average. */
+  private static final double DEVIATION_WEIGHT = 0.1;
+
+  /** The baselines, keyed by URL pattern and step name. */
+  private ConcurrentHashMap<String, Baseline> baselines = new ConcurrentHashMap<String, Baseline>();
+  /** Counts recorded profiles (used to find the least recently used baselines). */
+  private AtomicLong clock = new AtomicLong();
+  /**
+   * How much slower than its baseline a step has to be (on average) to be
+   * considered a regression (e.g. 0.3 for 30% slower).
+   */
+  private double threshold;
+  /** The Appengine MemcacheService (in the profiler's namespace). */
+  private MemcacheService ms;
+
+  /**
+   * Create the baselines.
+   *
+   * @param threshold
+   *          How much slower than its baseline a step has to be (on average) to
+   *          be considered a regression (e.g. 0.3 for 30% slower).
+   * @param ms
+   *          The memcache service to store regressions in.
+   */
+  public MiniProfilerBaselines(double threshold, MemcacheService ms)
+  {
+    this.threshold = threshold;
+    this.ms = ms;
+  }
+
+  /**
+   * Compare a profile to the baselines for its URL (tagging each step with its
+   * deviation) and then add it to the baselines.
+   *
+   * @param requestURL
+   *          The URL of the request.
+   * @param profile
+   *          The profile.
+   */
+  public void record(String requestURL, MiniProfiler.Profile profile)
+  {
+    if (profile == null)
+    {
+      return;
+    }
+    String urlPattern = MiniProfilerArchive.getURLPattern(requestURL);
+    long now = clock.incrementAndGet();
+    List<Map<String, Object>> regressions = null;
+    List<MiniProfiler.Profile> stack = new ArrayList<MiniProfiler.Profile>();
+    stack.add(profile);
+    while (!stack.isEmpty())
+    {
+      MiniProfiler.Profile step = stack.remove(stack.size() - 1);
+      stack.addAll(step.getChildren());
+
+      Baseline baseline = getBaseline(urlPattern, step.getName(), now);
+      Map<String, Object> regression = baseline.record(step);
+      if (regression != null)
+      {
+        regression.put("urlPattern", urlPattern);
+        regression.put("step", step.getName());
+        if (regressions == null)
+        {
+          regressions = new ArrayList<Map<String, Object>>();
+        }
+        regressions.add(regression);
+      }
+    }
+    if (regressions != null)
+    {
+      storeRegressions(regressions);
+    }
+  }
+
+  /**
+   * Get how much slower than its baseline a step has to be (on average) to be
+   * considered a regression.
+   *
+   * @return The threshold (e.g. 0.3 for 30% slower).
+   */
+  public double getThreshold()
+  {
+    return threshold;
+  }
+
+  /**
+   * Get the current regressions (most severe first).
+   *
+   * @param ms
+   *          The memcache service the regressions are stored in.
+   * @return The regressions. Each has the {@code urlPattern}, {@code step},
+   *         {@code baseline} (median duration in nanoseconds),
+   *         {@code deviation} (e.g. 0.3 for 30% slower), {@code samples} and
+   *         {@code updated} (timestamp).
+   */
+  public static List<Map<String, Object>> getRegressions(MemcacheService ms)
+  {
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, Object>> stored = (Map<String, Map<String, Object>>) ms.get(MEMCACHE_REGRESSIONS_KEY);
+    List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+    if (stored != null)
+    {
+      result.addAll(stored.values());
+      Collections.sort(result, new Comparator<Map<String, Object>>()
+      {
+        @Override
+        public int compare(Map<String, Object> a, Map<String, Object> b)
+        {
+          return Double.compare((Double) b.get("deviation"), (Double) a.get("deviation"));
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Get (or create) the baseline for a step, and mark it as used.
+   *
+   * @return The baseline.
+   */
+  private Baseline getBaseline(String urlPattern, String stepName, long now)
+  {
+    String key = urlPattern + "\n" + stepName;
+    Baseline baseline = baselines.get(key);
+    if (baseline == null)
+    {
+      if (baselines.size() >= MAX_BASELINES)
+      {
+        evict();
+      }
+      Baseline newBaseline = new Baseline();
+      baseline = baselines.putIfAbsent(key, newBaseline);
+      if (baseline == null)
+      {
+        baseline = newBaseline;
+      }
+    }
+    baseline.used = now;
+    return baseline;
+  }
+
+  /**
+   * Drop the least recently used baselines if there are too many. They are
+   * dropped in bulk so that this doesn't happen for every new step.
+   */
+  private synchronized void evict()
+  {
+    if (baselines.size() < MAX_BASELINES)
+    {
+      return;
+    }
+    List<Map.Entry<String, Baseline>> entries = new ArrayList<Map.Entry<String, Baseline>>(baselines.entrySet());
+    final long[] used = new long[entries.size()];
+    Integer[] order = new Integer[entries.size()];
+    for (int i = 0; i < order.length; i++)
+    {
+      used[i] = entries.get(i).getValue().used;
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        return used[a] < used[b] ? -1 : used[a] > used[b] ? 1 : 0;
+      }
+    });
+    int evict = baselines.size() - MAX_BASELINES + EVICTED_BASELINES;
+    for (int i = 0; i < evict && i < order.length; i++)
+    {
+      Map.Entry<String, Baseline> entry = entries.get(order[i]);
+      baselines.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Add or update regressions in memcache.
+   */
+  private void storeRegressions(List<Map<String, Object>> regressions)
+  {
+    for (int attempt = 0; attempt < 3; attempt++)
+    {
+      IdentifiableValue current = ms.getIdentifiable(MEMCACHE_REGRESSIONS_KEY);
+      LinkedHashMap<String, Map<String, Object>> stored = new LinkedHashMap<String, Map<String, Object>>();
+      if (current != null && current.getValue() != null)
+      {
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, Object>> value = (Map<String, Map<String, Object>>) current.getValue();
+        stored.putAll(value);
+      }
+      for (Map<String, Object> regression : regressions)
+      {
+        String key = regression.get("urlPattern") + "\n" + regression.get("step");
+        stored.remove(key);
+        stored.put(key, regression);
+      }
+      // Drop the least recently updated regressions
+      Iterator<String> i = stored.keySet().iterator();
+      while (stored.size() > MAX_REGRESSIONS)
+      {
+        i.next();
+        i.remove();
+      }
+      Expiration expiration = Expiration.byDeltaSeconds(REGRESSION_EXPIRY_SECONDS);
+      if (current == null)
+      {
+        if (ms.put(MEMCACHE_REGRESSIONS_KEY, stored, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT))
+        {
+          return;
+        }
+      } else if (ms.putIfUntouched(MEMCACHE_REGRESSIONS_KEY, current, stored, expiration))
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The baseline for a single step of a URL pattern.
+   */
+  private class Baseline
+  {
+    private Sketch sketch = new Sketch();
+    /** When the baseline was last used (see {@link MiniProfilerBaselines#clock}). */
+    private volatile long used;
+    /** The moving average of the deviations from the baseline. */
+    private double averageDeviation;
+    /** When this step was last stored as a regression (0 if it isn't one). */
+    private long regressionUpdated;
+
+    /**
+     * Tag a step with its deviation from the baseline, then add it to the
+     * baseline.
+     *
+     * @return The regression to store if the step has regressed (and it hasn't
+     *         been stored recently), otherwise {@code null}.
+     */
+    public synchronized Map<String, Object> record(MiniProfiler.Profile step)
+    {
+      Map<String, Object> result = null;
+      if (sketch.getCount() >= MIN_SAMPLES)
+      {
+        long median = sketch.getQuantile(0.5);
+        double deviation = median > 0 ? (double) step.getDuration() / median - 1 : 0;
+        step.setDeviation(deviation);
+        averageDeviation = averageDeviation * (1 - DEVIATION_WEIGHT) + deviation * DEVIATION_WEIGHT;
+
+        long now = System.currentTimeMillis();
+        if (averageDeviation > threshold)
+        {
+          if (now - regressionUpdated > REGRESSION_UPDATE_MILLIS)
+          {
+            regressionUpdated = now;
+            result = new HashMap<String, Object>();
+            result.put("baseline", median);
+            result.put("deviation", averageDeviation);
+            result.put("samples", sketch.getCount());
+            result.put("updated", now);
+          }
+        } else
+        {
+          regressionUpdated = 0;
+        }
+      }
+      sketch.add(step.getDuration());
+      return result;
+    }
+  }
+
+  /**
+   * A fixed-size histogram of durations used to estimate quantiles.
+   * <p>
+   * Durations are put into logarithmic buckets (4 per power of two, so
+   * estimates are within about 10%) from 1 microsecond to about 2 minutes. Once
+   * the histogram has seen enough samples, the counts are halved so that
+   * older samples gradually fade out.
+   */
+  protected static class Sketch
+  {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKETS = 27 * BUCKETS_PER_DOUBLING;
+    private static final long MIN_VALUE = 1000;
+    private static final int MAX_COUNT = 1000;
+
+    private int[] counts = new int[BUCKETS];
+    private int count;
+
+    /**
+     * Add a duration to the histogram.
+     *
+     * @param nanos
+     *          The duration (nanoseconds).
+     */
+    public void add(long nanos)
+    {
+      counts[bucket(nanos)]++;
+      count++;
+      if (count >= MAX_COUNT)
+      {
+        count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+          counts[i] /= 2;
+          count += counts[i];
+        }
+      }
+    }
+
+    /**
+     * Get the number of samples in the histogram (after decay).
+     *
+     * @return The number of samples.
+     */
+    public int getCount()
+    {
+      return count;
+    }
+
+    /**
+     * Estimate a quantile of the durations.
+     *
+     * @param q
+     *          The quantile (e.g. 0.5 for the median).
+     * @return The estimated duration (nanoseconds).
+     */
+    public long getQuantile(double q)
+    {
+      long rank = (long) Math.ceil(q * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0)
+        {
+          // The geometric middle of the bucket
+          return (long) (MIN_VALUE * Math.pow(2, (i + 0.5) / BUCKETS_PER_DOUBLING));
+        }
+      }
+      return 0;
+    }
+
+    private static int bucket(long nanos)
+    {
+      if (nanos <= MIN_VALUE)
+      {
+        return 0;
+      }
+      int bucket = (int) (Math.log((double) nanos / MIN_VALUE) / Math.log(2) * BUCKETS_PER_DOUBLING);
+      return Math.min(bucket, BUCKETS - 1);
+    }
+  }
+}
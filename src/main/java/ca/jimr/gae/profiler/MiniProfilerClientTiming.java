@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.util.*;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Checks the browser timings (from the Navigation Timing and Resource Timing
+ * APIs) that the profiler UI sends back for a profiled page.
+ * <p>
+ * The beacon is JSON with the profile request {@code id}, the
+ * {@code navigation} marks (in milliseconds since the navigation started) and
+ * the {@code resources} that were loaded (each with its {@code name},
+ * {@code initiatorType}, {@code start}, {@code duration} and {@code size}).
+ * Only the expected fields are kept, and the number and size of the resources
+ * are limited, since anyone can send a beacon.
+ */
+public class MiniProfilerClientTiming
+{
+  public static final String MEMCACHE_KEY_FORMAT_STRING = "mini_profile_client_timing_%s";
+
+  /** The largest beacon that is read. */
+  public static final int MAX_BEACON_BYTES = 64 * 1024;
+  /** The maximum number of resources kept. */
+  private static final int MAX_RESOURCES = 100;
+  /** The maximum length of a resource name (URL). */
+  private static final int MAX_NAME_LENGTH = 300;
+  /** The navigation marks that are kept (in the order they happen). */
+  private static final List<String> NAVIGATION_MARKS = Arrays.asList("redirectStart", "redirectEnd", "fetchStart", "domainLookupStart",
+      "domainLookupEnd", "connectStart", "connectEnd", "requestStart", "responseStart", "responseEnd", "domLoading", "domInteractive",
+      "domContentLoadedEventEnd", "domComplete", "loadEventStart", "loadEventEnd");
+
+  /**
+   * Read and check a beacon.
+   * 
+   * @param in
+   *          The beacon (only the first {@link #MAX_BEACON_BYTES} bytes are
+   *          read).
+   * @return The timings (with the {@code id}, {@code navigation} and
+   *         {@code resources}), or {@code null} if the beacon isn't valid.
+   */
+  public static Map<String, Object> parse(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) > 0)
+    {
+      if (bytes.size() + read > MAX_BEACON_BYTES)
+      {
+        return null;
+      }
+      bytes.write(buffer, 0, read);
+    }
+
+    Map<?, ?> beacon;
+    try
+    {
+      beacon = new ObjectMapper().readValue(bytes.toByteArray(), Map.class);
+    } catch (IOException e)
+    {
+      return null;
+    }
+    Object id = beacon.get("id");
+    if (!(id instanceof String) || !(beacon.get("navigation") instanceof Map))
+    {
+      return null;
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("id", id);
+    Map<?, ?> marks = (Map<?, ?>) beacon.get("navigation");
+    Map<String, Object> navigation = new LinkedHashMap<String, Object>();
+    for (String mark : NAVIGATION_MARKS)
+    {
+      Double value = toNumber(marks.get(mark));
+      if (value != null)
+      {
+        navigation.put(mark, value);
+      }
+    }
+    result.put("navigation", navigation);
+
+    List<Map<String, Object>> resources = new ArrayList<Map<String, Object>>();
+    if (beacon.get("resources") instanceof List)
+    {
+      for (Object entry : (List<?>) beacon.get("resources"))
+      {
+        if (resources.size() >= MAX_RESOURCES)
+        {
+          break;
+        }
+        if (!(entry instanceof Map))
+        {
+          continue;
+        }
+        Map<?, ?> fields = (Map<?, ?>) entry;
+        Double start = toNumber(fields.get("start"));
+        Double duration = toNumber(fields.get("duration"));
+        if (!(fields.get("name") instanceof String) || start == null || duration == null)
+        {
+          continue;
+        }
+        Map<String, Object> resource = new HashMap<String, Object>();
+        String name = (String) fields.get("name");
+        resource.put("name", name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name);
+        resource.put("initiatorType", fields.get("initiatorType") instanceof String ? fields.get("initiatorType") : "other");
+        resource.put("start", start);
+        resource.put("duration", duration);
+        resource.put("size", toNumber(fields.get("size")));
+        resources.add(resource);
+      }
+    }
+    result.put("resources", resources);
+    return result;
+  }
+
+  /**
+   * Get a non-negative number from a beacon field.
+   * 
+   * @return The number, or {@code null} if the field isn't a non-negative
+   *         number.
+   */
+  private static Double toNumber(Object value)
+  {
+    if (value instanceof Number)
+    {
+      double result = ((Number) value).doubleValue();
+      if (result >= 0 && !Double.isInfinite(result) && !Double.isNaN(result))
+      {
+        return result;
+      }
+    }
+    return null;
+  }
+}
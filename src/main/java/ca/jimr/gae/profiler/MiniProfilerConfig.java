@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * An immutable snapshot of the {@link MiniProfilerFilter} settings that can be
+ * changed while the app is running (see {@link #RELOADABLE_KEYS}).
+ * <p>
+ * The settings start out as the filter's init parameters. Overrides for them
+ * can be stored in memcache with {@link #setOverrides(MemcacheService, Map, int)}
+ * (or the servlet's {@code config} URL), and each instance picks them up the
+ * next time it polls (see the filter's {@code configPollSeconds} parameter).
+ * When the overrides change, a new snapshot is built and swapped in, so a
+ * request always sees a consistent set of settings without any locking.
+ * Overrides expire, so settings that were turned up during an incident go back
+ * to normal on their own.
+ */
+public class MiniProfilerConfig
+{
+  public static final String MEMCACHE_KEY = "mini_profile_config";
+
+  /** The settings that can be overridden at runtime. */
+  public static final List<String> RELOADABLE_KEYS = Collections.unmodifiableList(Arrays.asList(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY,
+      MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, MiniProfilerFilter.RESTRICT_TO_URLS_KEY, MiniProfilerFilter.SAMPLE_PERCENT_KEY,
+      MiniProfilerFilter.DATA_EXPIRY_KEY, MiniProfilerFilter.TRACK_RESOURCES_KEY, MiniProfilerFilter.SERVER_TIMING_STEPS_KEY,
+      MiniProfilerFilter.SERVER_TIMING_MAX_LENGTH_KEY, MiniProfilerFilter.WATCHDOG_KEY, MiniProfilerFilter.MIN_STEP_MICROS_KEY,
+      MiniProfilerFilter.MAX_STEP_DEPTH_KEY));
+
+  /** The overrides this snapshot was built with. */
+  private final Map<String, String> overrides;
+  private final boolean restricted;
+  private final boolean restrictedToAdmins;
+  private final Set<String> restrictedEmails;
+  private final List<Pattern> restrictedURLs;
+  private final double sampleRate;
+  private final int dataExpiry;
+  private final boolean trackResources;
+  private final int serverTimingSteps;
+  private final int serverTimingMaxLength;
+  private final int watchdog;
+  private final long minStepDuration;
+  private final int maxStepDepth;
+
+  /**
+   * Build a snapshot of the settings.
+   * 
+   * @param settings
+   *          The settings from the filter's init parameters (missing or null
+   *          values use the defaults).
+   * @param overrides
+   *          The settings that override them (see
+   *          {@link #getOverrides(MemcacheService)}).
+   * @throws IllegalArgumentException
+   *           If a setting isn't valid.
+   */
+  public MiniProfilerConfig(Map<String, String> settings, Map<String, String> overrides)
+  {
+    this.overrides = Collections.unmodifiableMap(new HashMap<String, String>(overrides));
+    Map<String, String> values = new HashMap<String, String>(settings);
+    values.putAll(overrides);
+
+    restrictedToAdmins = parseBoolean(values.get(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY), false);
+    Set<String> emails = new LinkedHashSet<String>();
+    String configRestrictToEmails = values.get(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY);
+    if (!isEmpty(configRestrictToEmails))
+    {
+      for (String email : configRestrictToEmails.split(","))
+      {
+        emails.add(email.trim());
+      }
+    }
+    restrictedEmails = Collections.unmodifiableSet(emails);
+    restricted = restrictedToAdmins || !restrictedEmails.isEmpty();
+    List<Pattern> urls = new ArrayList<Pattern>();
+    String configRestrictToURLs = values.get(MiniProfilerFilter.RESTRICT_TO_URLS_KEY);
+    if (!isEmpty(configRestrictToURLs))
+    {
+      for (String urlPattern : configRestrictToURLs.split(","))
+      {
+        urlPattern = urlPattern.trim();
+        if (!isEmpty(urlPattern))
+        {
+          urls.add(Pattern.compile(urlPattern));
+        }
+      }
+    }
+    restrictedURLs = Collections.unmodifiableList(urls);
+
+    String configSamplePercent = values.get(MiniProfilerFilter.SAMPLE_PERCENT_KEY);
+    sampleRate = !isEmpty(configSamplePercent) ? Double.parseDouble(configSamplePercent.trim()) / 100 : 1;
+    if (sampleRate < 0 || sampleRate > 1)
+    {
+      throw new IllegalArgumentException(MiniProfilerFilter.SAMPLE_PERCENT_KEY + " must be between 0 and 100");
+    }
+    dataExpiry = parseInt(values.get(MiniProfilerFilter.DATA_EXPIRY_KEY), 30);
+    trackResources = parseBoolean(values.get(MiniProfilerFilter.TRACK_RESOURCES_KEY), false);
+    serverTimingSteps = parseInt(values.get(MiniProfilerFilter.SERVER_TIMING_STEPS_KEY), -1);
+    serverTimingMaxLength = parseInt(values.get(MiniProfilerFilter.SERVER_TIMING_MAX_LENGTH_KEY), 1024);
+    watchdog = parseInt(values.get(MiniProfilerFilter.WATCHDOG_KEY), 0);
+    minStepDuration = parseInt(values.get(MiniProfilerFilter.MIN_STEP_MICROS_KEY), 0) * 1000L;
+    maxStepDepth = parseInt(values.get(MiniProfilerFilter.MAX_STEP_DEPTH_KEY), 0);
+  }
+
+  /**
+   * Get the overrides that are stored in memcache.
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @return The overrides (empty if there are none).
+   */
+  public static Map<String, String> getOverrides(MemcacheService ms)
+  {
+    @SuppressWarnings("unchecked")
+    Map<String, String> overrides = (Map<String, String>) ms.get(MEMCACHE_KEY);
+    return overrides != null ? overrides : Collections.<String, String> emptyMap();
+  }
+
+  /**
+   * Store overrides in memcache, replacing any that are already stored. They
+   * are checked first, so that a bad value can't break every instance.
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @param overrides
+   *          The overrides (only the {@link #RELOADABLE_KEYS} can be
+   *          overridden). If this is empty, the overrides are removed.
+   * @param expirySeconds
+   *          How long the overrides last.
+   * @throws IllegalArgumentException
+   *           If a setting can't be overridden or isn't valid.
+   */
+  public static void setOverrides(MemcacheService ms, Map<String, String> overrides, int expirySeconds)
+  {
+    if (overrides.isEmpty())
+    {
+      ms.delete(MEMCACHE_KEY);
+      return;
+    }
+    for (String key : overrides.keySet())
+    {
+      if (!RELOADABLE_KEYS.contains(key))
+      {
+        throw new IllegalArgumentException(key + " can't be changed at runtime");
+      }
+    }
+    new MiniProfilerConfig(Collections.<String, String> emptyMap(), overrides);
+    ms.put(MEMCACHE_KEY, new HashMap<String, String>(overrides), Expiration.byDeltaSeconds(expirySeconds));
+  }
+
+  /**
+   * Get the overrides this snapshot was built with.
+   * 
+   * @return The overrides.
+   */
+  public Map<String, String> getOverrides()
+  {
+    return overrides;
+  }
+
+  /**
+   * Get whether profiling is restricted to some sort of logged-in user.
+   * 
+   * @return Whether profiling is restricted.
+   */
+  public boolean isRestricted()
+  {
+    return restricted;
+  }
+
+  /**
+   * Get whether profiling is restricted to app admins.
+   * 
+   * @return Whether profiling is restricted to admins.
+   */
+  public boolean isRestrictedToAdmins()
+  {
+    return restrictedToAdmins;
+  }
+
+  /**
+   * Get the emails of the users that profiling is restricted to.
+   * 
+   * @return The emails (empty if profiling isn't restricted to any users).
+   */
+  public Set<String> getRestrictedEmails()
+  {
+    return restrictedEmails;
+  }
+
+  /**
+   * Get the URL patterns that profiling is restricted to.
+   * 
+   * @return The patterns (empty if all URLs are profiled).
+   */
+  public List<Pattern> getRestrictedURLs()
+  {
+    return restrictedURLs;
+  }
+
+  /**
+   * Get the fraction of the requests that could be profiled that are.
+   * 
+   * @return The sample rate (from 0 to 1).
+   */
+  public double getSampleRate()
+  {
+    return sampleRate;
+  }
+
+  /**
+   * Get the number of seconds that profiling data is kept in memcache.
+   * 
+   * @return The expiry.
+   */
+  public int getDataExpiry()
+  {
+    return dataExpiry;
+  }
+
+  /**
+   * Get whether CPU time and allocated bytes are recorded by default.
+   * 
+   * @return Whether resources are tracked.
+   */
+  public boolean isTrackResources()
+  {
+    return trackResources;
+  }
+
+  /**
+   * Get the number of steps sent in the {@code Server-Timing} header.
+   * 
+   * @return The number of steps, or -1 if the header isn't sent.
+   */
+  public int getServerTimingSteps()
+  {
+    return serverTimingSteps;
+  }
+
+  /**
+   * Get the maximum length of the {@code Server-Timing} header.
+   * 
+   * @return The maximum length.
+   */
+  public int getServerTimingMaxLength()
+  {
+    return serverTimingMaxLength;
+  }
+
+  /**
+   * Get the percentage of a request's deadline after which a snapshot of its
+   * profile is stored.
+   * 
+   * @return The percentage, or 0 if no snapshots are taken.
+   */
+  public int getWatchdog()
+  {
+    return watchdog;
+  }
+
+  /**
+   * Get the duration below which steps are folded together.
+   * 
+   * @return The duration (nanoseconds), or 0 if steps aren't folded for being
+   *         short.
+   */
+  public long getMinStepDuration()
+  {
+    return minStepDuration;
+  }
+
+  /**
+   * Get the depth below which steps are folded together.
+   * 
+   * @return The depth, or 0 if there is no limit.
+   */
+  public int getMaxStepDepth()
+  {
+    return maxStepDepth;
+  }
+
+  private static boolean parseBoolean(String value, boolean defaultValue)
+  {
+    return !isEmpty(value) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+
+  private static int parseInt(String value, int defaultValue)
+  {
+    return !isEmpty(value) ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+
+  private static boolean isEmpty(String str)
+  {
+    return str == null || str.trim().length() == 0;
+  }
+}
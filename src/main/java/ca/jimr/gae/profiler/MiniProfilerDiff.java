@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.*;
+
+/**
+ * Compares the profiles of two or more requests.
+ * <p>
+ * The profile trees are aligned by the path of step names from the root, so a
+ * step is matched with the step that has the same name under the matching
+ * parent in each of the other profiles. Sibling steps with the same name (e.g.
+ * a step inside a loop) are merged, and their durations are added up and
+ * counted as calls. Each step of each profile is visited once and matched with
+ * a hash lookup, so the time taken is linear in the total size of the trees.
+ */
+public class MiniProfilerDiff
+{
+  /**
+   * Align a set of profiles.
+   * 
+   * @param profiles
+   *          The profiles (the first is the one the others are compared to).
+   *          Null profiles are treated as empty.
+   * @return The root of the aligned tree.
+   */
+  public static Node diff(List<MiniProfiler.Profile> profiles)
+  {
+    Node root = new Node(null, 0, profiles.size());
+    for (int i = 0; i < profiles.size(); i++)
+    {
+      MiniProfiler.Profile profile = profiles.get(i);
+      if (profile != null)
+      {
+        if (root.name == null)
+        {
+          root.name = profile.getName();
+        }
+        merge(root, profile, i);
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Add a step (and its children) from one of the profiles to the aligned
+   * tree.
+   */
+  private static void merge(Node node, MiniProfiler.Profile step, int i)
+  {
+    node.duration[i] += step.getDuration();
+    node.self[i] += step.getSelf();
+    node.count[i]++;
+    for (MiniProfiler.Profile child : step.getChildren())
+    {
+      merge(node.getChild(child.getName()), child, i);
+    }
+  }
+
+  /**
+   * A step in the aligned tree, with its totals in each of the profiles. A
+   * step that is missing from a profile has a count of 0 for that profile.
+   */
+  public static class Node
+  {
+    private String name;
+    private int depth;
+    private long[] duration;
+    private long[] self;
+    private int[] count;
+    private List<Node> children = new ArrayList<Node>();
+    /** The children, keyed by name (created when needed). */
+    private Map<String, Node> childrenByName;
+
+    private Node(String name, int depth, int profiles)
+    {
+      this.name = name;
+      this.depth = depth;
+      duration = new long[profiles];
+      self = new long[profiles];
+      count = new int[profiles];
+    }
+
+    /**
+     * Get (or add) the child step with the specified name.
+     */
+    private Node getChild(String childName)
+    {
+      if (childrenByName == null)
+      {
+        childrenByName = new HashMap<String, Node>();
+      }
+      Node child = childrenByName.get(childName);
+      if (child == null)
+      {
+        child = new Node(childName, depth + 1, count.length);
+        childrenByName.put(childName, child);
+        children.add(child);
+      }
+      return child;
+    }
+
+    /**
+     * Get the name of the step.
+     * 
+     * @return The name.
+     */
+    public String getName()
+    {
+      return name;
+    }
+
+    /**
+     * Get the depth of the step in the tree (the root is 0).
+     * 
+     * @return The depth.
+     */
+    public int getDepth()
+    {
+      return depth;
+    }
+
+    /**
+     * Get the total duration of the step in each profile.
+     * 
+     * @return The durations (nanoseconds).
+     */
+    public long[] getDuration()
+    {
+      return duration;
+    }
+
+    /**
+     * Get the total time spent only in the step (none of the children) in each
+     * profile.
+     * 
+     * @return The self times (nanoseconds).
+     */
+    public long[] getSelf()
+    {
+      return self;
+    }
+
+    /**
+     * Get the number of times the step was called in each profile.
+     * 
+     * @return The call counts.
+     */
+    public int[] getCount()
+    {
+      return count;
+    }
+
+    /**
+     * Get the difference in duration between the last profile and the first.
+     * 
+     * @return The difference (nanoseconds).
+     */
+    public long getDurationDelta()
+    {
+      return duration[duration.length - 1] - duration[0];
+    }
+
+    /**
+     * Get the difference in self time between the last profile and the first.
+     * 
+     * @return The difference (nanoseconds).
+     */
+    public long getSelfDelta()
+    {
+      return self[self.length - 1] - self[0];
+    }
+
+    /**
+     * Get the difference in the number of calls between the last profile and
+     * the first.
+     * 
+     * @return The difference.
+     */
+    public int getCountDelta()
+    {
+      return count[count.length - 1] - count[0];
+    }
+
+    /**
+     * Get the child steps.
+     * 
+     * @return The children (in the order they were first seen).
+     */
+    public List<Node> getChildren()
+    {
+      return children;
+    }
+  }
+}
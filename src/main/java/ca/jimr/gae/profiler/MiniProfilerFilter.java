@@ -21,11 +21,14 @@
  */
 package ca.jimr.gae.profiler;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import javax.servlet.*;
@@ -33,9 +36,11 @@ import javax.servlet.http.*;
 
 import ca.jimr.gae.profiler.resources.MiniProfilerResourceLoader;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.memcache.*;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.apphosting.api.ApiProxy;
 
 /**
  * A Servlet filter that enables the {@link MiniProfiler} under certain
@@ -45,11 +50,18 @@ public class MiniProfilerFilter implements Filter
 {
   public static final String MEMCACHE_NAMESPACE = "mini_profile";
   public static final String MEMCACHE_KEY_FORMAT_STRING = "mini_profile_request_%s";
+  public static final String MEMCACHE_CLIENT_SEQ_KEY_FORMAT_STRING = "mini_profile_client_%s_seq";
+  public static final String MEMCACHE_CLIENT_KEY_FORMAT_STRING = "mini_profile_client_%s_%d";
+  /** How long a client's live results sequence is kept (seconds). */
+  public static final int CLIENT_SEQ_EXPIRY_SECONDS = 24 * 60 * 60;
 
   public static final String REQUEST_ID_HEADER = "X-Mini-Profile-Request-Id";
   public static final String REQUEST_ID_PARAM_REDIRECT = "_mprid_";
+  public static final String TRACK_RESOURCES_PARAM = "_mpres_";
   public static final String REQUEST_ID_ATTRIBUTE = "mini_profile_request_id";
   public static final String INCLUDES_ATTRIBUTE = "mini_profile_includes";
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+  public static final String CLIENT_ID_COOKIE = "mini_profile_client";
 
   protected static final String PROFILE_SERVLET_URL_KEY = "servletURL";
   protected static final String RESTRICT_TO_ADMINS_KEY = "restrictToAdmins";
@@ -57,40 +69,95 @@ public class MiniProfilerFilter implements Filter
   protected static final String RESTRICT_TO_URLS_KEY = "restrictToURLs";
   protected static final String DATA_EXPIRY_KEY = "dataExpiry";
   protected static final String HTML_ID_PREFIX_KEY = "htmlIdPrefix";
+  protected static final String TRACK_RESOURCES_KEY = "trackResources";
+  protected static final String SERVER_TIMING_STEPS_KEY = "serverTimingSteps";
+  protected static final String SERVER_TIMING_MAX_LENGTH_KEY = "serverTimingMaxLength";
+  protected static final String LIVE_RESULTS_KEY = "liveResults";
+  protected static final String ARCHIVE_KEY = "archive";
+  protected static final String ARCHIVE_BATCH_SIZE_KEY = "archiveBatchSize";
+  protected static final String ARCHIVE_MAX_DELAY_KEY = "archiveMaxDelay";
+  protected static final String BASELINES_KEY = "baselines";
+  protected static final String REGRESSION_THRESHOLD_KEY = "regressionThreshold";
+  protected static final String WATCHDOG_KEY = "watchdog";
+  protected static final String METRICS_KEY = "metrics";
+  protected static final String METRICS_REGISTRY_KEY = "metricsRegistry";
+  protected static final String MIN_STEP_MICROS_KEY = "minStepMicros";
+  protected static final String MAX_STEP_DEPTH_KEY = "maxStepDepth";
+  protected static final String CAPTURE_LOGS_KEY = "captureLogs";
+  protected static final String MAX_LOG_RECORDS_KEY = "maxLogRecords";
+  protected static final String MAX_LOG_MESSAGE_LENGTH_KEY = "maxLogMessageLength";
+  protected static final String SAMPLE_PERCENT_KEY = "samplePercent";
+  protected static final String CONFIG_POLL_SECONDS_KEY = "configPollSeconds";
 
   private static final String APPSTATS_HEADER = "X-TraceUrl";
   private static final String APPSTATS_ID_PARAM = "time";
+  /**
+   * Headers that may be added by a front-end (e.g. a load balancer) with the
+   * time that it received the request.
+   */
+  private static final String[] REQUEST_START_HEADERS = { "X-Request-Start", "X-Queue-Start" };
 
-  /** Whether this filter has been restricted to some sort of logged-in user. */
-  private boolean restricted = false;
-  /** Whether this filter is restricted to app admins only. */
-  private boolean restrictedToAdmins = false;
   /**
-   * The set of users app users that this filter should be restricted to. If
-   * empty, there are no restrictions.
+   * The number of requests that are currently being handled by this filter on
+   * this instance (whether they are being profiled or not), apart from
+   * requests to the results servlet.
    */
-  private Set<String> restrictedEmails = new HashSet<String>();
+  private static final AtomicInteger inFlight = new AtomicInteger();
+
   /**
-   * The set of regex patterns that the filter will be restricted to. Note that
-   * the filter's mapping in the web.xml will also affect the set of URLs that
-   * the filter will run on.
+   * The current snapshot of the settings that can be changed at runtime (the
+   * restrictions, sampling, expiry and thresholds). Each request reads this
+   * once, and it is replaced (never changed) when the settings change.
    */
-  private Set<Pattern> restrictedURLs = new HashSet<Pattern>();
+  private volatile MiniProfilerConfig currentConfig;
   /**
-   * The URL that the {@link MiniProfilerServlet} is mapped to.
+   * The settings from the init parameters, which the overrides in memcache are
+   * applied to.
    */
-  private String servletURL = "/gae_mini_profile/";
+  private Map<String, String> initSettings = new HashMap<String, String>();
+  /**
+   * How often (milliseconds) the overrides in memcache are checked. If this is
+   * 0, the settings can't be changed at runtime.
+   */
+  private long configPollMillis = 0;
+  /** When the overrides in memcache should next be checked. */
+  private AtomicLong nextConfigPoll = new AtomicLong();
   /**
-   * The number of seconds that profiling data will stick around for in
-   * memcache.
+   * The URL that the {@link MiniProfilerServlet} is mapped to.
    */
-  private int dataExpiry = 30;
+  private String servletURL = "/gae_mini_profile/";
   /**
    * The prefix for all HTML element ids/classes used in the profiler UI. This
    * must be the same value as the {@code htmlIdPrefix} field in
    * {@link MiniProfilerServlet}.
    */
   private String htmlIdPrefix = "mp";
+  /**
+   * Whether profiled requests should be recorded in a per-client sequence so
+   * that the UI can long-poll the {@link MiniProfilerServlet} for new requests
+   * (instead of fetching the results of each Ajax request separately).
+   */
+  private boolean liveResults = false;
+  /**
+   * Where profiles are archived in the datastore (so they are available after
+   * they expire from memcache). If null, profiles are not archived.
+   */
+  private MiniProfilerArchive archive;
+  /**
+   * The per-URL baselines that profiles are compared to (to detect
+   * regressions). If null, profiles are not compared.
+   */
+  private MiniProfilerBaselines baselines;
+  /**
+   * Whether to record the total time of every request (profiled or not) in
+   * {@link MiniProfilerMetrics}.
+   */
+  private boolean metrics = false;
+  /**
+   * The handler added to the root logger to capture the log records of
+   * profiled requests (or {@code null} if they aren't captured).
+   */
+  private MiniProfilerLogHandler logHandler;
 
   /**
    * The loader that will load the UI includes (scripts/css) for the profiler UI
@@ -117,57 +184,121 @@ public class MiniProfilerFilter implements Filter
     {
       servletURL = configServletURL;
     }
-    String configRestrictToAdmins = config.getInitParameter(RESTRICT_TO_ADMINS_KEY);
-    if (!isEmpty(configRestrictToAdmins) && Boolean.parseBoolean(configRestrictToAdmins))
-    {
-      restricted = true;
-      restrictedToAdmins = true;
-    }
-    String configRestrictToEmails = config.getInitParameter(RESTRICT_TO_EMAILS_KEY);
-    if (!isEmpty(configRestrictToEmails))
+    for (String key : MiniProfilerConfig.RELOADABLE_KEYS)
     {
-      restricted = true;
-      String[] emails = configRestrictToEmails.split(",");
-      for (String email : emails)
+      String value = config.getInitParameter(key);
+      if (value != null)
       {
-        restrictedEmails.add(email.trim());
+        initSettings.put(key, value);
       }
     }
-    String configDataExpiry = config.getInitParameter(DATA_EXPIRY_KEY);
-    if (!isEmpty(configDataExpiry))
+    try
+    {
+      currentConfig = new MiniProfilerConfig(initSettings, Collections.<String, String> emptyMap());
+    } catch (IllegalArgumentException e)
     {
-      dataExpiry = Integer.parseInt(configDataExpiry);
+      throw new ServletException("Invalid profiler settings", e);
     }
-    String configRestrictToURLs = config.getInitParameter(RESTRICT_TO_URLS_KEY);
-    if (!isEmpty(configRestrictToURLs))
+    String configConfigPollSeconds = config.getInitParameter(CONFIG_POLL_SECONDS_KEY);
+    if (!isEmpty(configConfigPollSeconds))
     {
-      for (String urlPattern : configRestrictToURLs.split(","))
-      {
-        urlPattern = urlPattern.trim();
-        if (!isEmpty(urlPattern))
-        {
-          restrictedURLs.add(Pattern.compile(urlPattern));
-        }
-      }
+      configPollMillis = Long.parseLong(configConfigPollSeconds.trim()) * 1000;
     }
     String configHtmlIdPrefix = config.getInitParameter(HTML_ID_PREFIX_KEY);
     if (!isEmpty(configHtmlIdPrefix))
     {
       htmlIdPrefix = configHtmlIdPrefix.trim();
     }
+    String configLiveResults = config.getInitParameter(LIVE_RESULTS_KEY);
+    if (!isEmpty(configLiveResults))
+    {
+      liveResults = Boolean.parseBoolean(configLiveResults.trim());
+    }
+    String configArchive = config.getInitParameter(ARCHIVE_KEY);
+    if (!isEmpty(configArchive) && Boolean.parseBoolean(configArchive.trim()))
+    {
+      int archiveBatchSize = 10;
+      String configArchiveBatchSize = config.getInitParameter(ARCHIVE_BATCH_SIZE_KEY);
+      if (!isEmpty(configArchiveBatchSize))
+      {
+        archiveBatchSize = Integer.parseInt(configArchiveBatchSize.trim());
+      }
+      int archiveMaxDelay = 60;
+      String configArchiveMaxDelay = config.getInitParameter(ARCHIVE_MAX_DELAY_KEY);
+      if (!isEmpty(configArchiveMaxDelay))
+      {
+        archiveMaxDelay = Integer.parseInt(configArchiveMaxDelay.trim());
+      }
+      archive = new MiniProfilerArchive(archiveBatchSize, archiveMaxDelay * 1000L);
+    }
+
+    String configCaptureLogs = config.getInitParameter(CAPTURE_LOGS_KEY);
+    if (!isEmpty(configCaptureLogs) && Boolean.parseBoolean(configCaptureLogs.trim()))
+    {
+      int maxLogRecords = MiniProfilerLogHandler.DEFAULT_MAX_RECORDS;
+      String configMaxLogRecords = config.getInitParameter(MAX_LOG_RECORDS_KEY);
+      if (!isEmpty(configMaxLogRecords))
+      {
+        maxLogRecords = Integer.parseInt(configMaxLogRecords.trim());
+      }
+      int maxLogMessageLength = MiniProfilerLogHandler.DEFAULT_MAX_MESSAGE_LENGTH;
+      String configMaxLogMessageLength = config.getInitParameter(MAX_LOG_MESSAGE_LENGTH_KEY);
+      if (!isEmpty(configMaxLogMessageLength))
+      {
+        maxLogMessageLength = Integer.parseInt(configMaxLogMessageLength.trim());
+      }
+      logHandler = new MiniProfilerLogHandler(maxLogRecords, maxLogMessageLength);
+      Logger.getLogger("").addHandler(logHandler);
+    }
+
+    String configMetrics = config.getInitParameter(METRICS_KEY);
+    if (!isEmpty(configMetrics))
+    {
+      metrics = Boolean.parseBoolean(configMetrics.trim());
+    }
+    String configMetricsRegistry = config.getInitParameter(METRICS_REGISTRY_KEY);
+    if (!isEmpty(configMetricsRegistry))
+    {
+      try
+      {
+        MiniProfilerMetrics.setRegistry((MiniProfilerMeterRegistry) Class.forName(configMetricsRegistry.trim()).newInstance());
+      } catch (Exception e)
+      {
+        throw new ServletException("Could not create the metrics registry " + configMetricsRegistry, e);
+      }
+    }
 
     ms = MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    String configBaselines = config.getInitParameter(BASELINES_KEY);
+    if (!isEmpty(configBaselines) && Boolean.parseBoolean(configBaselines.trim()))
+    {
+      int regressionThreshold = 30;
+      String configRegressionThreshold = config.getInitParameter(REGRESSION_THRESHOLD_KEY);
+      if (!isEmpty(configRegressionThreshold))
+      {
+        regressionThreshold = Integer.parseInt(configRegressionThreshold.trim());
+      }
+      baselines = new MiniProfilerBaselines(regressionThreshold / 100.0, ms);
+    }
     us = UserServiceFactory.getUserService();
     counter = new AtomicLong(1);
     resourceLoader = new MiniProfilerResourceLoader();
     resourceReplacements.put("@@baseURL@@", servletURL);
     resourceReplacements.put("@@prefix@@", htmlIdPrefix);
+    resourceReplacements.put("@@liveResults@@", String.valueOf(liveResults));
   }
 
   @Override
   public void destroy()
   {
-    // Nothing to destroy
+    if (logHandler != null)
+    {
+      Logger.getLogger("").removeHandler(logHandler);
+    }
+    if (archive != null)
+    {
+      archive.close();
+    }
   }
 
   /**
@@ -179,58 +310,409 @@ public class MiniProfilerFilter implements Filter
   {
     HttpServletRequest req = (HttpServletRequest) sReq;
     HttpServletResponse res = (HttpServletResponse) sRes;
-    if (shouldProfile(req.getRequestURI()))
+    // Requests to the results servlet (some of which are long-polls) aren't
+    // profiled, timed or counted as in flight
+    if (req.getRequestURI().startsWith(servletURL))
+    {
+      chain.doFilter(sReq, sRes);
+      return;
+    }
+
+    int concurrencyStart = inFlight.incrementAndGet();
+    long requestStart = metrics ? System.nanoTime() : 0;
+    MiniProfilerConfig config = getConfig();
+    try
     {
-      String queryString = req.getQueryString();
-      String requestId = String.valueOf(counter.incrementAndGet());
+      if (shouldProfile(req.getRequestURI(), config) || isProfiledTask(req))
+      {
+        doProfile(req, res, chain, concurrencyStart, config);
+      } else
+      {
+        chain.doFilter(sReq, sRes);
+      }
+    } finally
+    {
+      inFlight.decrementAndGet();
+      if (archive != null)
+      {
+        archive.flushIfDue();
+      }
+      if (metrics)
+      {
+        MiniProfilerMetrics.recordRequest(req.getRequestURI(), System.nanoTime() - requestStart);
+      }
+    }
+  }
+
+  /**
+   * Profile a request.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @param res
+   *          The current HTTP response.
+   * @param chain
+   *          The filter chain.
+   * @param concurrencyStart
+   *          The number of requests in flight on this instance when the request
+   *          started (including this one).
+   * @param config
+   *          The settings for the request.
+   */
+  private void doProfile(HttpServletRequest req, HttpServletResponse res, FilterChain chain, int concurrencyStart, MiniProfilerConfig config)
+      throws IOException, ServletException
+  {
+    String queryString = req.getQueryString();
+    String requestId = String.valueOf(counter.incrementAndGet());
 
-      String redirectRequestIds = null;
-      if (!isEmpty(queryString))
+    String redirectRequestIds = null;
+    boolean requestTrackResources = config.isTrackResources();
+    if (!isEmpty(queryString))
+    {
+      String[] parts = queryString.split("&");
+      for (String part : parts)
       {
-        String[] parts = queryString.split("&");
-        for (String part : parts)
+        String[] nameValue = part.split("=");
+        if (REQUEST_ID_PARAM_REDIRECT.equals(nameValue[0]))
         {
-          String[] nameValue = part.split("=");
-          if (REQUEST_ID_PARAM_REDIRECT.equals(nameValue[0]))
-          {
-            redirectRequestIds = nameValue[1];
-            break;
-          }
+          redirectRequestIds = nameValue[1];
+        } else if (TRACK_RESOURCES_PARAM.equals(nameValue[0]))
+        {
+          requestTrackResources = nameValue.length == 1 || "1".equals(nameValue[1]) || Boolean.parseBoolean(nameValue[1]);
         }
       }
+    }
+
+    req.setAttribute(REQUEST_ID_ATTRIBUTE, requestId);
+    res.addHeader(REQUEST_ID_HEADER, redirectRequestIds != null ? redirectRequestIds + "," + requestId : requestId);
 
-      req.setAttribute(REQUEST_ID_ATTRIBUTE, requestId);
-      res.addHeader(REQUEST_ID_HEADER, redirectRequestIds != null ? redirectRequestIds + "," + requestId : requestId);
+    String clientId = null;
+    long clientSeq = 0;
+    if (liveResults)
+    {
+      clientId = getClientId(req, res);
+      Long currentSeq = incrementClientSeq(clientId, 0);
+      clientSeq = currentSeq != null ? currentSeq : 0;
+    }
 
-      addIncludes(req);
+    addIncludes(req, clientSeq);
 
-      ResponseWrapper resWrapper = new ResponseWrapper(res, requestId, redirectRequestIds);
-      MiniProfiler.Profile profile = null;
-      long startTime = System.currentTimeMillis();
-      MiniProfiler.start();
-      try
+    ResponseWrapper resWrapper = new ResponseWrapper(res, requestId, redirectRequestIds, config.getServerTimingSteps() >= 0);
+    MiniProfiler.Profile profile = null;
+    List<Map<String, Object>> categories = null;
+    long startTime = System.currentTimeMillis();
+    long queueTime = getQueueTime(req, startTime);
+    int concurrencyEnd;
+    MiniProfiler.Root root = MiniProfiler.start(requestTrackResources);
+    root.setRequestId(requestId);
+    String parentId = MiniProfilerTasks.getParentId(req);
+    if (parentId != null)
+    {
+      MiniProfilerTasks.addChild(ms, parentId, requestId, config.getDataExpiry());
+    }
+    Watchdog requestWatchdog = startWatchdog(req, root, requestId, clientId, startTime, config);
+    boolean completed = false;
+    try
+    {
+      chain.doFilter(req, resWrapper);
+      completed = true;
+    } finally
+    {
+      profile = MiniProfiler.stop(config.getMinStepDuration(), config.getMaxStepDepth());
+      categories = root.getCategories();
+      concurrencyEnd = inFlight.get();
+      if (requestWatchdog != null)
       {
-        chain.doFilter(sReq, resWrapper);
-      } finally
+        requestWatchdog.cancel();
+      }
+      if (!completed)
       {
-        profile = MiniProfiler.stop();
+        // Still send whatever the request wrote before it failed (as it would
+        // have been without buffering) and store the profile (e.g. if it ran
+        // out of time), but don't hide the original error.
+        try
+        {
+          resWrapper.commit(null);
+        } catch (IOException e)
+        {
+          // Ignore
+        }
+        try
+        {
+          storeProfile(req, resWrapper, requestId, clientId, profile, categories, startTime, queueTime, concurrencyStart, concurrencyEnd,
+              requestWatchdog, config);
+        } catch (RuntimeException e)
+        {
+          // Ignore
+        }
       }
+    }
 
-      Map<String, Object> requestData = new HashMap<String, Object>();
-      requestData.put("requestURL", req.getRequestURI() + ((req.getQueryString() != null) ? "?" + req.getQueryString() : ""));
-      requestData.put("timestamp", startTime);
-      requestData.put("redirect", resWrapper.getDidRedirect());
-      String appstatsId = resWrapper.getAppstatsId();
-      if (appstatsId != null)
+    if (config.getServerTimingSteps() >= 0)
+    {
+      resWrapper.commit(getServerTimingHeader(profile, config.getServerTimingSteps(), config.getServerTimingMaxLength()));
+    }
+    storeProfile(req, resWrapper, requestId, clientId, profile, categories, startTime, queueTime, concurrencyStart, concurrencyEnd, requestWatchdog,
+        config);
+  }
+
+  /**
+   * Store the profile of a request (in memcache, and in the archive and
+   * baselines if they are enabled).
+   */
+  private void storeProfile(HttpServletRequest req, ResponseWrapper resWrapper, String requestId, String clientId, MiniProfiler.Profile profile,
+      List<Map<String, Object>> categories, long startTime, long queueTime, int concurrencyStart, int concurrencyEnd, Watchdog requestWatchdog,
+      MiniProfilerConfig config)
+  {
+    if (baselines != null)
+    {
+      baselines.record(req.getRequestURI(), profile);
+    }
+
+    Map<String, Object> requestData = getRequestData(req, startTime, profile);
+    requestData.put("redirect", resWrapper.getDidRedirect());
+    if (baselines != null)
+    {
+      requestData.put("regressionThreshold", baselines.getThreshold());
+    }
+    String appstatsId = resWrapper.getAppstatsId();
+    if (appstatsId != null)
+    {
+      requestData.put("appstatsId", appstatsId);
+    }
+    if (categories != null)
+    {
+      requestData.put("categories", categories);
+    }
+    requestData.put("concurrencyStart", concurrencyStart);
+    requestData.put("concurrencyEnd", concurrencyEnd);
+    if (queueTime >= 0)
+    {
+      requestData.put("queueTime", queueTime);
+    }
+    MiniProfilerStore.put(ms, String.format(MEMCACHE_KEY_FORMAT_STRING, requestId), requestData, Expiration.byDeltaSeconds(config.getDataExpiry()),
+        MemcacheService.SetPolicy.SET_ALWAYS);
+    if (archive != null)
+    {
+      archive.add(requestId, us.isUserLoggedIn() ? us.getCurrentUser().getEmail() : null, requestData);
+    }
+
+    // The watchdog will already have told the client about the request
+    if (clientId != null && (requestWatchdog == null || !requestWatchdog.stored))
+    {
+      addClientRequest(clientId, requestId, config.getDataExpiry());
+    }
+  }
+
+  /**
+   * Build the request data that is stored for a profile.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @param startTime
+   *          When the request started (milliseconds since the epoch).
+   * @param profile
+   *          The profile.
+   * @return The request data.
+   */
+  private static Map<String, Object> getRequestData(HttpServletRequest req, long startTime, MiniProfiler.Profile profile)
+  {
+    Map<String, Object> requestData = new HashMap<String, Object>();
+    requestData.put("requestURL", req.getRequestURI() + ((req.getQueryString() != null) ? "?" + req.getQueryString() : ""));
+    requestData.put("timestamp", startTime);
+    requestData.put("redirect", false);
+    requestData.put("profile", profile);
+    String parentId = MiniProfilerTasks.getParentId(req);
+    if (parentId != null)
+    {
+      requestData.put("parentId", parentId);
+      requestData.put("queueName", MiniProfilerTasks.getQueueName(req));
+    }
+    return requestData;
+  }
+
+  /**
+   * Add a request to the sequence of requests made by a client (used for live
+   * results).
+   * 
+   * @param clientId
+   *          The client id.
+   * @param requestId
+   *          The request id.
+   * @param dataExpiry
+   *          How long the request is kept (seconds).
+   */
+  private void addClientRequest(String clientId, String requestId, int dataExpiry)
+  {
+    Long seq = incrementClientSeq(clientId, 1);
+    if (seq != null)
+    {
+      ms.put(String.format(MEMCACHE_CLIENT_KEY_FORMAT_STRING, clientId, seq), requestId, Expiration.byDeltaSeconds(dataExpiry));
+    }
+  }
+
+  /**
+   * Increment the live results sequence number of a client. The sequence is
+   * created with an expiry first (memcache increments never expire), so that
+   * clients that go away don't leave their sequence behind.
+   * 
+   * @param clientId
+   *          The client id.
+   * @param delta
+   *          How much to increment the sequence by.
+   * @return The new sequence number (or {@code null} if memcache failed).
+   */
+  private Long incrementClientSeq(String clientId, long delta)
+  {
+    String seqKey = String.format(MEMCACHE_CLIENT_SEQ_KEY_FORMAT_STRING, clientId);
+    ms.put(seqKey, 0L, Expiration.byDeltaSeconds(CLIENT_SEQ_EXPIRY_SECONDS), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return ms.increment(seqKey, delta);
+  }
+
+  /**
+   * Start a watchdog for the current request if the watchdog is enabled and
+   * the request has a deadline.
+   * 
+   * @return The watchdog, or {@code null} if there isn't one.
+   */
+  private Watchdog startWatchdog(HttpServletRequest req, MiniProfiler.Root root, String requestId, String clientId, long startTime,
+      MiniProfilerConfig config)
+  {
+    if (config.getWatchdog() <= 0)
+    {
+      return null;
+    }
+    ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    long remainingMillis = env != null ? env.getRemainingMillis() : 0;
+    if (remainingMillis <= 0 || remainingMillis == Long.MAX_VALUE)
+    {
+      return null;
+    }
+    Watchdog result = new Watchdog(getRequestData(req, startTime, null), root, requestId, clientId, remainingMillis * config.getWatchdog() / 100,
+        config.getDataExpiry());
+    try
+    {
+      ThreadManager.createThreadForCurrentRequest(result).start();
+    } catch (RuntimeException e)
+    {
+      // Threads can't be created for this request
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Get how long a request waited before it reached this filter, using the
+   * request start time added by a front-end (e.g. a load balancer) if there is
+   * one.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @param now
+   *          The current time (milliseconds since the epoch).
+   * @return The time (milliseconds), or -1 if it is not known.
+   */
+  protected static long getQueueTime(HttpServletRequest req, long now)
+  {
+    for (String header : REQUEST_START_HEADERS)
+    {
+      long start = parseRequestStart(req.getHeader(header));
+      if (start > 0)
       {
-        requestData.put("appstatsId", appstatsId);
+        return Math.max(0, now - start);
       }
-      requestData.put("profile", profile);
-      ms.put(String.format(MEMCACHE_KEY_FORMAT_STRING, requestId), requestData, Expiration.byDeltaSeconds(dataExpiry));
+    }
+    return -1;
+  }
+
+  /**
+   * Parse a request start header. The value may be prefixed with {@code t=}
+   * and may be in seconds, milliseconds or microseconds since the epoch.
+   * 
+   * @param value
+   *          The header value.
+   * @return The request start time (milliseconds since the epoch), or -1 if
+   *         the value couldn't be parsed.
+   */
+  protected static long parseRequestStart(String value)
+  {
+    if (isEmpty(value))
+    {
+      return -1;
+    }
+    value = value.trim();
+    if (value.startsWith("t="))
+    {
+      value = value.substring(2);
+    }
+    double start;
+    try
+    {
+      start = Double.parseDouble(value);
+    } catch (NumberFormatException e)
+    {
+      return -1;
+    }
+    if (start > 1e15)
+    {
+      // Microseconds
+      return (long) (start / 1000);
+    } else if (start > 1e11)
+    {
+      // Milliseconds
+      return (long) start;
     } else
     {
-      chain.doFilter(sReq, sRes);
+      // Seconds
+      return (long) (start * 1000);
+    }
+  }
+
+  /**
+   * Get the id used to group the profiled requests made by a single browser
+   * (used for live results). If the browser doesn't have one yet, a new one is
+   * generated and set as a cookie.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @param res
+   *          The current HTTP response.
+   * @return The client id.
+   */
+  private static String getClientId(HttpServletRequest req, HttpServletResponse res)
+  {
+    String clientId = getClientId(req);
+    if (clientId == null)
+    {
+      clientId = UUID.randomUUID().toString().replace("-", "");
+      Cookie cookie = new Cookie(CLIENT_ID_COOKIE, clientId);
+      cookie.setPath("/");
+      res.addCookie(cookie);
     }
+    return clientId;
+  }
+
+  /**
+   * Get the client id (used for live results) sent by the browser, if any.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @return The client id, or {@code null} if there isn't one.
+   */
+  protected static String getClientId(HttpServletRequest req)
+  {
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null)
+    {
+      for (Cookie cookie : cookies)
+      {
+        if (CLIENT_ID_COOKIE.equals(cookie.getName()) && !isEmpty(cookie.getValue()))
+        {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
   }
 
   /**
@@ -239,8 +721,11 @@ public class MiniProfilerFilter implements Filter
    * 
    * @param req
    *          The current HTTP request.
+   * @param clientSeq
+   *          The latest live results sequence number for the client at the
+   *          start of the request.
    */
-  private void addIncludes(HttpServletRequest req)
+  private void addIncludes(HttpServletRequest req, long clientSeq)
   {
     String result = null;
     String requestId = (String) req.getAttribute(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE);
@@ -249,7 +734,7 @@ public class MiniProfilerFilter implements Filter
       String includesTemplate = resourceLoader.getResource("mini_profiler.html", resourceReplacements);
       if (includesTemplate != null)
       {
-        result = includesTemplate.replace("@@requestId@@", requestId);
+        result = includesTemplate.replace("@@requestId@@", requestId).replace("@@clientSeq@@", String.valueOf(clientSeq));
       }
     }
     if (!isEmpty(result))
@@ -267,6 +752,21 @@ public class MiniProfilerFilter implements Filter
    * @return Whether the URL should be profiled.
    */
   public boolean shouldProfile(String url)
+  {
+    return shouldProfile(url, getConfig());
+  }
+
+  /**
+   * Whether the specified URL should be profiled given a snapshot of the
+   * filter's settings.
+   * 
+   * @param url
+   *          The URL to check.
+   * @param config
+   *          The settings.
+   * @return Whether the URL should be profiled.
+   */
+  private boolean shouldProfile(String url, MiniProfilerConfig config)
   {
     // Don't profile requests to to results servlet
     if (url.startsWith(servletURL))
@@ -274,6 +774,25 @@ public class MiniProfilerFilter implements Filter
       return false;
     }
 
+    // The cheapest checks go first, since most requests aren't profiled. The
+    // user is read straight from the environment (which is what the
+    // UserService does) so that no User is created for each request.
+    ApiProxy.Environment env = null;
+    if (config.isRestricted())
+    {
+      env = ApiProxy.getCurrentEnvironment();
+      if (env == null || !env.isLoggedIn())
+      {
+        return false;
+      }
+    }
+
+    if (config.getSampleRate() < 1 && Math.random() >= config.getSampleRate())
+    {
+      return false;
+    }
+
+    List<Pattern> restrictedURLs = config.getRestrictedURLs();
     if (!restrictedURLs.isEmpty())
     {
       boolean matches = false;
@@ -282,6 +801,7 @@ public class MiniProfilerFilter implements Filter
         if (p.matcher(url).find())
         {
           matches = true;
+          break;
         }
       }
       if (!matches)
@@ -290,24 +810,168 @@ public class MiniProfilerFilter implements Filter
       }
     }
 
-    if (restricted)
+    return env == null || isAuthorized(env.getEmail(), env.isAdmin(), config);
+  }
+
+  /**
+   * Whether a logged-in user is allowed to be profiled.
+   * 
+   * @param email
+   *          The user's email.
+   * @param admin
+   *          Whether the user is an app admin.
+   * @param config
+   *          The settings.
+   * @return Whether the user is allowed to be profiled.
+   */
+  private boolean isAuthorized(String email, boolean admin, MiniProfilerConfig config)
+  {
+    if (config.isRestrictedToAdmins() && !admin)
+    {
+      return false;
+    }
+    Set<String> restrictedEmails = config.getRestrictedEmails();
+    return restrictedEmails.isEmpty() || restrictedEmails.contains(email);
+  }
+
+  /**
+   * Get the current snapshot of the settings, first picking up any overrides
+   * that have been stored in memcache if it is time to check for them (see
+   * {@link MiniProfilerConfig}). Only one request at a time checks, and the
+   * others keep using the current snapshot.
+   * 
+   * @return The settings.
+   */
+  protected MiniProfilerConfig getConfig()
+  {
+    MiniProfilerConfig config = currentConfig;
+    if (configPollMillis > 0)
     {
-      if (us.isUserLoggedIn())
+      long now = System.currentTimeMillis();
+      long next = nextConfigPoll.get();
+      if (now >= next && nextConfigPoll.compareAndSet(next, now + configPollMillis))
       {
-        if (restrictedToAdmins && !us.isUserAdmin())
+        try
         {
-          return false;
+          Map<String, String> overrides = MiniProfilerConfig.getOverrides(ms);
+          if (!overrides.equals(config.getOverrides()))
+          {
+            config = new MiniProfilerConfig(initSettings, overrides);
+            currentConfig = config;
+          }
+        } catch (RuntimeException e)
+        {
+          // Keep the current settings if memcache isn't available or the
+          // overrides aren't valid
         }
-        if (!restrictedEmails.isEmpty() && !restrictedEmails.contains(us.getCurrentUser().getEmail()))
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Whether a request is a task that was enqueued by a profiled request (see
+   * {@link MiniProfilerTasks}). These are profiled even if profiling is
+   * restricted, so that they can be linked to the request that enqueued them.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @return Whether the request should be profiled as a task.
+   */
+  private boolean isProfiledTask(HttpServletRequest req)
+  {
+    return MiniProfilerTasks.getParentId(req) != null && !req.getRequestURI().startsWith(servletURL);
+  }
+
+  /**
+   * Build the value of the {@code Server-Timing} header for a profile.
+   * <p>
+   * The header contains the total duration of the request and the durations of
+   * the slowest top-level steps (slowest first). Steps are left off the end if
+   * they would make the header longer than the maximum length.
+   * 
+   * @param profile
+   *          The profile data.
+   * @param maxSteps
+   *          The maximum number of top-level steps to include.
+   * @param maxLength
+   *          The maximum length of the header value.
+   * @return The header value, or {@code null} if there is no profile data.
+   */
+  protected static String getServerTimingHeader(MiniProfiler.Profile profile, int maxSteps, int maxLength)
+  {
+    if (profile == null)
+    {
+      return null;
+    }
+    StringBuilder result = new StringBuilder();
+    result.append("total;dur=").append(formatMillis(profile.getDuration()));
+    if (maxSteps > 0 && !profile.getChildren().isEmpty())
+    {
+      List<MiniProfiler.Profile> steps = new ArrayList<MiniProfiler.Profile>(profile.getChildren());
+      Collections.sort(steps, new Comparator<MiniProfiler.Profile>()
+      {
+        @Override
+        public int compare(MiniProfiler.Profile a, MiniProfiler.Profile b)
         {
-          return false;
+          return a.getDuration() < b.getDuration() ? 1 : (a.getDuration() > b.getDuration() ? -1 : 0);
         }
-      } else
+      });
+      for (int i = 0; i < steps.size() && i < maxSteps; i++)
       {
-        return false;
+        MiniProfiler.Profile step = steps.get(i);
+        String metric = String.format(", s%d;desc=\"%s\";dur=%s", step.getId(), headerQuote(step.getName()), formatMillis(step.getDuration()));
+        if (result.length() + metric.length() > maxLength)
+        {
+          break;
+        }
+        result.append(metric);
       }
     }
-    return true;
+    return result.toString();
+  }
+
+  /**
+   * Format a duration in nanoseconds as milliseconds.
+   * 
+   * @param nanos
+   *          The duration in nanoseconds.
+   * @return The duration in milliseconds (with two decimal places).
+   */
+  private static String formatMillis(long nanos)
+  {
+    return String.format(Locale.US, "%.2f", nanos / 1000000.0);
+  }
+
+  /**
+   * Make the specified string safe to put in a quoted header value.
+   * 
+   * @param str
+   *          The string.
+   * @return The string with quotes/backslashes escaped and control or
+   *         non-ASCII characters replaced.
+   */
+  private static String headerQuote(String str)
+  {
+    StringBuilder result = new StringBuilder();
+    if (str != null)
+    {
+      for (int i = 0; i < str.length(); i++)
+      {
+        char c = str.charAt(i);
+        if (c == '"' || c == '\\')
+        {
+          result.append('\\').append(c);
+        } else if (c < 0x20 || c > 0x7e)
+        {
+          result.append('?');
+        } else
+        {
+          result.append(c);
+        }
+      }
+    }
+    return result.toString();
   }
 
   /**
@@ -340,6 +1004,125 @@ public class MiniProfilerFilter implements Filter
     }
   }
 
+  /**
+   * Stores a snapshot of the profile of a request once the request has used up
+   * a certain amount of its deadline, in case the request never finishes (e.g.
+   * because of a {@code DeadlineExceededException}). The snapshot is taken
+   * from another thread while the request keeps running, and is marked as
+   * partial. If the request does finish, its full profile replaces the
+   * snapshot.
+   */
+  private class Watchdog implements Runnable
+  {
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int STORING = 2;
+
+    private Map<String, Object> requestData;
+    private MiniProfiler.Root root;
+    private String requestId;
+    private String clientId;
+    private long delayMillis;
+    private int dataExpiry;
+    private CountDownLatch finished = new CountDownLatch(1);
+    /** Counted down once a snapshot that was started has been stored. */
+    private CountDownLatch storing = new CountDownLatch(1);
+    /**
+     * Whether the watchdog is waiting, has been cancelled or is storing a
+     * snapshot (only one of cancelling and storing can win).
+     */
+    private AtomicInteger state = new AtomicInteger(WAITING);
+    /**
+     * Whether the snapshot was stored (only read after {@link #cancel()} has
+     * returned).
+     */
+    private volatile boolean stored;
+
+    public Watchdog(Map<String, Object> requestData, MiniProfiler.Root root, String requestId, String clientId, long delayMillis, int dataExpiry)
+    {
+      this.requestData = requestData;
+      this.root = root;
+      this.requestId = requestId;
+      this.clientId = clientId;
+      this.delayMillis = delayMillis;
+      this.dataExpiry = dataExpiry;
+    }
+
+    /**
+     * Stop the watchdog (the request has finished). If the watchdog has already
+     * started storing a snapshot, this waits for it to finish, so that
+     * {@link #stored} is final once this returns.
+     */
+    public void cancel()
+    {
+      finished.countDown();
+      if (!state.compareAndSet(WAITING, CANCELLED))
+      {
+        try
+        {
+          storing.await();
+        } catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        if (finished.await(delayMillis, TimeUnit.MILLISECONDS))
+        {
+          return;
+        }
+      } catch (InterruptedException e)
+      {
+        return;
+      }
+      if (!state.compareAndSet(WAITING, STORING))
+      {
+        // The request finished just as the watchdog woke up
+        return;
+      }
+      try
+      {
+        store();
+      } finally
+      {
+        storing.countDown();
+      }
+    }
+
+    /**
+     * Store a snapshot of the profile so far.
+     */
+    private void store()
+    {
+      MiniProfiler.Profile snapshot = root.snapshot();
+      List<String> stack = new ArrayList<String>();
+      for (MiniProfiler.Profile step = snapshot; step != null && step.isRunning();)
+      {
+        stack.add(step.getName());
+        List<MiniProfiler.Profile> children = step.getChildren();
+        step = children.isEmpty() ? null : children.get(children.size() - 1);
+      }
+      requestData.put("profile", snapshot);
+      requestData.put("partial", true);
+      requestData.put("stack", stack);
+      requestData.put("categories", root.getCategories());
+
+      // Don't replace the full profile if the request has just finished
+      stored = MiniProfilerStore.put(ms, String.format(MEMCACHE_KEY_FORMAT_STRING, requestId), requestData, Expiration.byDeltaSeconds(dataExpiry),
+          MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      if (stored && clientId != null)
+      {
+        addClientRequest(clientId, requestId, dataExpiry);
+      }
+    }
+  }
+
   /**
    * A response wrapper that:
    * <ul>
@@ -347,6 +1130,8 @@ public class MiniProfilerFilter implements Filter
    * programmatically
    * <li>Detects redirects and adds the current request's profiling id to a
    * request parameter used by the UI to display previous redirected requests.
+   * <li>Optionally buffers the response body so that headers containing
+   * profiling data can be added after the request has been processed.
    * </ul>
    */
   private static class ResponseWrapper extends HttpServletResponseWrapper
@@ -355,13 +1140,165 @@ public class MiniProfilerFilter implements Filter
     private String requestId;
     private String redirectRequestIds;
     private boolean didRedirect;
+    /** Whether the response body is being buffered until {@link #commit}. */
+    private boolean deferCommit;
+    /** The buffered response body (if deferring the commit). */
+    private ByteArrayOutputStream buffer;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
 
-    public ResponseWrapper(HttpServletResponse response, String requestId, String redirectRequestIds)
+    public ResponseWrapper(HttpServletResponse response, String requestId, String redirectRequestIds, boolean deferCommit)
     {
       super(response);
       this.requestId = requestId;
       this.redirectRequestIds = redirectRequestIds;
+      this.deferCommit = deferCommit;
       didRedirect = false;
+      if (deferCommit)
+      {
+        buffer = new ByteArrayOutputStream();
+      }
+    }
+
+    /**
+     * Add the specified header and write out the buffered response body.
+     * <p>
+     * The header and body are only written if the response hasn't already been
+     * committed by a redirect or error (the container ignores anything written
+     * after those).
+     * 
+     * @param serverTiming
+     *          The value of the {@code Server-Timing} header (may be null).
+     */
+    public void commit(String serverTiming) throws IOException
+    {
+      if (!deferCommit)
+      {
+        return;
+      }
+      deferCommit = false;
+      if (writer != null)
+      {
+        writer.flush();
+      }
+      if (!isCommitted())
+      {
+        if (serverTiming != null)
+        {
+          super.setHeader(SERVER_TIMING_HEADER, serverTiming);
+        }
+        if (buffer.size() > 0)
+        {
+          buffer.writeTo(super.getOutputStream());
+        }
+      }
+      buffer = null;
+    }
+
+    /**
+     * Discard the buffered response body, since redirects and errors clear the
+     * response buffer.
+     */
+    private void discardBuffer()
+    {
+      if (deferCommit)
+      {
+        if (writer != null)
+        {
+          writer.flush();
+        }
+        buffer.reset();
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+      if (!deferCommit)
+      {
+        return super.getOutputStream();
+      }
+      if (writer != null)
+      {
+        throw new IllegalStateException("getWriter() has already been called on this response");
+      }
+      if (outputStream == null)
+      {
+        outputStream = new ServletOutputStream()
+        {
+          @Override
+          public void write(int b) throws IOException
+          {
+            buffer.write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException
+          {
+            buffer.write(b, off, len);
+          }
+        };
+      }
+      return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+      if (!deferCommit)
+      {
+        return super.getWriter();
+      }
+      if (outputStream != null)
+      {
+        throw new IllegalStateException("getOutputStream() has already been called on this response");
+      }
+      if (writer == null)
+      {
+        writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    /**
+     * Flushing is a no-op while the body is being buffered (it would commit
+     * the response).
+     */
+    @Override
+    public void flushBuffer() throws IOException
+    {
+      if (!deferCommit)
+      {
+        super.flushBuffer();
+      }
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+      super.resetBuffer();
+      discardBuffer();
+    }
+
+    @Override
+    public void reset()
+    {
+      super.reset();
+      discardBuffer();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException
+    {
+      discardBuffer();
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException
+    {
+      discardBuffer();
+      super.sendError(sc, msg);
     }
 
     /**
@@ -429,6 +1366,7 @@ public class MiniProfilerFilter implements Filter
         location = String.format("%s%s%s=%s", location, location.indexOf("?") >= 0 ? "&" : "?", REQUEST_ID_PARAM_REDIRECT,
             urlEncode(redirectRequestIds != null ? redirectRequestIds + "," + requestId : requestId));
       }
+      discardBuffer();
       super.sendRedirect(location);
     }
   }
@@ -0,0 +1,735 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.urlfetch.*;
+
+/**
+ * Wraps a {@link URLFetchService} or {@link HttpURLConnection} so that each
+ * outbound HTTP call is recorded as a {@link MiniProfiler} step.
+ * 
+ * <pre>
+ * URLFetchService fetch = MiniProfilerHttp.wrap(URLFetchServiceFactory.getURLFetchService());
+ * HttpURLConnection c = MiniProfilerHttp.wrap((HttpURLConnection) url.openConnection());
+ * </pre>
+ * 
+ * Each step is named after the method and host (e.g.
+ * {@code HTTP GET api.example.com}) and has these details:
+ * <ul>
+ * <li>{@code url} - The URL.
+ * <li>{@code status} - The response status code.
+ * <li>{@code requestBytes} - The size of the request body.
+ * <li>{@code responseBytes} - The size of the response body.
+ * <li>{@code firstByteTime} - How long it took for the response to start
+ * (nanoseconds). This is only known for {@code HttpURLConnection}s, since
+ * URLFetch reads the whole response at once.
+ * <li>{@code error} - The exception if the call failed.
+ * </ul>
+ * Blocking fetches are normal steps. Calls made with
+ * {@link URLFetchService#fetchAsync(HTTPRequest)} and {@code HttpURLConnection}
+ * s (whose response may be read long after the call starts) are async steps
+ * (see {@link MiniProfiler#asyncStep(String)}), so they show up as overlapping
+ * the work done while they run. An async fetch is finished when its response
+ * is first retrieved from the {@code Future}, and a connection when its
+ * response has been read. Calls that are still open when the request finishes
+ * are marked as running.
+ */
+public class MiniProfilerHttp
+{
+  /**
+   * Wrap a URLFetch service so that its fetches are profiled.
+   * 
+   * @param service
+   *          The URLFetch service.
+   * @return The wrapped service.
+   */
+  public static URLFetchService wrap(URLFetchService service)
+  {
+    return new ProfiledURLFetchService(service);
+  }
+
+  /**
+   * Wrap a connection so that it is profiled. This should be done before the
+   * connection is connected.
+   * 
+   * @param connection
+   *          The connection.
+   * @return The wrapped connection.
+   */
+  public static HttpURLConnection wrap(HttpURLConnection connection)
+  {
+    return new ProfiledHttpURLConnection(connection);
+  }
+
+  /**
+   * Start the step for a call.
+   * 
+   * @param async
+   *          Whether the call may still be running when the caller moves on.
+   */
+  private static MiniProfiler.Step startStep(String method, URL url, boolean async)
+  {
+    String name = "HTTP " + method + " " + url.getHost();
+    MiniProfiler.Step step = async ? MiniProfiler.asyncStep(name, MiniProfiler.HTTP) : MiniProfiler.step(name, MiniProfiler.HTTP);
+    step.setDetail("url", url.toString());
+    return step;
+  }
+
+  /**
+   * Profiles the fetches made with a URLFetch service.
+   */
+  private static class ProfiledURLFetchService implements URLFetchService
+  {
+    private URLFetchService service;
+
+    public ProfiledURLFetchService(URLFetchService service)
+    {
+      this.service = service;
+    }
+
+    @Override
+    public HTTPResponse fetch(URL url) throws IOException
+    {
+      return fetch(new HTTPRequest(url));
+    }
+
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException
+    {
+      MiniProfiler.Step step = startFetch(request, false);
+      try
+      {
+        HTTPResponse response = service.fetch(request);
+        finishFetch(step, response);
+        return response;
+      } catch (IOException e)
+      {
+        step.setDetail("error", e.toString());
+        throw e;
+      } finally
+      {
+        step.close();
+      }
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(URL url)
+    {
+      return fetchAsync(new HTTPRequest(url));
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(HTTPRequest request)
+    {
+      MiniProfiler.Step step = startFetch(request, true);
+      return new ProfiledFuture(service.fetchAsync(request), step);
+    }
+
+    private static MiniProfiler.Step startFetch(HTTPRequest request, boolean async)
+    {
+      MiniProfiler.Step step = startStep(request.getMethod().name(), request.getURL(), async);
+      step.setDetail("requestBytes", request.getPayload() != null ? request.getPayload().length : 0);
+      return step;
+    }
+
+    private static void finishFetch(MiniProfiler.Step step, HTTPResponse response)
+    {
+      step.setDetail("status", response.getResponseCode());
+      step.setDetail("responseBytes", response.getContent() != null ? response.getContent().length : 0);
+    }
+  }
+
+  /**
+   * Finishes the step of an async fetch when its response is retrieved.
+   */
+  private static class ProfiledFuture implements Future<HTTPResponse>
+  {
+    private Future<HTTPResponse> future;
+    private MiniProfiler.Step step;
+
+    public ProfiledFuture(Future<HTTPResponse> future, MiniProfiler.Step step)
+    {
+      this.future = future;
+      this.step = step;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      boolean result = future.cancel(mayInterruptIfRunning);
+      if (result)
+      {
+        step.setDetail("error", "Cancelled");
+        step.close();
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return future.isDone();
+    }
+
+    @Override
+    public HTTPResponse get() throws InterruptedException, ExecutionException
+    {
+      try
+      {
+        return finish(future.get());
+      } catch (ExecutionException e)
+      {
+        step.setDetail("error", String.valueOf(e.getCause()));
+        step.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public HTTPResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+      try
+      {
+        return finish(future.get(timeout, unit));
+      } catch (ExecutionException e)
+      {
+        step.setDetail("error", String.valueOf(e.getCause()));
+        step.close();
+        throw e;
+      }
+    }
+
+    private HTTPResponse finish(HTTPResponse response)
+    {
+      // Closing the step more than once does nothing
+      ProfiledURLFetchService.finishFetch(step, response);
+      step.close();
+      return response;
+    }
+  }
+
+  /**
+   * Profiles an {@link HttpURLConnection}. The step starts when the connection
+   * is first used, and finishes when the response has been read (or the
+   * connection is disconnected).
+   */
+  private static class ProfiledHttpURLConnection extends HttpURLConnection
+  {
+    private HttpURLConnection connection;
+    private MiniProfiler.Step step;
+    private long startTime;
+    private long firstByteTime = -1;
+    private boolean finished;
+    private CountingOutputStream requestBody;
+    private long responseBytes;
+
+    public ProfiledHttpURLConnection(HttpURLConnection connection)
+    {
+      super(connection.getURL());
+      this.connection = connection;
+    }
+
+    /**
+     * Start the step (if it hasn't been started yet).
+     */
+    private void start()
+    {
+      if (step == null)
+      {
+        step = startStep(connection.getRequestMethod(), connection.getURL(), true);
+        startTime = System.nanoTime();
+      }
+    }
+
+    /**
+     * Record that the response has started (if it hasn't been recorded yet).
+     */
+    private void responseStarted()
+    {
+      if (firstByteTime < 0 && step != null)
+      {
+        firstByteTime = System.nanoTime() - startTime;
+        step.setDetail("firstByteTime", firstByteTime);
+        try
+        {
+          step.setDetail("status", connection.getResponseCode());
+        } catch (IOException e)
+        {
+          // No status
+        }
+      }
+    }
+
+    /**
+     * Finish the step (if it hasn't been finished yet).
+     */
+    private void finish(IOException error)
+    {
+      if (step != null && !finished)
+      {
+        finished = true;
+        step.setDetail("requestBytes", requestBody != null ? requestBody.count : 0);
+        step.setDetail("responseBytes", responseBytes);
+        if (error != null)
+        {
+          step.setDetail("error", error.toString());
+        }
+        step.close();
+      }
+    }
+
+    @Override
+    public void connect() throws IOException
+    {
+      start();
+      try
+      {
+        connection.connect();
+      } catch (IOException e)
+      {
+        finish(e);
+        throw e;
+      }
+    }
+
+    @Override
+    public void disconnect()
+    {
+      connection.disconnect();
+      finish(null);
+    }
+
+    @Override
+    public boolean usingProxy()
+    {
+      return connection.usingProxy();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+      start();
+      if (requestBody == null)
+      {
+        try
+        {
+          requestBody = new CountingOutputStream(connection.getOutputStream());
+        } catch (IOException e)
+        {
+          finish(e);
+          throw e;
+        }
+      }
+      return requestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+      start();
+      try
+      {
+        InputStream in = connection.getInputStream();
+        responseStarted();
+        return new CountingInputStream(in);
+      } catch (IOException e)
+      {
+        responseStarted();
+        // The body may still be read from the error stream
+        if (connection.getErrorStream() == null)
+        {
+          finish(e);
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public InputStream getErrorStream()
+    {
+      InputStream in = connection.getErrorStream();
+      return in != null && step != null ? new CountingInputStream(in) : in;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException
+    {
+      start();
+      try
+      {
+        int result = connection.getResponseCode();
+        responseStarted();
+        return result;
+      } catch (IOException e)
+      {
+        finish(e);
+        throw e;
+      }
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException
+    {
+      start();
+      String result = connection.getResponseMessage();
+      responseStarted();
+      return result;
+    }
+
+    @Override
+    public String getHeaderField(String name)
+    {
+      start();
+      String result = connection.getHeaderField(name);
+      responseStarted();
+      return result;
+    }
+
+    @Override
+    public String getHeaderField(int n)
+    {
+      start();
+      String result = connection.getHeaderField(n);
+      responseStarted();
+      return result;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n)
+    {
+      start();
+      String result = connection.getHeaderFieldKey(n);
+      responseStarted();
+      return result;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields()
+    {
+      start();
+      Map<String, List<String>> result = connection.getHeaderFields();
+      responseStarted();
+      return result;
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException
+    {
+      connection.setRequestMethod(method);
+    }
+
+    @Override
+    public String getRequestMethod()
+    {
+      return connection.getRequestMethod();
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value)
+    {
+      connection.setRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value)
+    {
+      connection.addRequestProperty(key, value);
+    }
+
+    @Override
+    public String getRequestProperty(String key)
+    {
+      return connection.getRequestProperty(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties()
+    {
+      return connection.getRequestProperties();
+    }
+
+    @Override
+    public void setDoInput(boolean doInput)
+    {
+      connection.setDoInput(doInput);
+    }
+
+    @Override
+    public boolean getDoInput()
+    {
+      return connection.getDoInput();
+    }
+
+    @Override
+    public void setDoOutput(boolean doOutput)
+    {
+      connection.setDoOutput(doOutput);
+    }
+
+    @Override
+    public boolean getDoOutput()
+    {
+      return connection.getDoOutput();
+    }
+
+    @Override
+    public void setUseCaches(boolean useCaches)
+    {
+      connection.setUseCaches(useCaches);
+    }
+
+    @Override
+    public boolean getUseCaches()
+    {
+      return connection.getUseCaches();
+    }
+
+    @Override
+    public void setAllowUserInteraction(boolean allowUserInteraction)
+    {
+      connection.setAllowUserInteraction(allowUserInteraction);
+    }
+
+    @Override
+    public boolean getAllowUserInteraction()
+    {
+      return connection.getAllowUserInteraction();
+    }
+
+    @Override
+    public void setIfModifiedSince(long ifModifiedSince)
+    {
+      connection.setIfModifiedSince(ifModifiedSince);
+    }
+
+    @Override
+    public long getIfModifiedSince()
+    {
+      return connection.getIfModifiedSince();
+    }
+
+    @Override
+    public void setConnectTimeout(int timeout)
+    {
+      connection.setConnectTimeout(timeout);
+    }
+
+    @Override
+    public int getConnectTimeout()
+    {
+      return connection.getConnectTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(int timeout)
+    {
+      connection.setReadTimeout(timeout);
+    }
+
+    @Override
+    public int getReadTimeout()
+    {
+      return connection.getReadTimeout();
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(boolean followRedirects)
+    {
+      connection.setInstanceFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public boolean getInstanceFollowRedirects()
+    {
+      return connection.getInstanceFollowRedirects();
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength)
+    {
+      connection.setChunkedStreamingMode(chunkLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength)
+    {
+      connection.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength)
+    {
+      connection.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setDefaultUseCaches(boolean defaultUseCaches)
+    {
+      connection.setDefaultUseCaches(defaultUseCaches);
+    }
+
+    @Override
+    public boolean getDefaultUseCaches()
+    {
+      return connection.getDefaultUseCaches();
+    }
+
+    /**
+     * Set the authenticator of the connection (only on runtimes that have
+     * {@code HttpURLConnection.setAuthenticator}, i.e. Java 9 and later).
+     */
+    public void setAuthenticator(Authenticator authenticator)
+    {
+      try
+      {
+        HttpURLConnection.class.getMethod("setAuthenticator", Authenticator.class).invoke(connection, authenticator);
+      } catch (InvocationTargetException e)
+      {
+        Throwable cause = e.getCause();
+        throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+      } catch (Exception e)
+      {
+        throw new UnsupportedOperationException("setAuthenticator", e);
+      }
+    }
+
+    @Override
+    public URL getURL()
+    {
+      return connection.getURL();
+    }
+
+    @Override
+    public Permission getPermission() throws IOException
+    {
+      return connection.getPermission();
+    }
+
+    @Override
+    public String toString()
+    {
+      return connection.toString();
+    }
+
+    /**
+     * Counts the bytes written to the request body.
+     */
+    private class CountingOutputStream extends FilterOutputStream
+    {
+      private long count;
+
+      public CountingOutputStream(OutputStream out)
+      {
+        super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException
+      {
+        out.write(b);
+        count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        out.write(b, off, len);
+        count += len;
+      }
+    }
+
+    /**
+     * Counts the bytes read from the response body, and finishes the step when
+     * the response has been read or the stream is closed.
+     */
+    private class CountingInputStream extends FilterInputStream
+    {
+      public CountingInputStream(InputStream in)
+      {
+        super(in);
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+        int result = in.read();
+        if (result >= 0)
+        {
+          responseBytes++;
+        } else
+        {
+          finish(null);
+        }
+        return result;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        int result = in.read(b, off, len);
+        if (result > 0)
+        {
+          responseBytes += result;
+        } else if (result < 0)
+        {
+          finish(null);
+        }
+        return result;
+      }
+
+      @Override
+      public long skip(long n) throws IOException
+      {
+        long result = in.skip(n);
+        responseBytes += result;
+        return result;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        in.close();
+        finish(null);
+      }
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps a JDBC {@link DataSource} or {@link Connection} (e.g. for Cloud SQL) so
+ * that each statement that is executed is recorded as a {@link MiniProfiler}
+ * step.
+ * 
+ * <pre>
+ * Connection c = MiniProfilerJdbc.wrap(DriverManager.getConnection(url));
+ * </pre>
+ * 
+ * Each step is named after the SQL text and has these details:
+ * <ul>
+ * <li>{@code parameters} - The number of parameters ({@code ?}) in the SQL.
+ * <li>{@code executeTime} - How long the statement took to execute
+ * (nanoseconds).
+ * <li>{@code rows} - The number of rows fetched (or updated).
+ * <li>{@code fetchTime} - How long was spent fetching rows from the result set
+ * (nanoseconds), which happens after the step has finished.
+ * </ul>
+ * The step name and parameter count for each SQL text are only worked out once
+ * per request, so running the same statement many times is cheap (and the
+ * text is only stored once with the profile).
+ * <p>
+ * If the profiler isn't running, statements are executed without any extra
+ * work.
+ */
+public class MiniProfilerJdbc
+{
+  /** The prefix of the step names. */
+  private static final String STEP_PREFIX = "SQL: ";
+
+  /**
+   * Wrap a data source so that the connections it returns are profiled.
+   * 
+   * @param dataSource
+   *          The data source.
+   * @return The wrapped data source.
+   */
+  public static DataSource wrap(final DataSource dataSource)
+  {
+    return proxy(DataSource.class, new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        Object result = call(dataSource, method, args);
+        return result instanceof Connection ? wrap((Connection) result) : result;
+      }
+    });
+  }
+
+  /**
+   * Wrap a connection so that the statements it creates are profiled.
+   * 
+   * @param connection
+   *          The connection.
+   * @return The wrapped connection.
+   */
+  public static Connection wrap(Connection connection)
+  {
+    return proxy(Connection.class, new ConnectionHandler(connection));
+  }
+
+  /**
+   * Create a proxy for an interface.
+   */
+  private static <T> T proxy(Class<T> iface, InvocationHandler handler)
+  {
+    return iface.cast(Proxy.newProxyInstance(MiniProfilerJdbc.class.getClassLoader(), new Class<?>[] { iface }, handler));
+  }
+
+  /**
+   * Call a method on the wrapped object, throwing whatever it throws.
+   */
+  private static Object call(Object target, Method method, Object[] args) throws Throwable
+  {
+    try
+    {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Get the step name and parameter count for a SQL text (worked out once per
+   * request).
+   * 
+   * @param sql
+   *          The SQL text (or null if it isn't known, e.g. for a batch).
+   * @return The SQL info, or {@code null} if the profiler isn't running.
+   */
+  private static SqlInfo getSqlInfo(String sql)
+  {
+    Map<Object, Object> cache = MiniProfiler.getRequestCache();
+    if (cache == null)
+    {
+      return null;
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, SqlInfo> sqlInfos = (Map<String, SqlInfo>) cache.get(SqlInfo.class);
+    if (sqlInfos == null)
+    {
+      sqlInfos = new HashMap<String, SqlInfo>();
+      cache.put(SqlInfo.class, sqlInfos);
+    }
+    String key = sql != null ? sql : "(batch)";
+    SqlInfo info = sqlInfos.get(key);
+    if (info == null)
+    {
+      info = new SqlInfo(STEP_PREFIX + key, countParameters(sql));
+      sqlInfos.put(key, info);
+    }
+    return info;
+  }
+
+  /**
+   * Count the parameters ({@code ?}) in a SQL text, ignoring any in quotes.
+   * 
+   * @param sql
+   *          The SQL text.
+   * @return The number of parameters.
+   */
+  protected static int countParameters(String sql)
+  {
+    int result = 0;
+    if (sql != null)
+    {
+      char quote = 0;
+      for (int i = 0; i < sql.length(); i++)
+      {
+        char c = sql.charAt(i);
+        if (quote != 0)
+        {
+          if (c == quote)
+          {
+            quote = 0;
+          }
+        } else if (c == '\'' || c == '"' || c == '`')
+        {
+          quote = c;
+        } else if (c == '?')
+        {
+          result++;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The step name and parameter count for a SQL text.
+   */
+  private static class SqlInfo
+  {
+    private String stepName;
+    private int parameters;
+
+    public SqlInfo(String stepName, int parameters)
+    {
+      this.stepName = stepName;
+      this.parameters = parameters;
+    }
+  }
+
+  /**
+   * Wraps the statements created by a connection.
+   */
+  private static class ConnectionHandler implements InvocationHandler
+  {
+    private Connection connection;
+
+    public ConnectionHandler(Connection connection)
+    {
+      this.connection = connection;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      Object result = call(connection, method, args);
+      if (result instanceof Statement)
+      {
+        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+        Class<? extends Statement> iface = result instanceof CallableStatement ? CallableStatement.class
+            : (result instanceof PreparedStatement ? PreparedStatement.class : Statement.class);
+        result = proxy(iface, new StatementHandler((Statement) result, (Connection) proxy, sql));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Profiles the statements that are executed.
+   */
+  private static class StatementHandler implements InvocationHandler
+  {
+    private Statement statement;
+    private Connection connection;
+    /** The SQL text the statement was prepared with (if any). */
+    private String sql;
+    /** The step of the last statement that was executed (used to wrap its result set). */
+    private MiniProfiler.Step lastStep;
+
+    public StatementHandler(Statement statement, Connection connection, String sql)
+    {
+      this.statement = statement;
+      this.connection = connection;
+      this.sql = sql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      String name = method.getName();
+      if (name.equals("getConnection"))
+      {
+        return connection;
+      }
+      if (name.equals("getResultSet"))
+      {
+        return wrapResultSet(call(statement, method, args), lastStep);
+      }
+      if (!name.startsWith("execute"))
+      {
+        return call(statement, method, args);
+      }
+
+      SqlInfo info = getSqlInfo(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql);
+      if (info == null)
+      {
+        return call(statement, method, args);
+      }
+      MiniProfiler.Step step = MiniProfiler.step(info.stepName, MiniProfiler.SQL);
+      lastStep = step;
+      try
+      {
+        step.setDetail("parameters", info.parameters);
+        long start = System.nanoTime();
+        Object result = call(statement, method, args);
+        step.setDetail("executeTime", System.nanoTime() - start);
+        if (result instanceof Integer)
+        {
+          step.setDetail("rows", result);
+        } else if (result instanceof int[])
+        {
+          int rows = 0;
+          for (int count : (int[]) result)
+          {
+            rows += Math.max(count, 0);
+          }
+          step.setDetail("rows", rows);
+        }
+        return wrapResultSet(result, step);
+      } finally
+      {
+        step.close();
+      }
+    }
+  }
+
+  /**
+   * Wrap a result set (if the value is one) so the rows fetched are recorded
+   * on a step.
+   */
+  private static Object wrapResultSet(Object value, MiniProfiler.Step step)
+  {
+    if (value instanceof ResultSet && step != null)
+    {
+      return proxy(ResultSet.class, new ResultSetHandler((ResultSet) value, step));
+    }
+    return value;
+  }
+
+  /**
+   * Records the number of rows fetched from a result set, and how long it
+   * took.
+   */
+  private static class ResultSetHandler implements InvocationHandler
+  {
+    private ResultSet resultSet;
+    private MiniProfiler.Step step;
+    private int rows;
+    private long fetchTime;
+
+    public ResultSetHandler(ResultSet resultSet, MiniProfiler.Step step)
+    {
+      this.resultSet = resultSet;
+      this.step = step;
+      step.setDetail("rows", 0);
+      step.setDetail("fetchTime", 0L);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      String name = method.getName();
+      if (name.equals("next"))
+      {
+        long start = System.nanoTime();
+        Object result = call(resultSet, method, args);
+        fetchTime += System.nanoTime() - start;
+        if (Boolean.TRUE.equals(result))
+        {
+          rows++;
+        } else
+        {
+          record();
+        }
+        return result;
+      }
+      if (name.equals("close"))
+      {
+        record();
+      }
+      return call(resultSet, method, args);
+    }
+
+    private void record()
+    {
+      step.setDetail("rows", rows);
+      step.setDetail("fetchTime", fetchTime);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.logging.*;
+
+/**
+ * A logging handler that captures the log records of profiled requests, so
+ * that they are shown inline with the steps in the profiler UI.
+ * <p>
+ * Records that are logged by a thread that isn't being profiled are ignored
+ * (and cost almost nothing). Otherwise the record's message is formatted,
+ * truncated and attached to the step that is running (see
+ * {@link MiniProfiler.Root#addLog(String, String, String, int)}). Only the
+ * most recent records of each request are kept.
+ * <p>
+ * The {@link MiniProfilerFilter} adds a handler to the root logger if its
+ * {@code captureLogs} parameter is set. The handler can also be configured in
+ * {@code logging.properties}, where the maximum number of records and message
+ * length can be set with the {@code maxRecords} and {@code maxMessageLength}
+ * properties (e.g.
+ * {@code ca.jimr.gae.profiler.MiniProfilerLogHandler.maxRecords = 50}).
+ */
+public class MiniProfilerLogHandler extends Handler
+{
+  public static final int DEFAULT_MAX_RECORDS = 100;
+  public static final int DEFAULT_MAX_MESSAGE_LENGTH = 500;
+
+  /** The maximum number of records kept for each request. */
+  private int maxRecords;
+  /** The maximum length of a message (longer ones are truncated). */
+  private int maxMessageLength;
+
+  /**
+   * Create a handler, configured from the {@link LogManager} properties.
+   */
+  public MiniProfilerLogHandler()
+  {
+    this(intProperty("maxRecords", DEFAULT_MAX_RECORDS), intProperty("maxMessageLength", DEFAULT_MAX_MESSAGE_LENGTH));
+  }
+
+  /**
+   * Create a handler.
+   * 
+   * @param maxRecords
+   *          The maximum number of records kept for each request.
+   * @param maxMessageLength
+   *          The maximum length of a message (longer ones are truncated).
+   */
+  public MiniProfilerLogHandler(int maxRecords, int maxMessageLength)
+  {
+    this.maxRecords = maxRecords;
+    this.maxMessageLength = maxMessageLength;
+    setFormatter(new SimpleFormatter());
+    String level = LogManager.getLogManager().getProperty(MiniProfilerLogHandler.class.getName() + ".level");
+    if (level != null)
+    {
+      try
+      {
+        setLevel(Level.parse(level.trim()));
+      } catch (IllegalArgumentException e)
+      {
+        // Keep the default level
+      }
+    }
+  }
+
+  @Override
+  public void publish(LogRecord record)
+  {
+    MiniProfiler.Root root = MiniProfiler.getRoot();
+    if (root == null || !isLoggable(record))
+    {
+      return;
+    }
+    String message;
+    try
+    {
+      message = getFormatter().formatMessage(record);
+    } catch (RuntimeException e)
+    {
+      message = record.getMessage();
+    }
+    if (record.getThrown() != null)
+    {
+      message = message + ": " + record.getThrown();
+    }
+    if (message != null && message.length() > maxMessageLength)
+    {
+      message = message.substring(0, maxMessageLength) + "...";
+    }
+    root.addLog(record.getLevel().getName(), record.getLoggerName(), message, maxRecords);
+  }
+
+  @Override
+  public void flush()
+  {
+    // Nothing is buffered
+  }
+
+  @Override
+  public void close()
+  {
+    // Nothing to release
+  }
+
+  private static int intProperty(String name, int defaultValue)
+  {
+    String value = LogManager.getLogManager().getProperty(MiniProfilerLogHandler.class.getName() + "." + name);
+    if (value != null)
+    {
+      try
+      {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e)
+      {
+        // Use the default
+      }
+    }
+    return defaultValue;
+  }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.BaseMemcacheService;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * Wraps a {@link MemcacheService} or {@link AsyncMemcacheService} so that each
+ * call is recorded as a {@link MiniProfiler} step.
+ * 
+ * <pre>
+ * MemcacheService ms = MiniProfilerMemcache.wrap(MemcacheServiceFactory.getMemcacheService());
+ * </pre>
+ * 
+ * Each step is named after the call (e.g. {@code Memcache getAll}) and has
+ * these details:
+ * <ul>
+ * <li>{@code keys} - The number of keys.
+ * <li>{@code hits}/{@code misses} - The number of keys found and not found (for
+ * gets).
+ * <li>{@code bytes} - The serialized size of the values that were fetched or
+ * stored.
+ * </ul>
+ * Repeated {@code get}s of the same key in a request are added to the step of
+ * the first one (with {@code calls} and {@code totalTime} details), rather than
+ * adding a step for each. Calls on the async service are async steps (see
+ * {@link MiniProfiler#asyncStep(String)}) that finish when their result is
+ * retrieved.
+ * <p>
+ * Services for the profiler's own namespace are not wrapped.
+ */
+public class MiniProfilerMemcache
+{
+  /** The prefix of the step names. */
+  private static final String STEP_PREFIX = "Memcache ";
+  /** The calls that are profiled. */
+  private static final Set<String> PROFILED = new HashSet<String>(Arrays.asList("get", "getAll", "getIdentifiable", "getIdentifiables",
+      "contains", "put", "putAll", "putIfUntouched", "delete", "deleteAll", "increment", "incrementAll"));
+  /** The calls that look values up (and so have hits and misses). */
+  private static final Set<String> LOOKUPS = new HashSet<String>(Arrays.asList("get", "getAll", "getIdentifiable", "getIdentifiables", "contains"));
+  /** The step names, by call (so they aren't built each time). */
+  private static final Map<String, String> STEP_NAMES = new HashMap<String, String>();
+
+  static
+  {
+    for (String name : PROFILED)
+    {
+      STEP_NAMES.put(name, STEP_PREFIX + name);
+    }
+  }
+
+  /**
+   * Wrap a memcache service so that its calls are profiled.
+   * 
+   * @param service
+   *          The memcache service.
+   * @return The wrapped service (or the service itself if it is for the
+   *         profiler's namespace).
+   */
+  public static MemcacheService wrap(MemcacheService service)
+  {
+    return wrap(MemcacheService.class, service, false);
+  }
+
+  /**
+   * Wrap an async memcache service so that its calls are profiled.
+   * 
+   * @param service
+   *          The memcache service.
+   * @return The wrapped service (or the service itself if it is for the
+   *         profiler's namespace).
+   */
+  public static AsyncMemcacheService wrap(AsyncMemcacheService service)
+  {
+    return wrap(AsyncMemcacheService.class, service, true);
+  }
+
+  private static <T extends BaseMemcacheService> T wrap(Class<T> iface, T service, boolean async)
+  {
+    if (MiniProfilerFilter.MEMCACHE_NAMESPACE.equals(service.getNamespace()))
+    {
+      return service;
+    }
+    return iface.cast(Proxy.newProxyInstance(MiniProfilerMemcache.class.getClassLoader(), new Class<?>[] { iface }, new Handler(service, async)));
+  }
+
+  /**
+   * Get the serialized size of a value.
+   * 
+   * @param value
+   *          The value.
+   * @return The size (bytes).
+   */
+  protected static long sizeOf(Object value)
+  {
+    if (value == null)
+    {
+      return 0;
+    }
+    if (value instanceof byte[])
+    {
+      return ((byte[]) value).length;
+    }
+    if (value instanceof MemcacheService.IdentifiableValue)
+    {
+      return sizeOf(((MemcacheService.IdentifiableValue) value).getValue());
+    }
+    CountingOutputStream counter = new CountingOutputStream();
+    try
+    {
+      ObjectOutputStream out = new ObjectOutputStream(counter);
+      out.writeObject(value);
+      out.close();
+    } catch (IOException e)
+    {
+      // Not serializable (memcache will fail too)
+    }
+    return counter.count;
+  }
+
+  /**
+   * Get the total serialized size of some values.
+   */
+  private static long sizeOf(Collection<?> values)
+  {
+    long result = 0;
+    for (Object value : values)
+    {
+      result += sizeOf(value);
+    }
+    return result;
+  }
+
+  /**
+   * Profiles the calls to a memcache service.
+   */
+  private static class Handler implements InvocationHandler
+  {
+    private BaseMemcacheService service;
+    private boolean async;
+
+    public Handler(BaseMemcacheService service, boolean async)
+    {
+      this.service = service;
+      this.async = async;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      String name = method.getName();
+      Map<Object, Object> cache = PROFILED.contains(name) ? MiniProfiler.getRequestCache() : null;
+      if (cache == null)
+      {
+        return call(method, args);
+      }
+
+      // Repeated gets of the same key are added to the first one
+      Repeats repeats = null;
+      if (name.equals("get") && !async)
+      {
+        @SuppressWarnings("unchecked")
+        Map<Object, Repeats> gets = (Map<Object, Repeats>) cache.get(this);
+        if (gets == null)
+        {
+          gets = new HashMap<Object, Repeats>();
+          cache.put(this, gets);
+        }
+        repeats = gets.get(args[0]);
+        if (repeats != null)
+        {
+          long start = System.nanoTime();
+          Object result = call(method, args);
+          repeats.add(result, System.nanoTime() - start, sizeOf(result));
+          return result;
+        }
+        repeats = new Repeats();
+        gets.put(args[0], repeats);
+      }
+
+      // Sizes are worked out outside of the step, so that the time it takes to
+      // serialize the values again isn't added to the call.
+      Object first = args != null && args.length > 0 ? args[0] : null;
+      long putBytes = -1;
+      if (name.startsWith("put"))
+      {
+        putBytes = first instanceof Map ? sizeOf(((Map<?, ?>) first).values()) : sizeOf(args[name.equals("put") ? 1 : 2]);
+      }
+      MiniProfiler.Step step = async ? MiniProfiler.asyncStep(STEP_NAMES.get(name), MiniProfiler.CACHE)
+          : MiniProfiler.step(STEP_NAMES.get(name), MiniProfiler.CACHE);
+      step.setDetail("keys", first instanceof Collection ? ((Collection<?>) first).size() : (first instanceof Map ? ((Map<?, ?>) first).size() : 1));
+      if (putBytes >= 0)
+      {
+        step.setDetail("bytes", putBytes);
+      }
+      if (async)
+      {
+        try
+        {
+          @SuppressWarnings("unchecked")
+          Future<Object> future = (Future<Object>) call(method, args);
+          return new ProfiledFuture(future, step, name, first);
+        } catch (Throwable t)
+        {
+          step.close();
+          throw t;
+        }
+      }
+      long start = System.nanoTime();
+      Object result;
+      try
+      {
+        result = call(method, args);
+      } finally
+      {
+        step.close();
+      }
+      long time = System.nanoTime() - start;
+      long bytes = recordResult(step, name, first, result);
+      if (repeats != null)
+      {
+        repeats.step = step;
+        repeats.add(result, time, bytes);
+      }
+      return result;
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable
+    {
+      try
+      {
+        return method.invoke(service, args);
+      } catch (InvocationTargetException e)
+      {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Record the hits, misses and size of the values fetched by a lookup. This
+   * should be called once the step has been closed.
+   * 
+   * @return The size of the values (or 0 if the call wasn't a lookup).
+   */
+  private static long recordResult(MiniProfiler.Step step, String name, Object first, Object result)
+  {
+    if (!LOOKUPS.contains(name))
+    {
+      return 0;
+    }
+    int keys = first instanceof Collection ? ((Collection<?>) first).size() : 1;
+    int hits;
+    long bytes = 0;
+    if (result instanceof Map)
+    {
+      hits = ((Map<?, ?>) result).size();
+      bytes = sizeOf(((Map<?, ?>) result).values());
+      step.setDetail("bytes", bytes);
+    } else if (result instanceof Boolean)
+    {
+      hits = (Boolean) result ? 1 : 0;
+    } else
+    {
+      hits = result != null ? 1 : 0;
+      bytes = sizeOf(result);
+      step.setDetail("bytes", bytes);
+    }
+    step.setDetail("hits", hits);
+    step.setDetail("misses", keys - hits);
+    return bytes;
+  }
+
+  /**
+   * The totals for repeated gets of the same key.
+   */
+  private static class Repeats
+  {
+    private MiniProfiler.Step step;
+    private int calls;
+    private int hits;
+    private long bytes;
+    private long totalTime;
+
+    /**
+     * Add a get.
+     * 
+     * @param result
+     *          The value that was fetched.
+     * @param time
+     *          How long the get took (nanoseconds).
+     * @param resultBytes
+     *          The size of the value.
+     */
+    public void add(Object result, long time, long resultBytes)
+    {
+      calls++;
+      totalTime += time;
+      bytes += resultBytes;
+      if (result != null)
+      {
+        hits++;
+      }
+      if (calls > 1 && step != null)
+      {
+        step.setDetail("calls", calls);
+        step.setDetail("totalTime", totalTime);
+        step.setDetail("hits", hits);
+        step.setDetail("misses", calls - hits);
+        step.setDetail("bytes", bytes);
+      }
+    }
+  }
+
+  /**
+   * Finishes the step of an async call when its result is retrieved.
+   */
+  private static class ProfiledFuture implements Future<Object>
+  {
+    private Future<Object> future;
+    private MiniProfiler.Step step;
+    private String name;
+    private Object first;
+
+    public ProfiledFuture(Future<Object> future, MiniProfiler.Step step, String name, Object first)
+    {
+      this.future = future;
+      this.step = step;
+      this.name = name;
+      this.first = first;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      boolean result = future.cancel(mayInterruptIfRunning);
+      if (result)
+      {
+        step.close();
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return future.isDone();
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException
+    {
+      try
+      {
+        return finish(future.get());
+      } catch (ExecutionException e)
+      {
+        step.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+      try
+      {
+        return finish(future.get(timeout, unit));
+      } catch (ExecutionException e)
+      {
+        step.close();
+        throw e;
+      }
+    }
+
+    private Object finish(Object result)
+    {
+      step.close();
+      recordResult(step, name, first, result);
+      return result;
+    }
+  }
+
+  /**
+   * An output stream that just counts the bytes written to it.
+   */
+  private static class CountingOutputStream extends OutputStream
+  {
+    private long count;
+
+    @Override
+    public void write(int b)
+    {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      count += len;
+    }
+  }
+}
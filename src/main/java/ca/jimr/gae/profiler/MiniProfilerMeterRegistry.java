@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where the {@link MiniProfilerTimer}s used by {@link MiniProfilerMetrics} are
+ * registered.
+ * <p>
+ * The default registry ({@link MiniProfilerMetrics}) keeps the timers in
+ * memory so they can be scraped in the Prometheus text format from the
+ * {@link MiniProfilerServlet}. Another registry can be used to send the timings
+ * somewhere else (e.g. by returning timers that override
+ * {@link MiniProfilerTimer#record(long)}) - see
+ * {@link MiniProfilerMetrics#setRegistry(MiniProfilerMeterRegistry)}.
+ */
+public interface MiniProfilerMeterRegistry
+{
+  /**
+   * Get (or create) a timer.
+   * <p>
+   * This is only called when a timer is registered, not each time something
+   * is timed, so it doesn't need to be fast.
+   * 
+   * @param name
+   *          The name of the metric (e.g. {@code mini_profiler_step_seconds}).
+   * @param tags
+   *          The tags of the timer (these should have a small number of
+   *          possible values).
+   * @return The timer. The same timer should be returned each time for the
+   *         same name and tags.
+   */
+  MiniProfilerTimer timer(String name, Map<String, String> tags);
+
+  /**
+   * Get all of the timers that have been registered.
+   * 
+   * @return The timers.
+   */
+  Collection<MiniProfilerTimer> getTimers();
+}
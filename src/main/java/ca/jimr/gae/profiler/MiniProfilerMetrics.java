@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes step and request timings as histogram metrics.
+ * <p>
+ * Steps are timed by creating a timer for them once (e.g. in a static field)
+ * with {@link #stepTimer(String)}, and passing it to
+ * {@link MiniProfiler#step(String, MiniProfilerTimer)}. The
+ * {@link MiniProfilerFilter} records the total time of each request (tagged
+ * with its URL pattern) if its {@code metrics} option is enabled.
+ * <p>
+ * Timers are registered with a {@link MiniProfilerMeterRegistry}. By default
+ * this is an instance of this class, which keeps them in memory so they can be
+ * scraped in the Prometheus text format from the {@code metrics} URL of the
+ * {@link MiniProfilerServlet}. Metrics are per instance.
+ */
+public class MiniProfilerMetrics implements MiniProfilerMeterRegistry
+{
+  public static final String STEP_METRIC = "mini_profiler_step_seconds";
+  public static final String REQUEST_METRIC = "mini_profiler_request_seconds";
+  public static final String STEP_TAG = "step";
+  public static final String URL_PATTERN_TAG = "url_pattern";
+
+  /**
+   * The maximum number of URL patterns that requests are timed separately for.
+   * Any others are timed together (to keep the number of metrics down).
+   */
+  private static final int MAX_URL_PATTERNS = 200;
+  private static final String OTHER_URL_PATTERN = "other";
+
+  /** The registry that timers are registered with. */
+  private static volatile MiniProfilerMeterRegistry registry = new MiniProfilerMetrics();
+  /**
+   * The request timers, keyed by URL pattern (so the registry is only asked
+   * once for each pattern).
+   */
+  private static volatile ConcurrentHashMap<String, MiniProfilerTimer> requestTimers = new ConcurrentHashMap<String, MiniProfilerTimer>();
+
+  /** The timers in this registry, keyed by name and tags. */
+  private ConcurrentHashMap<String, MiniProfilerTimer> timers = new ConcurrentHashMap<String, MiniProfilerTimer>();
+
+  @Override
+  public MiniProfilerTimer timer(String name, Map<String, String> tags)
+  {
+    String key = name + new TreeMap<String, String>(tags);
+    MiniProfilerTimer timer = timers.get(key);
+    if (timer == null)
+    {
+      MiniProfilerTimer newTimer = new MiniProfilerTimer(name, tags);
+      timer = timers.putIfAbsent(key, newTimer);
+      if (timer == null)
+      {
+        timer = newTimer;
+      }
+    }
+    return timer;
+  }
+
+  @Override
+  public Collection<MiniProfilerTimer> getTimers()
+  {
+    return timers.values();
+  }
+
+  /**
+   * Get the registry that timers are registered with.
+   * 
+   * @return The registry.
+   */
+  public static MiniProfilerMeterRegistry getRegistry()
+  {
+    return registry;
+  }
+
+  /**
+   * Set the registry that timers are registered with. This should be done
+   * before any timers are created (e.g. in a {@code ServletContextListener}),
+   * since timers that have already been created stay with the old registry.
+   * The {@link MiniProfilerFilter} can also do this with its
+   * {@code metricsRegistry} option.
+   * 
+   * @param newRegistry
+   *          The registry.
+   */
+  public static void setRegistry(MiniProfilerMeterRegistry newRegistry)
+  {
+    registry = newRegistry;
+    requestTimers = new ConcurrentHashMap<String, MiniProfilerTimer>();
+  }
+
+  /**
+   * Create (or get) the timer for a profiling step.
+   * 
+   * @param stepName
+   *          The name of the step.
+   * @return The timer.
+   */
+  public static MiniProfilerTimer stepTimer(String stepName)
+  {
+    return registry.timer(STEP_METRIC, Collections.singletonMap(STEP_TAG, stepName));
+  }
+
+  /**
+   * Record how long a request took.
+   * 
+   * @param requestURI
+   *          The request URI (this is turned into a URL pattern - see
+   *          {@link MiniProfilerArchive#getURLPattern(String)}).
+   * @param nanos
+   *          The duration (nanoseconds).
+   */
+  public static void recordRequest(String requestURI, long nanos)
+  {
+    String urlPattern = MiniProfilerArchive.getURLPattern(requestURI);
+    ConcurrentHashMap<String, MiniProfilerTimer> timers = requestTimers;
+    MiniProfilerTimer timer = timers.get(urlPattern);
+    if (timer == null)
+    {
+      if (timers.size() >= MAX_URL_PATTERNS)
+      {
+        urlPattern = OTHER_URL_PATTERN;
+        timer = timers.get(urlPattern);
+      }
+      if (timer == null)
+      {
+        timer = registry.timer(REQUEST_METRIC, Collections.singletonMap(URL_PATTERN_TAG, urlPattern));
+        timers.put(urlPattern, timer);
+      }
+    }
+    timer.record(nanos);
+  }
+
+  /**
+   * Write timers in the Prometheus text format (as histograms in seconds).
+   * 
+   * @param timers
+   *          The timers.
+   * @param w
+   *          Where to write them.
+   */
+  public static void writePrometheus(Collection<MiniProfilerTimer> timers, Writer w) throws IOException
+  {
+    List<MiniProfilerTimer> sorted = new ArrayList<MiniProfilerTimer>(timers);
+    Collections.sort(sorted, new Comparator<MiniProfilerTimer>()
+    {
+      @Override
+      public int compare(MiniProfilerTimer a, MiniProfilerTimer b)
+      {
+        int result = a.getName().compareTo(b.getName());
+        return result != 0 ? result : a.getTags().toString().compareTo(b.getTags().toString());
+      }
+    });
+
+    String lastName = null;
+    for (MiniProfilerTimer timer : sorted)
+    {
+      String name = metricName(timer.getName());
+      if (!name.equals(lastName))
+      {
+        w.write("# TYPE " + name + " histogram\n");
+        lastName = name;
+      }
+      String labels = labels(timer.getTags());
+      long[] bounds = timer.getBucketBounds();
+      long[] counts = timer.getBucketCounts();
+      long cumulative = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+        cumulative += counts[i];
+        String le = i < bounds.length ? String.valueOf(bounds[i] / 1e9) : "+Inf";
+        w.write(name + "_bucket{" + labels + (labels.length() > 0 ? "," : "") + "le=\"" + le + "\"} " + cumulative + "\n");
+      }
+      String braces = labels.length() > 0 ? "{" + labels + "}" : "";
+      w.write(name + "_sum" + braces + " " + (timer.getSum() / 1e9) + "\n");
+      // Use the bucket total so the count always matches the +Inf bucket
+      w.write(name + "_count" + braces + " " + cumulative + "\n");
+    }
+  }
+
+  /**
+   * Make a string safe to use as a Prometheus metric name.
+   */
+  private static String metricName(String name)
+  {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < name.length(); i++)
+    {
+      char c = name.charAt(i);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9');
+      result.append(valid ? c : '_');
+    }
+    return result.toString();
+  }
+
+  /**
+   * Format tags as Prometheus labels.
+   */
+  private static String labels(Map<String, String> tags)
+  {
+    StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, String> tag : tags.entrySet())
+    {
+      if (result.length() > 0)
+      {
+        result.append(',');
+      }
+      result.append(metricName(tag.getKey())).append("=\"");
+      String value = tag.getValue() != null ? tag.getValue() : "";
+      result.append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return result.toString();
+  }
+}
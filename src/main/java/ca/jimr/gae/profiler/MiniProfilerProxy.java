@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps objects in a dynamic proxy that profiles the methods marked with
+ * {@link Profiled}, e.g.
+ * 
+ * <pre>
+ * UserService users = MiniProfilerProxy.wrap(UserService.class, new UserServiceImpl());
+ * </pre>
+ * 
+ * The step name (and timer) of each method is worked out once per class, so
+ * calling a profiled method through the proxy doesn't build any strings.
+ */
+public class MiniProfilerProxy implements InvocationHandler
+{
+  /** The steps of the profiled methods, for each class that has been wrapped. */
+  private static final ConcurrentHashMap<Class<?>, Map<Method, ProfiledMethod>> METHODS = new ConcurrentHashMap<Class<?>, Map<Method, ProfiledMethod>>();
+
+  private Object target;
+  /** The steps of the profiled methods of the target, keyed by interface method. */
+  private Map<Method, ProfiledMethod> methods;
+
+  private MiniProfilerProxy(Object target, Map<Method, ProfiledMethod> methods)
+  {
+    this.target = target;
+    this.methods = methods;
+  }
+
+  /**
+   * Wrap an object so that its methods that are marked with {@link Profiled}
+   * are profiled. If none of its methods are marked, the object is returned as
+   * is.
+   * 
+   * @param iface
+   *          The interface to proxy.
+   * @param target
+   *          The object to wrap.
+   * @return The wrapped object.
+   */
+  public static <T> T wrap(Class<T> iface, T target)
+  {
+    Map<Method, ProfiledMethod> methods = getMethods(target.getClass());
+    if (methods.isEmpty())
+    {
+      return target;
+    }
+    return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, new MiniProfilerProxy(target, methods)));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+  {
+    ProfiledMethod profiled = methods.get(method);
+    MiniProfiler.Step step = profiled != null ? MiniProfiler.step(profiled.name, profiled.timer, profiled.category) : null;
+    try
+    {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    } finally
+    {
+      if (step != null)
+      {
+        step.close();
+      }
+    }
+  }
+
+  /**
+   * Get (or work out) the profiled methods of a class, keyed by the interface
+   * methods that they implement.
+   */
+  private static Map<Method, ProfiledMethod> getMethods(Class<?> cls)
+  {
+    Map<Method, ProfiledMethod> result = METHODS.get(cls);
+    if (result == null)
+    {
+      result = new HashMap<Method, ProfiledMethod>();
+      Profiled classAnnotation = cls.getAnnotation(Profiled.class);
+      for (Class<?> iface : getInterfaces(cls))
+      {
+        for (Method method : iface.getMethods())
+        {
+          Method implementation;
+          try
+          {
+            implementation = cls.getMethod(method.getName(), method.getParameterTypes());
+          } catch (NoSuchMethodException e)
+          {
+            continue;
+          }
+          Profiled annotation = implementation.getAnnotation(Profiled.class);
+          if (annotation == null)
+          {
+            annotation = method.getAnnotation(Profiled.class);
+          }
+          if (annotation == null)
+          {
+            annotation = classAnnotation;
+          }
+          if (annotation != null)
+          {
+            String name = annotation.value().length() > 0 ? annotation.value() : cls.getSimpleName() + "." + method.getName();
+            int category = annotation.category().length() > 0 ? MiniProfiler.category(annotation.category()) : MiniProfiler.NO_CATEGORY;
+            result.put(method, new ProfiledMethod(name, annotation.metric() ? MiniProfilerMetrics.stepTimer(name) : null, category));
+          }
+        }
+      }
+      METHODS.putIfAbsent(cls, result);
+    }
+    return result;
+  }
+
+  /**
+   * Get all of the interfaces that a class implements (including those of its
+   * superclasses and superinterfaces).
+   */
+  private static Set<Class<?>> getInterfaces(Class<?> cls)
+  {
+    Set<Class<?>> result = new LinkedHashSet<Class<?>>();
+    List<Class<?>> toVisit = new ArrayList<Class<?>>();
+    for (Class<?> c = cls; c != null; c = c.getSuperclass())
+    {
+      toVisit.addAll(Arrays.asList(c.getInterfaces()));
+    }
+    while (!toVisit.isEmpty())
+    {
+      Class<?> iface = toVisit.remove(toVisit.size() - 1);
+      if (result.add(iface))
+      {
+        toVisit.addAll(Arrays.asList(iface.getInterfaces()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The step for a profiled method.
+   */
+  private static class ProfiledMethod
+  {
+    private String name;
+    private MiniProfilerTimer timer;
+    private int category;
+
+    public ProfiledMethod(String name, MiniProfilerTimer timer, int category)
+    {
+      this.name = name;
+      this.timer = timer;
+      this.category = category;
+    }
+  }
+}
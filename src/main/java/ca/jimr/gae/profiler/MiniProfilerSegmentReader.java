@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reads a segment file written by a {@link MiniProfilerSegmentWriter}.
+ * <p>
+ * The file is memory-mapped, and nothing is loaded onto the heap up front. The
+ * fields of each record (and each node of its profile tree) and the strings in
+ * the string table are read directly from the mapped file when they are asked
+ * for, so very large segments can be scanned without creating any objects per
+ * record.
+ * <p>
+ * Records are identified by their number (0 to {@link #getRecordCount()} - 1)
+ * and nodes by their pre-order number within the record (0 is the root).
+ */
+public class MiniProfilerSegmentReader implements Closeable
+{
+  private RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private int stringsPosition;
+  private int stringCount;
+  private int recordCount;
+  private int indexPosition;
+
+  /**
+   * Open a segment file.
+   *
+   * @param segment
+   *          The segment file.
+   */
+  public MiniProfilerSegmentReader(File segment) throws IOException
+  {
+    file = new RandomAccessFile(segment, "r");
+    try
+    {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+      {
+        throw new IOException(segment + " is too big (segments must be smaller than 2GB)");
+      }
+      if (size < 8 + MiniProfilerSegmentWriter.TRAILER_SIZE)
+      {
+        throw new IOException(segment + " is not a profile segment");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int trailer = (int) size - MiniProfilerSegmentWriter.TRAILER_SIZE;
+      if (buffer.getInt(0) != MiniProfilerSegmentWriter.MAGIC || buffer.getInt(trailer + 20) != MiniProfilerSegmentWriter.MAGIC)
+      {
+        throw new IOException(segment + " is not a profile segment (or was not closed properly)");
+      }
+      int version = buffer.getInt(4);
+      if (version != MiniProfilerSegmentWriter.VERSION)
+      {
+        throw new IOException(segment + " has an unsupported version: " + version);
+      }
+      stringsPosition = (int) buffer.getLong(trailer);
+      indexPosition = (int) buffer.getLong(trailer + 8);
+      recordCount = buffer.getInt(trailer + 16);
+      stringCount = buffer.getInt(stringsPosition);
+    } catch (IOException e)
+    {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the number of records in the segment.
+   *
+   * @return The number of records.
+   */
+  public int getRecordCount()
+  {
+    return recordCount;
+  }
+
+  /**
+   * Get the number of strings in the segment's string table. Names are
+   * referred to by their index in the table (see
+   * {@link #getNodeNameIndex(int, int)}).
+   *
+   * @return The number of strings.
+   */
+  public int getStringCount()
+  {
+    return stringCount;
+  }
+
+  /**
+   * Get a string from the segment's string table.
+   *
+   * @param index
+   *          The string index (-1 for null).
+   * @return The string.
+   */
+  public String getString(int index)
+  {
+    return index >= 0 ? readString(buffer.getInt(stringsPosition + 4 + index * 4)) : null;
+  }
+
+  /**
+   * Get when a request was made (milliseconds since the epoch). This is read
+   * from the index.
+   *
+   * @param record
+   *          The record number.
+   * @return The timestamp.
+   */
+  public long getTimestamp(int record)
+  {
+    return buffer.getLong(indexPosition + record * MiniProfilerSegmentWriter.INDEX_ENTRY_SIZE + 8);
+  }
+
+  /**
+   * Get how long a request took (nanoseconds). This is read from the index.
+   *
+   * @param record
+   *          The record number.
+   * @return The duration.
+   */
+  public long getDuration(int record)
+  {
+    return buffer.getLong(indexPosition + record * MiniProfilerSegmentWriter.INDEX_ENTRY_SIZE + 16);
+  }
+
+  /**
+   * Get the URL of a request.
+   *
+   * @param record
+   *          The record number.
+   * @return The URL.
+   */
+  public String getURL(int record)
+  {
+    return readString(nodePosition(record, getNodeCount(record)));
+  }
+
+  /**
+   * Get the email of the user that made a request.
+   *
+   * @param record
+   *          The record number.
+   * @return The user (or {@code null} if there was no user).
+   */
+  public String getUser(int record)
+  {
+    int url = nodePosition(record, getNodeCount(record));
+    return readString(skipString(url));
+  }
+
+  /**
+   * Get the profile request id of a request.
+   *
+   * @param record
+   *          The record number.
+   * @return The request id.
+   */
+  public String getRequestId(int record)
+  {
+    int url = nodePosition(record, getNodeCount(record));
+    return readString(skipString(skipString(url)));
+  }
+
+  /**
+   * Get the number of nodes in a request's profile tree.
+   *
+   * @param record
+   *          The record number.
+   * @return The number of nodes.
+   */
+  public int getNodeCount(int record)
+  {
+    return buffer.getInt(recordPosition(record) + 16);
+  }
+
+  /**
+   * Get the index of the name of a node in the string table.
+   *
+   * @param record
+   *          The record number.
+   * @param node
+   *          The node number.
+   * @return The string index.
+   */
+  public int getNodeNameIndex(int record, int node)
+  {
+    return buffer.getInt(nodePosition(record, node));
+  }
+
+  /**
+   * Get the name of a node.
+   *
+   * @param record
+   *          The record number.
+   * @param node
+   *          The node number.
+   * @return The name.
+   */
+  public String getNodeName(int record, int node)
+  {
+    return getString(getNodeNameIndex(record, node));
+  }
+
+  /**
+   * Get the depth of a node in the profile tree (the root is 0).
+   *
+   * @param record
+   *          The record number.
+   * @param node
+   *          The node number.
+   * @return The depth.
+   */
+  public int getNodeDepth(int record, int node)
+  {
+    return buffer.getInt(nodePosition(record, node) + 4);
+  }
+
+  /**
+   * Get how far from the start of the request a node started (nanoseconds).
+   *
+   * @param record
+   *          The record number.
+   * @param node
+   *          The node number.
+   * @return The offset.
+   */
+  public long getNodeOffset(int record, int node)
+  {
+    return buffer.getLong(nodePosition(record, node) + 8);
+  }
+
+  /**
+   * Get how long a node took (nanoseconds).
+   *
+   * @param record
+   *          The record number.
+   * @param node
+   *          The node number.
+   * @return The duration.
+   */
+  public long getNodeDuration(int record, int node)
+  {
+    return buffer.getLong(nodePosition(record, node) + 16);
+  }
+
+  /**
+   * Rebuild the profile tree of a request.
+   *
+   * @param record
+   *          The record number.
+   * @return The profile tree (or {@code null} if the request has no profile).
+   */
+  public MiniProfiler.Profile getProfile(int record)
+  {
+    int nodeCount = getNodeCount(record);
+    if (nodeCount == 0)
+    {
+      return null;
+    }
+    // The stack of ancestors of the current node
+    List<MiniProfiler.Profile> stack = new ArrayList<MiniProfiler.Profile>();
+    for (int node = 0; node < nodeCount; node++)
+    {
+      MiniProfiler.Profile profile = new MiniProfiler.Profile(node, getNodeName(record, node));
+      int depth = getNodeDepth(record, node);
+      profile.setDepth(depth);
+      profile.setOffset(getNodeOffset(record, node));
+      profile.setDuration(getNodeDuration(record, node));
+      while (stack.size() > depth)
+      {
+        stack.remove(stack.size() - 1);
+      }
+      if (!stack.isEmpty())
+      {
+        stack.get(stack.size() - 1).addChild(profile);
+      }
+      stack.add(profile);
+    }
+    return stack.get(0);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    buffer = null;
+    file.close();
+  }
+
+  private int recordPosition(int record)
+  {
+    // Skip the record length
+    return (int) buffer.getLong(indexPosition + record * MiniProfilerSegmentWriter.INDEX_ENTRY_SIZE) + 4;
+  }
+
+  private int nodePosition(int record, int node)
+  {
+    return recordPosition(record) + MiniProfilerSegmentWriter.RECORD_HEADER_SIZE + node * MiniProfilerSegmentWriter.NODE_SIZE;
+  }
+
+  /**
+   * Read a string (written with its length) from the mapped file.
+   */
+  private String readString(int position)
+  {
+    int length = buffer.getInt(position);
+    if (length < 0)
+    {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    ByteBuffer b = buffer.duplicate();
+    b.position(position + 4);
+    b.get(bytes);
+    try
+    {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Get the position after a string (written with its length).
+   */
+  private int skipString(int position)
+  {
+    return position + 4 + Math.max(0, buffer.getInt(position));
+  }
+}
@@ -0,0 +1,590 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool for analyzing profile segments (written by a
+ * {@link MiniProfilerSegmentWriter}, e.g. downloaded from the
+ * {@link MiniProfilerServlet}'s {@code dump} URL).
+ * <p>
+ * Run it without any arguments to see the usage.
+ */
+public class MiniProfilerSegmentTool
+{
+  private static final String USAGE = "Usage: MiniProfilerSegmentTool <command> [options] <segment>...\n" //
+      + "\n" //
+      + "Commands:\n" //
+      + "  dump       Print the matching requests and their profiles\n" //
+      + "  aggregate  Print statistics for each step name across the matching requests\n" //
+      + "  filter     Copy the matching requests to a new segment (see --out)\n" //
+      + "  diff       Compare the step statistics of two sets of segments\n" //
+      + "             (the segments after a -- argument are the second set)\n" //
+      + "\n" //
+      + "Options:\n" //
+      + "  --url <regex>        Only requests whose URL matches the regular expression\n" //
+      + "  --user <email>       Only requests made by the user\n" //
+      + "  --min-duration <ms>  Only requests that took at least this many milliseconds\n" //
+      + "  --from <ms>          Only requests made at or after this time (milliseconds since the epoch)\n" //
+      + "  --to <ms>            Only requests made before this time (milliseconds since the epoch)\n" //
+      + "  --out <file>         The segment to write the matching requests to (filter only)\n";
+
+  /**
+   * Which requests to include.
+   */
+  public static class Criteria
+  {
+    private Pattern url;
+    private String user;
+    private long minDuration = Long.MIN_VALUE;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    /**
+     * Only include requests whose URL matches the regular expression.
+     *
+     * @param url
+     *          The regular expression.
+     * @return These criteria.
+     */
+    public Criteria url(String url)
+    {
+      this.url = Pattern.compile(url);
+      return this;
+    }
+
+    /**
+     * Only include requests made by the user.
+     *
+     * @param user
+     *          The email of the user.
+     * @return These criteria.
+     */
+    public Criteria user(String user)
+    {
+      this.user = user;
+      return this;
+    }
+
+    /**
+     * Only include requests that took at least this long.
+     *
+     * @param millis
+     *          The minimum duration (milliseconds).
+     * @return These criteria.
+     */
+    public Criteria minDuration(long millis)
+    {
+      this.minDuration = millis * 1000000;
+      return this;
+    }
+
+    /**
+     * Only include requests made at or after this time.
+     *
+     * @param from
+     *          The time (milliseconds since the epoch).
+     * @return These criteria.
+     */
+    public Criteria from(long from)
+    {
+      this.from = from;
+      return this;
+    }
+
+    /**
+     * Only include requests made before this time.
+     *
+     * @param to
+     *          The time (milliseconds since the epoch).
+     * @return These criteria.
+     */
+    public Criteria to(long to)
+    {
+      this.to = to;
+      return this;
+    }
+
+    /**
+     * Whether a request matches these criteria. The cheap checks (that only use
+     * the index) are done first.
+     *
+     * @param segment
+     *          The segment.
+     * @param record
+     *          The record number.
+     * @return Whether the request matches.
+     */
+    public boolean matches(MiniProfilerSegmentReader segment, int record)
+    {
+      long timestamp = segment.getTimestamp(record);
+      if (timestamp < from || timestamp >= to || segment.getDuration(record) < minDuration)
+      {
+        return false;
+      }
+      if (user != null && !user.equals(segment.getUser(record)))
+      {
+        return false;
+      }
+      return url == null || url.matcher(segment.getURL(record)).find();
+    }
+  }
+
+  /**
+   * Statistics for each step name across a set of requests.
+   */
+  public static class Aggregate
+  {
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+    private List<String> names = new ArrayList<String>();
+    private long[] counts = new long[64];
+    private long[] totals = new long[64];
+    private long[] selfTotals = new long[64];
+    private long[] maxes = new long[64];
+    private int requestCount;
+
+    // Re-used between records
+    private long[] self = new long[64];
+    private int[] parents = new int[64];
+
+    /**
+     * Add the matching requests in a segment to the statistics.
+     *
+     * @param segment
+     *          The segment.
+     * @param criteria
+     *          Which requests to include.
+     */
+    public void add(MiniProfilerSegmentReader segment, Criteria criteria)
+    {
+      // Map the segment's string table to step ids once, so there are no
+      // lookups per node.
+      int[] stringIds = new int[segment.getStringCount()];
+      Arrays.fill(stringIds, -1);
+
+      for (int record = 0; record < segment.getRecordCount(); record++)
+      {
+        if (!criteria.matches(segment, record))
+        {
+          continue;
+        }
+        requestCount++;
+        int nodeCount = segment.getNodeCount(record);
+        if (self.length < nodeCount)
+        {
+          self = new long[nodeCount * 2];
+        }
+        for (int node = 0; node < nodeCount; node++)
+        {
+          long duration = segment.getNodeDuration(record, node);
+          int depth = segment.getNodeDepth(record, node);
+          self[node] = duration;
+          if (depth > 0)
+          {
+            self[parents[depth - 1]] -= duration;
+          }
+          if (parents.length <= depth)
+          {
+            parents = Arrays.copyOf(parents, depth * 2);
+          }
+          parents[depth] = node;
+        }
+        for (int node = 0; node < nodeCount; node++)
+        {
+          int nameIndex = segment.getNodeNameIndex(record, node);
+          int id = stringIds[nameIndex];
+          if (id < 0)
+          {
+            id = stringIds[nameIndex] = id(segment.getString(nameIndex));
+          }
+          long duration = segment.getNodeDuration(record, node);
+          counts[id]++;
+          totals[id] += duration;
+          selfTotals[id] += self[node];
+          maxes[id] = Math.max(maxes[id], duration);
+        }
+      }
+    }
+
+    /**
+     * Get the number of requests that were included.
+     *
+     * @return The number of requests.
+     */
+    public int getRequestCount()
+    {
+      return requestCount;
+    }
+
+    /**
+     * Get the step names that were seen (in the order they were first seen).
+     *
+     * @return The step names.
+     */
+    public List<String> getNames()
+    {
+      return names;
+    }
+
+    /**
+     * Get the number of times a step was run.
+     *
+     * @param name
+     *          The step name.
+     * @return The count.
+     */
+    public long getCount(String name)
+    {
+      Integer id = ids.get(name);
+      return id != null ? counts[id] : 0;
+    }
+
+    /**
+     * Get the total duration of a step (nanoseconds).
+     *
+     * @param name
+     *          The step name.
+     * @return The total duration.
+     */
+    public long getTotal(String name)
+    {
+      Integer id = ids.get(name);
+      return id != null ? totals[id] : 0;
+    }
+
+    /**
+     * Get the total duration of a step, minus its child steps (nanoseconds).
+     *
+     * @param name
+     *          The step name.
+     * @return The total self duration.
+     */
+    public long getSelfTotal(String name)
+    {
+      Integer id = ids.get(name);
+      return id != null ? selfTotals[id] : 0;
+    }
+
+    /**
+     * Get the longest duration of a step (nanoseconds).
+     *
+     * @param name
+     *          The step name.
+     * @return The maximum duration.
+     */
+    public long getMax(String name)
+    {
+      Integer id = ids.get(name);
+      return id != null ? maxes[id] : 0;
+    }
+
+    /**
+     * Get the mean duration of a step (nanoseconds).
+     *
+     * @param name
+     *          The step name.
+     * @return The mean duration (0 if the step was never run).
+     */
+    public double getMean(String name)
+    {
+      long count = getCount(name);
+      return count > 0 ? (double) getTotal(name) / count : 0;
+    }
+
+    private int id(String name)
+    {
+      Integer id = ids.get(name);
+      if (id == null)
+      {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+        if (id >= counts.length)
+        {
+          int length = counts.length * 2;
+          counts = Arrays.copyOf(counts, length);
+          totals = Arrays.copyOf(totals, length);
+          selfTotals = Arrays.copyOf(selfTotals, length);
+          maxes = Arrays.copyOf(maxes, length);
+        }
+      }
+      return id;
+    }
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 2)
+    {
+      System.err.print(USAGE);
+      System.exit(1);
+    }
+    String command = args[0];
+    Criteria criteria = new Criteria();
+    File out = null;
+    List<File> segments = new ArrayList<File>();
+    List<File> otherSegments = new ArrayList<File>();
+    List<File> current = segments;
+    for (int i = 1; i < args.length; i++)
+    {
+      String arg = args[i];
+      if ("--".equals(arg))
+      {
+        current = otherSegments;
+      } else if (arg.startsWith("--") && i + 1 < args.length)
+      {
+        String value = args[++i];
+        if ("--url".equals(arg))
+        {
+          criteria.url(value);
+        } else if ("--user".equals(arg))
+        {
+          criteria.user(value);
+        } else if ("--min-duration".equals(arg))
+        {
+          criteria.minDuration(Long.parseLong(value));
+        } else if ("--from".equals(arg))
+        {
+          criteria.from(Long.parseLong(value));
+        } else if ("--to".equals(arg))
+        {
+          criteria.to(Long.parseLong(value));
+        } else if ("--out".equals(arg))
+        {
+          out = new File(value);
+        } else
+        {
+          usageError("Unknown option: " + arg);
+        }
+      } else
+      {
+        current.add(new File(arg));
+      }
+    }
+
+    PrintStream o = System.out;
+    if ("dump".equals(command))
+    {
+      dump(segments, criteria, o);
+    } else if ("aggregate".equals(command))
+    {
+      printAggregate(aggregate(segments, criteria), o);
+    } else if ("filter".equals(command))
+    {
+      if (out == null)
+      {
+        usageError("filter needs an --out file");
+      }
+      o.println(filter(segments, criteria, out) + " requests written to " + out);
+    } else if ("diff".equals(command))
+    {
+      if (otherSegments.isEmpty())
+      {
+        usageError("diff needs two sets of segments separated by --");
+      }
+      printDiff(aggregate(segments, criteria), aggregate(otherSegments, criteria), o);
+    } else
+    {
+      usageError("Unknown command: " + command);
+    }
+    o.flush();
+  }
+
+  /**
+   * Print the matching requests and their profile trees.
+   *
+   * @param segments
+   *          The segments.
+   * @param criteria
+   *          Which requests to print.
+   * @param o
+   *          Where to print.
+   */
+  public static void dump(List<File> segments, Criteria criteria, PrintStream o) throws IOException
+  {
+    for (File file : segments)
+    {
+      MiniProfilerSegmentReader segment = new MiniProfilerSegmentReader(file);
+      try
+      {
+        for (int record = 0; record < segment.getRecordCount(); record++)
+        {
+          if (!criteria.matches(segment, record))
+          {
+            continue;
+          }
+          o.printf("%s  %s  %s  id=%s  user=%s%n", new Date(segment.getTimestamp(record)), millis(segment.getDuration(record)), segment.getURL(record),
+              segment.getRequestId(record), segment.getUser(record));
+          for (int node = 0; node < segment.getNodeCount(record); node++)
+          {
+            StringBuilder indent = new StringBuilder();
+            for (int i = 0; i < segment.getNodeDepth(record, node); i++)
+            {
+              indent.append("  ");
+            }
+            o.printf("  %s%s  %s (+%s)%n", indent, segment.getNodeName(record, node), millis(segment.getNodeDuration(record, node)),
+                millis(segment.getNodeOffset(record, node)));
+          }
+        }
+      } finally
+      {
+        segment.close();
+      }
+    }
+  }
+
+  /**
+   * Calculate statistics for each step name across the matching requests.
+   *
+   * @param segments
+   *          The segments.
+   * @param criteria
+   *          Which requests to include.
+   * @return The statistics.
+   */
+  public static Aggregate aggregate(List<File> segments, Criteria criteria) throws IOException
+  {
+    Aggregate result = new Aggregate();
+    for (File file : segments)
+    {
+      MiniProfilerSegmentReader segment = new MiniProfilerSegmentReader(file);
+      try
+      {
+        result.add(segment, criteria);
+      } finally
+      {
+        segment.close();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Copy the matching requests to a new segment.
+   *
+   * @param segments
+   *          The segments.
+   * @param criteria
+   *          Which requests to copy.
+   * @param out
+   *          The new segment.
+   * @return The number of requests copied.
+   */
+  public static int filter(List<File> segments, Criteria criteria, File out) throws IOException
+  {
+    int count = 0;
+    MiniProfilerSegmentWriter writer = new MiniProfilerSegmentWriter(new FileOutputStream(out));
+    try
+    {
+      for (File file : segments)
+      {
+        MiniProfilerSegmentReader segment = new MiniProfilerSegmentReader(file);
+        try
+        {
+          for (int record = 0; record < segment.getRecordCount(); record++)
+          {
+            if (criteria.matches(segment, record))
+            {
+              Map<String, Object> requestData = new HashMap<String, Object>();
+              requestData.put("requestURL", segment.getURL(record));
+              requestData.put("timestamp", segment.getTimestamp(record));
+              requestData.put("profile", segment.getProfile(record));
+              writer.write(segment.getRequestId(record), segment.getUser(record), requestData);
+              count++;
+            }
+          }
+        } finally
+        {
+          segment.close();
+        }
+      }
+    } finally
+    {
+      writer.close();
+    }
+    return count;
+  }
+
+  private static void printAggregate(Aggregate aggregate, PrintStream o)
+  {
+    List<String> names = new ArrayList<String>(aggregate.getNames());
+    final Aggregate a = aggregate;
+    Collections.sort(names, new Comparator<String>()
+    {
+      @Override
+      public int compare(String x, String y)
+      {
+        return Long.valueOf(a.getSelfTotal(y)).compareTo(a.getSelfTotal(x));
+      }
+    });
+    o.printf("%d requests%n", aggregate.getRequestCount());
+    o.printf("%-50s %10s %14s %14s %12s %12s%n", "Step", "Count", "Total (ms)", "Self (ms)", "Mean (ms)", "Max (ms)");
+    for (String name : names)
+    {
+      o.printf("%-50s %10d %14s %14s %12s %12s%n", name, aggregate.getCount(name), millis(aggregate.getTotal(name)), millis(aggregate.getSelfTotal(name)),
+          millis((long) aggregate.getMean(name)), millis(aggregate.getMax(name)));
+    }
+  }
+
+  private static void printDiff(Aggregate before, Aggregate after, PrintStream o)
+  {
+    Set<String> allNames = new LinkedHashSet<String>(before.getNames());
+    allNames.addAll(after.getNames());
+    List<String> names = new ArrayList<String>(allNames);
+    final Aggregate b = before;
+    final Aggregate a = after;
+    // Biggest regressions first
+    Collections.sort(names, new Comparator<String>()
+    {
+      @Override
+      public int compare(String x, String y)
+      {
+        return Double.compare(a.getMean(y) - b.getMean(y), a.getMean(x) - b.getMean(x));
+      }
+    });
+    o.printf("%d requests vs. %d requests%n", before.getRequestCount(), after.getRequestCount());
+    o.printf("%-50s %10s %12s %10s %12s %12s %8s%n", "Step", "Count", "Mean (ms)", "Count", "Mean (ms)", "Delta (ms)", "Delta");
+    for (String name : names)
+    {
+      double meanBefore = before.getMean(name);
+      double meanAfter = after.getMean(name);
+      o.printf("%-50s %10d %12s %10d %12s %12s %8s%n", name, before.getCount(name), millis((long) meanBefore), after.getCount(name), millis((long) meanAfter),
+          millis((long) (meanAfter - meanBefore)), meanBefore > 0 ? String.format("%+.0f%%", (meanAfter - meanBefore) * 100 / meanBefore) : "new");
+    }
+  }
+
+  private static String millis(long nanos)
+  {
+    return String.format(Locale.US, "%.2f", nanos / 1000000.0);
+  }
+
+  private static void usageError(String message)
+  {
+    System.err.println(message);
+    System.err.println();
+    System.err.print(USAGE);
+    System.exit(1);
+  }
+}
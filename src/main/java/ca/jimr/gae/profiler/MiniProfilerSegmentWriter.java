@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes profiles to a segment file that can be analyzed offline with the
+ * {@link MiniProfilerSegmentTool}.
+ * <p>
+ * A segment is written in a single pass (records are only ever appended) and
+ * has the following layout (all numbers are big-endian):
+ *
+ * <pre>
+ * header:  int magic, int version
+ * records: int length (of the rest of the record),
+ *          long timestamp, long duration, int nodeCount,
+ *          nodeCount x (int name, int depth, long offset, long duration),
+ *          string url, string user, string requestId
+ * strings: int count, count x int position, count x string
+ * index:   recordCount x (long position, long timestamp, long duration)
+ * trailer: long stringsPosition, long indexPosition, int recordCount, int magic
+ *
+ * string:  int length (-1 for null), length x UTF-8 bytes
+ * </pre>
+ *
+ * Step names are stored once in the string table and referred to by their
+ * index, and the table starts with the position of each string so that
+ * readers can find a string without loading the table. The strings that are
+ * different for every request (URLs, users and request ids) are stored in the
+ * record. The profile tree of each record is flattened in pre-order so that
+ * nodes have a fixed size.
+ */
+public class MiniProfilerSegmentWriter implements Closeable
+{
+  public static final int MAGIC = 0x4D505347;
+  public static final int VERSION = 1;
+  /** The size of the trailer at the end of a segment. */
+  public static final int TRAILER_SIZE = 24;
+  /** The size of a node in a record. */
+  public static final int NODE_SIZE = 24;
+  /** The size of the fixed part of a record (after the length). */
+  public static final int RECORD_HEADER_SIZE = 20;
+  /** The size of an entry in the index. */
+  public static final int INDEX_ENTRY_SIZE = 24;
+
+  private DataOutputStream out;
+  /** The current position in the segment */
+  private long position;
+  /** The string table of step names (name to index) */
+  private Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+  /** The index entries (position, timestamp, duration) for each record */
+  private List<long[]> index = new ArrayList<long[]>();
+  /** Used to build each record before it's written */
+  private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+  /**
+   * Create a writer.
+   *
+   * @param out
+   *          Where the segment will be written.
+   */
+  public MiniProfilerSegmentWriter(OutputStream out) throws IOException
+  {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(VERSION);
+    position = 8;
+  }
+
+  /**
+   * Append a profile to the segment.
+   *
+   * @param requestId
+   *          The profile request id.
+   * @param user
+   *          The email of the user that made the request (may be null).
+   * @param requestData
+   *          The request data (as stored in memcache by the
+   *          {@link MiniProfilerFilter}).
+   */
+  public void write(String requestId, String user, Map<String, Object> requestData) throws IOException
+  {
+    MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+    long timestamp = (Long) requestData.get("timestamp");
+    long duration = profile != null ? profile.getDuration() : 0;
+
+    List<MiniProfiler.Profile> nodes = new ArrayList<MiniProfiler.Profile>();
+    List<Integer> depths = new ArrayList<Integer>();
+    if (profile != null)
+    {
+      flatten(profile, 0, nodes, depths);
+    }
+
+    recordBytes.reset();
+    DataOutputStream record = new DataOutputStream(recordBytes);
+    record.writeLong(timestamp);
+    record.writeLong(duration);
+    record.writeInt(nodes.size());
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      MiniProfiler.Profile node = nodes.get(i);
+      record.writeInt(stringIndex(node.getName()));
+      record.writeInt(depths.get(i));
+      record.writeLong(node.getOffset());
+      record.writeLong(node.getDuration());
+    }
+    writeString(record, (String) requestData.get("requestURL"));
+    writeString(record, user);
+    writeString(record, requestId);
+    record.flush();
+
+    index.add(new long[] { position, timestamp, duration });
+    out.writeInt(recordBytes.size());
+    recordBytes.writeTo(out);
+    position += 4 + recordBytes.size();
+  }
+
+  /**
+   * Write the string table, index and trailer and close the segment.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    long stringsPosition = position;
+    int stringsStart = out.size();
+    out.writeInt(strings.size());
+    List<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+    long stringPosition = stringsPosition + 4 + strings.size() * 4L;
+    for (String s : strings.keySet())
+    {
+      byte[] bytes = s.getBytes("UTF-8");
+      encoded.add(bytes);
+      out.writeInt((int) stringPosition);
+      stringPosition += 4 + bytes.length;
+    }
+    for (byte[] bytes : encoded)
+    {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    long indexPosition = stringsPosition + (out.size() - stringsStart);
+    for (long[] entry : index)
+    {
+      out.writeLong(entry[0]);
+      out.writeLong(entry[1]);
+      out.writeLong(entry[2]);
+    }
+    out.writeLong(stringsPosition);
+    out.writeLong(indexPosition);
+    out.writeInt(index.size());
+    out.writeInt(MAGIC);
+    out.close();
+  }
+
+  /**
+   * Flatten a profile tree in pre-order.
+   */
+  private static void flatten(MiniProfiler.Profile profile, int depth, List<MiniProfiler.Profile> nodes, List<Integer> depths)
+  {
+    nodes.add(profile);
+    depths.add(depth);
+    for (MiniProfiler.Profile child : profile.getChildren())
+    {
+      flatten(child, depth + 1, nodes, depths);
+    }
+  }
+
+  /**
+   * Write a string (which may be null) with its length.
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    if (s == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Get the index of a string in the string table (adding it if necessary).
+   */
+  private int stringIndex(String s)
+  {
+    if (s == null)
+    {
+      return -1;
+    }
+    Integer i = strings.get(s);
+    if (i == null)
+    {
+      i = strings.size();
+      strings.put(s, i);
+    }
+    return i;
+  }
+}
@@ -35,14 +35,29 @@ import org.codehaus.jackson.map.ObjectMapper;
 
 import ca.jimr.gae.profiler.resources.MiniProfilerResourceLoader;
 
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
 import com.google.appengine.tools.appstats.MiniProfilerAppstats;
 
 /**
  * Servlet that:
  * <ul>
  * <li>Returns profile information for a set of requests (in JSON format).
+ * <li>Compares the profiles of two or more requests.
+ * <li>Finds profiles that have been archived in the datastore, or downloads
+ * them as a segment file for offline analysis (app admins only).
+ * <li>Lists the steps that have regressed compared to their baselines (app
+ * admins only).
+ * <li>Exports step and request timings in the Prometheus text format (app
+ * admins, or anyone with the {@code metricsKey}).
+ * <li>Long-polls for summaries of new requests made by the same browser (if
+ * the filter's {@code liveResults} option is enabled).
+ * <li>Stores the browser timings of profiled pages.
+ * <li>Shows and changes the filter settings that can be changed at runtime
+ * (app admins only).
  * <li>Serves the static resources that make up the profiler UI.
  * </ul>
  */
@@ -53,6 +68,45 @@ public class MiniProfilerServlet extends HttpServlet
   private static final String MAX_STACK_FRAMES_KEY = "maxStackFrames";
   private static final String HTML_ID_PREFIX_KEY = "htmlIdPrefix";
   private static final String RESOURCE_CACHE_HOURS_KEY = "resourceCacheHours";
+  private static final String POLL_TIMEOUT_KEY = "pollTimeout";
+  private static final String METRICS_KEY_KEY = "metricsKey";
+
+  /**
+   * How long to wait before checking for new requests again while
+   * long-polling. The wait doubles after each check (up to
+   * {@link #POLL_MAX_INTERVAL_MILLIS}).
+   */
+  private static final long POLL_INTERVAL_MILLIS = 250;
+  /** The longest wait between checks for new requests while long-polling. */
+  private static final long POLL_MAX_INTERVAL_MILLIS = 4000;
+  /** The maximum number of checks for new requests made by a single poll. */
+  private static final int POLL_MAX_READS = 8;
+  /** How long to wait for more requests once a new request has been seen. */
+  private static final long POLL_COALESCE_MILLIS = 200;
+  /** How many times to wait for a request that hasn't been stored yet. */
+  private static final int POLL_COALESCE_RETRIES = 3;
+  /** The maximum number of requests returned by a single poll. */
+  private static final int POLL_MAX_REQUESTS = 50;
+  /** The default number of archived profiles returned at a time. */
+  private static final int ARCHIVE_DEFAULT_LIMIT = 20;
+  /** The maximum number of archived profiles returned at a time. */
+  private static final int ARCHIVE_MAX_LIMIT = 100;
+  /** The default number of archived profiles included in a dump. */
+  private static final int DUMP_DEFAULT_LIMIT = 1000;
+  /** The maximum number of archived profiles included in a dump. */
+  private static final int DUMP_MAX_LIMIT = 10000;
+  /** How many levels of steps are included in a profile summary by default. */
+  private static final int SUMMARY_DEFAULT_DEPTH = 1;
+  /** How many steps are included in a profile summary (or subtree) by default. */
+  private static final int SUMMARY_DEFAULT_STEPS = 100;
+  /** The maximum number of steps included in a profile summary (or subtree). */
+  private static final int SUMMARY_MAX_STEPS = 5000;
+  /** How long browser timings are kept (they are only read with their profile). */
+  private static final int CLIENT_TIMING_EXPIRY_SECONDS = 24 * 60 * 60;
+  /** How long settings overrides last by default. */
+  private static final int CONFIG_DEFAULT_EXPIRY_SECONDS = 60 * 60;
+  /** The largest settings change that is read. */
+  private static final int CONFIG_MAX_BYTES = 16 * 1024;
 
   /**
    * The maximum number of stack frames that should show up in Appstats RPC
@@ -70,6 +124,17 @@ public class MiniProfilerServlet extends HttpServlet
    * browser for.
    */
   private int resourceCacheHours = 0;
+  /**
+   * The maximum number of seconds a long-poll for new requests will wait before
+   * returning an empty result.
+   */
+  private int pollTimeout = 20;
+  /**
+   * A key that allows the metrics to be fetched without being logged in as an
+   * app admin (e.g. by a Prometheus server) when it is passed as the
+   * {@code key} parameter. If null, only app admins can fetch the metrics.
+   */
+  private String metricsKey;
 
   /**
    * The loader that will load the static resources for the profiler UI from
@@ -80,6 +145,10 @@ public class MiniProfilerServlet extends HttpServlet
   private Map<String, String> resourceReplacements = new HashMap<String, String>();
   /** The Appengine Memcache Service */
   private MemcacheService ms;
+  /** The Appengine User Service */
+  private UserService us;
+  /** Used to find archived profiles. */
+  private MiniProfilerArchive archive;
 
   @Override
   public void init(ServletConfig config) throws ServletException
@@ -99,8 +168,21 @@ public class MiniProfilerServlet extends HttpServlet
     {
       resourceCacheHours = Integer.parseInt(configResourceCacheHours);
     }
+    String configPollTimeout = config.getInitParameter(POLL_TIMEOUT_KEY);
+    if (!isEmpty(configPollTimeout))
+    {
+      pollTimeout = Integer.parseInt(configPollTimeout.trim());
+    }
+
+    String configMetricsKey = config.getInitParameter(METRICS_KEY_KEY);
+    if (!isEmpty(configMetricsKey))
+    {
+      metricsKey = configMetricsKey.trim();
+    }
 
     ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    us = UserServiceFactory.getUserService();
+    archive = new MiniProfilerArchive(1, 0);
     resourceLoader = new MiniProfilerResourceLoader();
     resourceReplacements.put("@@prefix@@", htmlIdPrefix);
   }
@@ -115,7 +197,72 @@ public class MiniProfilerServlet extends HttpServlet
     } else if (requestURI.endsWith("resource"))
     {
       doResource(req, resp);
+    } else if (requestURI.endsWith("poll"))
+    {
+      doPoll(req, resp);
+    } else if (requestURI.endsWith("archive"))
+    {
+      doArchive(req, resp);
+    } else if (requestURI.endsWith("dump"))
+    {
+      doDump(req, resp);
+    } else if (requestURI.endsWith("diff"))
+    {
+      doDiff(req, resp);
+    } else if (requestURI.endsWith("regressions"))
+    {
+      doRegressions(req, resp);
+    } else if (requestURI.endsWith("metrics"))
+    {
+      doMetrics(req, resp);
+    } else if (requestURI.endsWith("timeline"))
+    {
+      doTimeline(req, resp);
+    } else if (requestURI.endsWith("subtree"))
+    {
+      doSubtree(req, resp);
+    } else if (requestURI.endsWith("config"))
+    {
+      doConfig(req, resp);
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+  {
+    if (req.getRequestURI().endsWith("client"))
+    {
+      doClientTiming(req, resp);
+    } else if (req.getRequestURI().endsWith("config"))
+    {
+      doSetConfig(req, resp);
+    } else
+    {
+      resp.sendError(404);
+    }
+  }
+
+  /**
+   * Store the browser timings sent by the profiler UI for a profiled page (see
+   * {@link MiniProfilerClientTiming}). They are stored next to the profile
+   * (rather than in it) so that the profile doesn't have to be rewritten.
+   */
+  private void doClientTiming(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    Map<String, Object> timing = MiniProfilerClientTiming.parse(req.getInputStream());
+    if (timing == null)
+    {
+      resp.sendError(400);
+      return;
     }
+    String requestId = (String) timing.remove("id");
+    if (!ms.contains(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId)))
+    {
+      resp.sendError(404);
+      return;
+    }
+    ms.put(String.format(MiniProfilerClientTiming.MEMCACHE_KEY_FORMAT_STRING, requestId), timing, Expiration.byDeltaSeconds(CLIENT_TIMING_EXPIRY_SECONDS));
+    resp.setStatus(204);
   }
 
   /**
@@ -170,6 +317,13 @@ public class MiniProfilerServlet extends HttpServlet
 
   /**
    * Generate the results for a set of requests in JSON format.
+   * <p>
+   * By default each profile is summarized (see {@link MiniProfilerTree}): only
+   * the top {@code depth} levels of steps (1 by default) are included, up to
+   * {@code maxSteps} steps, and the rest can be fetched with the subtree
+   * endpoint. Appstats data is only included if the {@code appstats}
+   * parameter is set. With the {@code full} parameter, the full profiles and
+   * Appstats data are returned.
    */
   private void doResults(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException
   {
@@ -178,32 +332,575 @@ public class MiniProfilerServlet extends HttpServlet
     String requestIds = req.getParameter("ids");
     if (!isEmpty(requestIds))
     {
+      boolean full = isSet(req.getParameter("full"));
+      boolean appstats = full || isSet(req.getParameter("appstats"));
+      int depth = getIntParameter(req, "depth", SUMMARY_DEFAULT_DEPTH, Integer.MAX_VALUE);
+      int maxSteps = getIntParameter(req, "maxSteps", SUMMARY_DEFAULT_STEPS, SUMMARY_MAX_STEPS);
+
+      List<String> keys = new ArrayList<String>();
+      for (String requestId : requestIds.split(","))
+      {
+        requestId = requestId.trim();
+        keys.add(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+        keys.add(String.format(MiniProfilerClientTiming.MEMCACHE_KEY_FORMAT_STRING, requestId));
+      }
+      Map<String, Object> stored = MiniProfilerStore.getAll(ms, keys);
+
       List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
       for (String requestId : requestIds.split(","))
       {
         requestId = requestId.trim();
         @SuppressWarnings("unchecked")
-        Map<String, Object> requestData = (Map<String, Object>) ms.get(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+        Map<String, Object> requestData = (Map<String, Object>) stored.get(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+        if (requestData != null)
+        {
+          MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+          Map<String, Object> request = getRequestResult(requestId, requestData, full ? profile : MiniProfilerTree.summarize(profile, depth, maxSteps),
+              appstats);
+          request.put("clientTiming", stored.get(String.format(MiniProfilerClientTiming.MEMCACHE_KEY_FORMAT_STRING, requestId)));
+          requests.add(request);
+        }
+      }
+      result.put("ok", true);
+      result.put("requests", requests);
+    } else
+    {
+      result.put("ok", false);
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Generate a view of the steps under a step of a request's profile (see
+   * {@link MiniProfilerTree#subtree}) in JSON format. The request is given by
+   * the {@code id} parameter and the step by the {@code step} parameter, and
+   * the {@code depth} (1 by default) and {@code maxSteps} parameters limit how
+   * much of the subtree is returned.
+   */
+  private void doSubtree(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException
+  {
+    Map<String, Object> result = new HashMap<String, Object>();
+
+    String requestId = req.getParameter("id");
+    Long stepId = null;
+    try
+    {
+      stepId = parseLong(req.getParameter("step"));
+    } catch (NumberFormatException e)
+    {
+      // Treated as missing
+    }
+    Map<String, Object> step = null;
+    if (!isEmpty(requestId) && stepId != null)
+    {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> requestData = (Map<String, Object>) MiniProfilerStore.get(ms,
+          String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId.trim()));
+      if (requestData != null)
+      {
+        int depth = getIntParameter(req, "depth", SUMMARY_DEFAULT_DEPTH, Integer.MAX_VALUE);
+        int maxSteps = getIntParameter(req, "maxSteps", SUMMARY_DEFAULT_STEPS, SUMMARY_MAX_STEPS);
+        step = MiniProfilerTree.subtree((MiniProfiler.Profile) requestData.get("profile"), stepId, depth, maxSteps);
+      }
+    }
+    if (step != null)
+    {
+      result.put("ok", true);
+      result.put("step", step);
+    } else
+    {
+      result.put("ok", false);
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Compare the profiles of two or more requests (see {@link MiniProfilerDiff})
+   * in JSON format. The requests are compared to the first one.
+   */
+  private void doDiff(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException
+  {
+    Map<String, Object> result = new HashMap<String, Object>();
+
+    String requestIds = req.getParameter("ids");
+    List<String> ids = new ArrayList<String>();
+    if (!isEmpty(requestIds))
+    {
+      for (String requestId : requestIds.split(","))
+      {
+        if (!isEmpty(requestId))
+        {
+          ids.add(requestId.trim());
+        }
+      }
+    }
+    if (ids.size() >= 2)
+    {
+      List<String> keys = new ArrayList<String>();
+      for (String requestId : ids)
+      {
+        keys.add(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+      }
+      Map<String, Object> stored = MiniProfilerStore.getAll(ms, keys);
+      List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+      List<MiniProfiler.Profile> profiles = new ArrayList<MiniProfiler.Profile>();
+      for (int i = 0; i < ids.size(); i++)
+      {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> requestData = (Map<String, Object>) stored.get(keys.get(i));
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("id", ids.get(i));
         if (requestData != null)
         {
-          Map<String, Object> request = new HashMap<String, Object>();
-          request.put("id", requestId);
-          request.put("redirect", requestData.get("redirect"));
           request.put("requestURL", requestData.get("requestURL"));
           request.put("timestamp", requestData.get("timestamp"));
-          request.put("profile", requestData.get("profile"));
-          if (requestData.containsKey("appstatsId"))
+          profiles.add((MiniProfiler.Profile) requestData.get("profile"));
+        } else
+        {
+          profiles.add(null);
+        }
+        requests.add(request);
+      }
+      result.put("ok", true);
+      result.put("requests", requests);
+      result.put("diff", MiniProfilerDiff.diff(profiles));
+    } else
+    {
+      result.put("ok", false);
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Generate the timeline of a request and the tasks it spawned (see
+   * {@link MiniProfilerTasks#getTimeline}) in JSON format.
+   */
+  private void doTimeline(HttpServletRequest req, HttpServletResponse resp) throws IOException, JsonGenerationException, JsonMappingException
+  {
+    Map<String, Object> result = new HashMap<String, Object>();
+
+    String requestId = req.getParameter("id");
+    Map<String, Object> timeline = !isEmpty(requestId) ? MiniProfilerTasks.getTimeline(ms, requestId.trim()) : null;
+    if (timeline != null)
+    {
+      result.putAll(timeline);
+      result.put("ok", true);
+    } else
+    {
+      result.put("ok", false);
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Build the result for a single request (as returned by the results
+   * endpoint).
+   * 
+   * @param requestId
+   *          The id of the request.
+   * @param requestData
+   *          The request data stored by the {@link MiniProfilerFilter}.
+   * @param profile
+   *          The profile to return (the full profile or a summary of it).
+   * @param appstats
+   *          Whether to include the Appstats data.
+   * @return The result.
+   */
+  private Map<String, Object> getRequestResult(String requestId, Map<String, Object> requestData, Object profile, boolean appstats)
+  {
+    Map<String, Object> request = new HashMap<String, Object>();
+    request.put("id", requestId);
+    request.put("redirect", requestData.get("redirect"));
+    request.put("requestURL", requestData.get("requestURL"));
+    request.put("timestamp", requestData.get("timestamp"));
+    request.put("profile", profile);
+    request.put("concurrencyStart", requestData.get("concurrencyStart"));
+    request.put("concurrencyEnd", requestData.get("concurrencyEnd"));
+    request.put("queueTime", requestData.get("queueTime"));
+    request.put("partial", Boolean.TRUE.equals(requestData.get("partial")));
+    request.put("stack", requestData.get("stack"));
+    request.put("parentId", requestData.get("parentId"));
+    request.put("queueName", requestData.get("queueName"));
+    request.put("categories", requestData.get("categories"));
+    request.put("regressionThreshold", requestData.get("regressionThreshold"));
+    request.put("hasAppstats", requestData.containsKey("appstatsId"));
+    if (appstats && requestData.containsKey("appstatsId"))
+    {
+      Map<String, Object> appstatsMap = MiniProfilerAppstats.getAppstatsDataFor((String) requestData.get("appstatsId"), maxStackFrames);
+      request.put("appstats", appstatsMap != null ? appstatsMap : null);
+    } else
+    {
+      request.put("appstats", null);
+    }
+    return request;
+  }
+
+  /**
+   * Find profiles that have been archived by the {@link MiniProfilerFilter}
+   * (in JSON format). Only app admins can do this.
+   * <p>
+   * If the {@code id} parameter is specified, the full profile for that
+   * archived request is returned. Otherwise a page of summaries is returned,
+   * optionally filtered by the {@code url} (URL pattern), {@code user},
+   * {@code from}/{@code to} (timestamps), {@code hour},
+   * {@code durationBand} and {@code minDuration} (in milliseconds)
+   * parameters. The {@code cursor} parameter is used to get the
+   * next page.
+   */
+  private void doArchive(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    if (!us.isUserLoggedIn() || !us.isUserAdmin())
+    {
+      resp.sendError(403);
+      return;
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    try
+    {
+      String id = req.getParameter("id");
+      if (!isEmpty(id))
+      {
+        Map<String, Object> requestData = archive.get(Long.parseLong(id.trim()));
+        if (requestData != null)
+        {
+          Map<String, Object> request = getRequestResult(id.trim(), requestData, requestData.get("profile"), true);
+          // The Appstats data is long gone
+          request.put("appstats", null);
+          result.put("request", request);
+        }
+        result.put("ok", requestData != null);
+      } else
+      {
+        String limit = req.getParameter("limit");
+        result.putAll(archive.query(emptyToNull(req.getParameter("url")), emptyToNull(req.getParameter("user")), parseLong(req.getParameter("from")),
+            parseLong(req.getParameter("to")), parseLong(req.getParameter("hour")), parseLong(req.getParameter("durationBand")),
+            parseLong(req.getParameter("minDuration")), emptyToNull(req.getParameter("cursor")),
+            !isEmpty(limit) ? Math.min(Integer.parseInt(limit.trim()), ARCHIVE_MAX_LIMIT) : ARCHIVE_DEFAULT_LIMIT));
+        result.put("ok", true);
+      }
+    } catch (IllegalArgumentException e)
+    {
+      result.put("ok", false);
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * List the steps that are slower than their baselines (in JSON format). Only
+   * app admins can do this.
+   */
+  private void doRegressions(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    if (!us.isUserLoggedIn() || !us.isUserAdmin())
+    {
+      resp.sendError(403);
+      return;
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("ok", true);
+    result.put("regressions", MiniProfilerBaselines.getRegressions(ms));
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Show the settings overrides that are stored in memcache (in JSON format),
+   * along with the settings that can be overridden. Only app admins can do
+   * this.
+   */
+  private void doConfig(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    if (!us.isUserLoggedIn() || !us.isUserAdmin())
+    {
+      resp.sendError(403);
+      return;
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("ok", true);
+    result.put("overrides", MiniProfilerConfig.getOverrides(ms));
+    result.put("keys", MiniProfilerConfig.RELOADABLE_KEYS);
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+
+    ObjectMapper jsonMapper = new ObjectMapper();
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Replace the settings overrides (see {@link MiniProfilerConfig}). The body
+   * is JSON with the {@code overrides} (setting name to value, or empty to go
+   * back to the init parameters) and how many seconds they last
+   * ({@code expiry}). Only app admins can do this, and the body has to be sent
+   * as {@code application/json} (which a cross-site form can't do).
+   */
+  private void doSetConfig(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    if (!us.isUserLoggedIn() || !us.isUserAdmin())
+    {
+      resp.sendError(403);
+      return;
+    }
+    String contentType = req.getContentType();
+    if (contentType == null || !contentType.startsWith("application/json"))
+    {
+      resp.sendError(415);
+      return;
+    }
+    if (req.getContentLength() > CONFIG_MAX_BYTES)
+    {
+      resp.sendError(413);
+      return;
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    ObjectMapper jsonMapper = new ObjectMapper();
+    try
+    {
+      Map<?, ?> body = jsonMapper.readValue(req.getInputStream(), Map.class);
+      if (body == null)
+      {
+        resp.sendError(400);
+        return;
+      }
+      Map<String, String> overrides = new HashMap<String, String>();
+      Object values = body.get("overrides");
+      if (values instanceof Map)
+      {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) values).entrySet())
+        {
+          overrides.put(String.valueOf(entry.getKey()), entry.getValue() != null ? String.valueOf(entry.getValue()) : "");
+        }
+      }
+      Object expiry = body.get("expiry");
+      MiniProfilerConfig.setOverrides(ms, overrides, expiry instanceof Number ? ((Number) expiry).intValue() : CONFIG_DEFAULT_EXPIRY_SECONDS);
+      result.put("ok", true);
+      result.put("overrides", overrides);
+    } catch (IllegalArgumentException e)
+    {
+      result.put("ok", false);
+      result.put("error", e.getMessage());
+    } catch (IOException e)
+    {
+      resp.sendError(400);
+      return;
+    }
+
+    resp.setContentType("application/json");
+    resp.setHeader("Cache-Control", "no-cache");
+    jsonMapper.writeValue(resp.getOutputStream(), result);
+  }
+
+  /**
+   * Export the timers in {@link MiniProfilerMetrics} in the Prometheus text
+   * format. Only app admins (or requests with the metrics key) can do this.
+   */
+  private void doMetrics(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    boolean hasKey = metricsKey != null && metricsKey.equals(req.getParameter("key"));
+    if (!hasKey && (!us.isUserLoggedIn() || !us.isUserAdmin()))
+    {
+      resp.sendError(403);
+      return;
+    }
+
+    resp.setContentType("text/plain; version=0.0.4");
+    resp.setCharacterEncoding("UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    MiniProfilerMetrics.writePrometheus(MiniProfilerMetrics.getRegistry().getTimers(), resp.getWriter());
+  }
+
+  /**
+   * Download archived profiles as a segment file that can be analyzed with the
+   * {@link MiniProfilerSegmentTool}. Only app admins can do this.
+   * <p>
+   * Takes the same filtering parameters as the {@code archive} URL.
+   */
+  private void doDump(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    if (!us.isUserLoggedIn() || !us.isUserAdmin())
+    {
+      resp.sendError(403);
+      return;
+    }
+
+    String url, user;
+    Long from, to, hour, durationBand, minDuration;
+    int limit;
+    try
+    {
+      url = emptyToNull(req.getParameter("url"));
+      user = emptyToNull(req.getParameter("user"));
+      from = parseLong(req.getParameter("from"));
+      to = parseLong(req.getParameter("to"));
+      hour = parseLong(req.getParameter("hour"));
+      durationBand = parseLong(req.getParameter("durationBand"));
+      minDuration = parseLong(req.getParameter("minDuration"));
+      String limitParam = req.getParameter("limit");
+      limit = !isEmpty(limitParam) ? Math.min(Integer.parseInt(limitParam.trim()), DUMP_MAX_LIMIT) : DUMP_DEFAULT_LIMIT;
+    } catch (NumberFormatException e)
+    {
+      resp.sendError(400);
+      return;
+    }
+
+    resp.setContentType("application/octet-stream");
+    resp.setHeader("Content-Disposition", String.format("attachment; filename=\"profiles-%d.mps\"", System.currentTimeMillis()));
+    resp.setHeader("Cache-Control", "no-cache");
+
+    MiniProfilerSegmentWriter writer = new MiniProfilerSegmentWriter(resp.getOutputStream());
+    try
+    {
+      archive.export(url, user, from, to, hour, durationBand, minDuration, limit, writer);
+    } finally
+    {
+      writer.close();
+    }
+  }
+
+  /**
+   * Wait for new requests from the current browser (identified by the client
+   * id cookie set by the {@link MiniProfilerFilter}) and return a summary of
+   * them in JSON format.
+   * <p>
+   * The {@code since} parameter is the last sequence number the browser has
+   * seen. The response contains the new latest sequence number. Requests that
+   * finish close together are returned in a single response. While waiting,
+   * the sequence number is checked less and less often, and at most
+   * {@link #POLL_MAX_READS} times, so an idle browser costs a few memcache
+   * reads per poll.
+   */
+  private void doPoll(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    Map<String, Object> result = new HashMap<String, Object>();
+
+    String clientId = MiniProfilerFilter.getClientId(req);
+    String sinceParam = req.getParameter("since");
+    long since = 0;
+    try
+    {
+      since = !isEmpty(sinceParam) ? Long.parseLong(sinceParam.trim()) : 0;
+    } catch (NumberFormatException e)
+    {
+      clientId = null;
+    }
+    if (clientId != null)
+    {
+      String seqKey = String.format(MiniProfilerFilter.MEMCACHE_CLIENT_SEQ_KEY_FORMAT_STRING, clientId);
+      long deadline = System.currentTimeMillis() + pollTimeout * 1000L;
+      long seq = getSeq(seqKey);
+      if (seq < since)
+      {
+        // The sequence expired and was started again
+        since = 0;
+      }
+      long interval = POLL_INTERVAL_MILLIS;
+      for (int reads = 1; seq <= since && reads < POLL_MAX_READS; reads++)
+      {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          break;
+        }
+        sleep(Math.min(interval, remaining));
+        interval = Math.min(interval * 2, POLL_MAX_INTERVAL_MILLIS);
+        seq = getSeq(seqKey);
+      }
+
+      List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+      if (seq > since)
+      {
+        // Coalesce bursts of requests into a single response
+        long newSeq = seq;
+        do
+        {
+          seq = newSeq;
+          sleep(POLL_COALESCE_MILLIS);
+          newSeq = getSeq(seqKey);
+        } while (newSeq > seq && newSeq - since < POLL_MAX_REQUESTS && System.currentTimeMillis() < deadline);
+        seq = Math.min(newSeq, since + POLL_MAX_REQUESTS);
+
+        List<String> seqKeys = new ArrayList<String>();
+        for (long i = since + 1; i <= seq; i++)
+        {
+          seqKeys.add(String.format(MiniProfilerFilter.MEMCACHE_CLIENT_KEY_FORMAT_STRING, clientId, i));
+        }
+        Map<String, Object> requestIds = ms.getAll(seqKeys);
+        // The sequence number is incremented just before the request id is
+        // stored, so give any stragglers a chance to show up.
+        for (int i = 0; i < POLL_COALESCE_RETRIES && requestIds.size() < seqKeys.size(); i++)
+        {
+          sleep(POLL_COALESCE_MILLIS);
+          requestIds = ms.getAll(seqKeys);
+        }
+
+        List<String> dataKeys = new ArrayList<String>();
+        for (String key : seqKeys)
+        {
+          Object requestId = requestIds.get(key);
+          if (requestId != null)
           {
-            Map<String, Object> appstatsMap = MiniProfilerAppstats.getAppstatsDataFor((String) requestData.get("appstatsId"), maxStackFrames);
-            request.put("appstats", appstatsMap != null ? appstatsMap : null);
-          } else
+            dataKeys.add(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+          }
+        }
+        Map<String, Object> requestDatas = MiniProfilerStore.getAll(ms, dataKeys);
+        for (String key : seqKeys)
+        {
+          Object requestId = requestIds.get(key);
+          if (requestId == null)
           {
-            request.put("appstats", null);
+            continue;
+          }
+          @SuppressWarnings("unchecked")
+          Map<String, Object> requestData = (Map<String, Object>) requestDatas.get(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+          if (requestData != null)
+          {
+            Map<String, Object> request = new HashMap<String, Object>();
+            request.put("id", requestId);
+            request.put("redirect", requestData.get("redirect"));
+            request.put("requestURL", requestData.get("requestURL"));
+            request.put("timestamp", requestData.get("timestamp"));
+            MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+            request.put("duration", profile != null ? profile.getDuration() : 0);
+            request.put("categories", requestData.get("categories"));
+            requests.add(request);
           }
-          requests.add(request);
         }
       }
       result.put("ok", true);
+      result.put("seq", Math.max(seq, since));
       result.put("requests", requests);
     } else
     {
@@ -217,6 +914,106 @@ public class MiniProfilerServlet extends HttpServlet
     jsonMapper.writeValue(resp.getOutputStream(), result);
   }
 
+  /**
+   * Get the current value of a live results sequence number.
+   * 
+   * @param seqKey
+   *          The memcache key of the sequence.
+   * @return The sequence number (0 if there isn't one)
+   */
+  private long getSeq(String seqKey)
+  {
+    Object seq = ms.get(seqKey);
+    return seq instanceof Number ? ((Number) seq).longValue() : 0;
+  }
+
+  /**
+   * Sleep for the specified number of milliseconds.
+   * 
+   * @param millis
+   *          How long to sleep.
+   */
+  private static void sleep(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get a positive integer parameter.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @param name
+   *          The name of the parameter.
+   * @param defaultValue
+   *          The value to use if the parameter is missing or invalid.
+   * @param max
+   *          The maximum value.
+   * @return The value.
+   */
+  private static int getIntParameter(HttpServletRequest req, String name, int defaultValue, int max)
+  {
+    String value = req.getParameter(name);
+    if (!isEmpty(value))
+    {
+      try
+      {
+        int result = Integer.parseInt(value.trim());
+        if (result >= 0)
+        {
+          return Math.min(result, max);
+        }
+      } catch (NumberFormatException e)
+      {
+        // Use the default
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Get whether a flag parameter is set (present, and not {@code 0} or
+   * {@code false}).
+   * 
+   * @param value
+   *          The parameter value.
+   * @return Whether the flag is set.
+   */
+  private static boolean isSet(String value)
+  {
+    return value != null && !"0".equals(value.trim()) && !"false".equalsIgnoreCase(value.trim());
+  }
+
+  /**
+   * Parse the specified string as a long.
+   * 
+   * @param str
+   *          The string to parse.
+   * @return The long, or {@code null} if the string is empty.
+   */
+  private static Long parseLong(String str)
+  {
+    return !isEmpty(str) ? Long.valueOf(str.trim()) : null;
+  }
+
+  /**
+   * Trim the specified string, converting empty strings to null.
+   * 
+   * @param str
+   *          The string.
+   * @return The trimmed string, or {@code null} if the string is empty.
+   */
+  private static String emptyToNull(String str)
+  {
+    return !isEmpty(str) ? str.trim() : null;
+  }
+
   /**
    * Get whether the specified string is null or empty.
    * 
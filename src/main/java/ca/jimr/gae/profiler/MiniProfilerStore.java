@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * Stores values in memcache that may be bigger than the memcache value size
+ * limit (e.g. the profile of a big, complex request).
+ * <p>
+ * Each value is serialized, and compressed if it is bigger than
+ * {@link #COMPRESS_THRESHOLD}. If it is still too big for a single memcache
+ * value, it is split into chunks that are stored under their own keys (with
+ * {@code putAll}), and the value's own key just records how many chunks there
+ * are and their checksum. The chunk keys include a random token, so chunks of
+ * different versions of a value are never mixed up.
+ * <p>
+ * When a value is read back, its chunks are fetched with {@code getAll}, and if
+ * any are missing (e.g. they have been evicted) or the checksum doesn't match,
+ * the value is treated as missing. Values that weren't stored with this class
+ * are returned as they are.
+ */
+public class MiniProfilerStore
+{
+  /** Values bigger than this (serialized) are compressed. */
+  public static final int COMPRESS_THRESHOLD = 32 * 1024;
+  /** The maximum size of a chunk (leaving room under memcache's 1MB limit). */
+  public static final int CHUNK_SIZE = 900 * 1024;
+  /** The maximum number of chunks a value can be split into. */
+  private static final int MAX_CHUNKS = 32;
+
+  private static final Random random = new Random();
+
+  /**
+   * Store a value.
+   * 
+   * @param ms
+   *          The memcache service.
+   * @param key
+   *          The key.
+   * @param value
+   *          The value (must be serializable).
+   * @param expiration
+   *          When the value expires.
+   * @param policy
+   *          When the value should be stored.
+   * @return Whether the value was stored (see
+   *         {@link MemcacheService#put(Object, Object, Expiration, MemcacheService.SetPolicy)}
+   *         ).
+   */
+  public static boolean put(MemcacheService ms, String key, Object value, Expiration expiration, MemcacheService.SetPolicy policy)
+  {
+    Stored stored = new Stored();
+    byte[] data;
+    try
+    {
+      data = serialize(value);
+      if (data.length > COMPRESS_THRESHOLD)
+      {
+        data = compress(data);
+        stored.compressed = true;
+      }
+    } catch (IOException e)
+    {
+      // Not serializable
+      return false;
+    }
+
+    if (data.length <= CHUNK_SIZE)
+    {
+      stored.data = data;
+    } else
+    {
+      int chunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      if (chunks > MAX_CHUNKS)
+      {
+        return false;
+      }
+      stored.chunks = chunks;
+      stored.length = data.length;
+      stored.token = Long.toHexString(random.nextLong());
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      stored.crc = crc.getValue();
+
+      // The chunks are written first, so they are there as soon as the value is
+      Map<String, byte[]> values = new HashMap<String, byte[]>();
+      for (int i = 0; i < chunks; i++)
+      {
+        values.put(chunkKey(key, stored.token, i), Arrays.copyOfRange(data, i * CHUNK_SIZE, Math.min(data.length, (i + 1) * CHUNK_SIZE)));
+      }
+      ms.putAll(values, expiration);
+    }
+    return ms.put(key, stored, expiration, policy);
+  }
+
+  /**
+   * Get a value.
+   * 
+   * @param ms
+   *          The memcache service.
+   * @param key
+   *          The key.
+   * @return The value, or {@code null} if it is missing (or incomplete).
+   */
+  public static Object get(MemcacheService ms, String key)
+  {
+    return getAll(ms, Collections.singletonList(key)).get(key);
+  }
+
+  /**
+   * Get a set of values (with at most two memcache calls: one for the values
+   * and one for all of their chunks).
+   * 
+   * @param ms
+   *          The memcache service.
+   * @param keys
+   *          The keys.
+   * @return The values that were found (and complete), by key.
+   */
+  public static Map<String, Object> getAll(MemcacheService ms, Collection<String> keys)
+  {
+    Map<String, Object> values = ms.getAll(keys);
+    Map<String, Object> result = new HashMap<String, Object>();
+    List<String> chunkKeys = new ArrayList<String>();
+    for (Map.Entry<String, Object> entry : values.entrySet())
+    {
+      if (entry.getValue() instanceof Stored)
+      {
+        Stored stored = (Stored) entry.getValue();
+        for (int i = 0; i < stored.chunks; i++)
+        {
+          chunkKeys.add(chunkKey(entry.getKey(), stored.token, i));
+        }
+      } else
+      {
+        // Not stored by this class
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Map<String, Object> chunks = chunkKeys.isEmpty() ? Collections.<String, Object> emptyMap() : ms.getAll(chunkKeys);
+
+    for (Map.Entry<String, Object> entry : values.entrySet())
+    {
+      if (entry.getValue() instanceof Stored)
+      {
+        Object value = read(entry.getKey(), (Stored) entry.getValue(), chunks);
+        if (value != null)
+        {
+          result.put(entry.getKey(), value);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Put a stored value back together and deserialize it.
+   * 
+   * @return The value, or {@code null} if it is incomplete or corrupt.
+   */
+  private static Object read(String key, Stored stored, Map<String, Object> chunks)
+  {
+    byte[] data = stored.data;
+    if (stored.chunks > 0)
+    {
+      data = new byte[stored.length];
+      int position = 0;
+      for (int i = 0; i < stored.chunks; i++)
+      {
+        Object chunk = chunks.get(chunkKey(key, stored.token, i));
+        if (!(chunk instanceof byte[]) || position + ((byte[]) chunk).length > data.length)
+        {
+          return null;
+        }
+        System.arraycopy(chunk, 0, data, position, ((byte[]) chunk).length);
+        position += ((byte[]) chunk).length;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if (position != data.length || crc.getValue() != stored.crc)
+      {
+        return null;
+      }
+    }
+    try
+    {
+      InputStream in = new ByteArrayInputStream(data);
+      ObjectInputStream objectIn = new ObjectInputStream(stored.compressed ? new GZIPInputStream(in) : in);
+      try
+      {
+        return objectIn.readObject();
+      } finally
+      {
+        objectIn.close();
+      }
+    } catch (IOException e)
+    {
+      // Corrupt, so treat it as missing
+    } catch (ClassNotFoundException e)
+    {
+      // From a different version of the app
+    }
+    return null;
+  }
+
+  private static byte[] serialize(Object value) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(value);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] compress(byte[] data) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(data);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Get the key of a chunk of a value.
+   * 
+   * @param key
+   *          The value's key.
+   * @param token
+   *          The token of the version of the value.
+   * @param chunk
+   *          The chunk number.
+   * @return The chunk's key.
+   */
+  protected static String chunkKey(String key, String token, int chunk)
+  {
+    return key + "_chunk_" + token + "_" + chunk;
+  }
+
+  /**
+   * What is stored under a value's key.
+   */
+  protected static class Stored implements Serializable
+  {
+    private static final long serialVersionUID = 2480961239746262335L;
+
+    /** The serialized value (if it isn't chunked). */
+    private byte[] data;
+    /** Whether the serialized value is compressed. */
+    private boolean compressed;
+    /** The number of chunks (0 if the value isn't chunked). */
+    private int chunks;
+    /** Identifies the chunks of this version of the value. */
+    private String token;
+    /** The total length of the chunks. */
+    private int length;
+    /** The CRC-32 checksum of the chunks. */
+    private long crc;
+
+    /**
+     * Get the number of chunks the value was split into.
+     * 
+     * @return The number of chunks (0 if the value isn't chunked).
+     */
+    public int getChunks()
+    {
+      return chunks;
+    }
+
+    /**
+     * Get the token that identifies the chunks of this version of the value.
+     * 
+     * @return The token (or {@code null} if the value isn't chunked).
+     */
+    public String getToken()
+    {
+      return token;
+    }
+  }
+}
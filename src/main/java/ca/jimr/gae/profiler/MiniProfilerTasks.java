@@ -0,0 +1,465 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Links the profiles of task queue requests to the profile of the request that
+ * enqueued them.
+ * <p>
+ * Wrap a push queue with {@link #wrap(Queue)} and each task added to it while a
+ * request is being profiled gets a {@link #PARENT_ID_HEADER} header with the
+ * request's profile id (and the call is recorded as a step). When the task runs,
+ * the {@link MiniProfilerFilter} profiles it (even if profiling is otherwise
+ * restricted), records the parent id with it, and adds it to the parent's list
+ * of children in memcache. {@link #getTimeline(MemcacheService, String)} then
+ * puts a request and all of the tasks it spawned (and the tasks they spawned)
+ * into a single timeline.
+ * <p>
+ * Deferred tasks are just tasks on a queue, so they are linked in the same way
+ * (as long as the filter is mapped to the deferred task handler).
+ */
+public class MiniProfilerTasks
+{
+  public static final String PARENT_ID_HEADER = "X-Mini-Profile-Parent-Id";
+  public static final String MEMCACHE_CHILDREN_SEQ_KEY_FORMAT_STRING = "mini_profile_children_%s_seq";
+  public static final String MEMCACHE_CHILD_KEY_FORMAT_STRING = "mini_profile_children_%s_%d";
+
+  /**
+   * The header App Engine adds to task requests (it is removed from external
+   * requests, so it can be trusted).
+   */
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+  /** The maximum number of requests put in a timeline. */
+  private static final int MAX_TIMELINE_REQUESTS = 100;
+
+  /**
+   * Wrap a push queue so that the tasks added to it are linked to the current
+   * request's profile. Pull queues should not be wrapped (pull tasks can't
+   * have headers).
+   * 
+   * @param queue
+   *          The queue.
+   * @return The wrapped queue.
+   */
+  public static Queue wrap(Queue queue)
+  {
+    return (Queue) Proxy.newProxyInstance(MiniProfilerTasks.class.getClassLoader(), new Class<?>[] { Queue.class }, new QueueHandler(queue));
+  }
+
+  /**
+   * Get the id of the profile of the request that enqueued the current task.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @return The parent id, or {@code null} if the request isn't a task or
+   *         wasn't enqueued by a profiled request.
+   */
+  public static String getParentId(HttpServletRequest req)
+  {
+    if (req.getHeader(QUEUE_NAME_HEADER) == null)
+    {
+      return null;
+    }
+    String parentId = req.getHeader(PARENT_ID_HEADER);
+    return parentId != null && parentId.trim().length() > 0 ? parentId.trim() : null;
+  }
+
+  /**
+   * Get the name of the queue the current task came from.
+   * 
+   * @param req
+   *          The current HTTP request.
+   * @return The queue name, or {@code null} if the request isn't a task.
+   */
+  public static String getQueueName(HttpServletRequest req)
+  {
+    return req.getHeader(QUEUE_NAME_HEADER);
+  }
+
+  /**
+   * Add a request to the children of the request that enqueued it.
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @param parentId
+   *          The id of the parent request.
+   * @param requestId
+   *          The id of the child request.
+   * @param expirySeconds
+   *          How long to keep the link.
+   */
+  public static void addChild(MemcacheService ms, String parentId, String requestId, int expirySeconds)
+  {
+    // Create the sequence with an expiry first (increments never expire)
+    String seqKey = String.format(MEMCACHE_CHILDREN_SEQ_KEY_FORMAT_STRING, parentId);
+    ms.put(seqKey, 0L, Expiration.byDeltaSeconds(expirySeconds), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    Long seq = ms.increment(seqKey, 1);
+    if (seq != null)
+    {
+      ms.put(String.format(MEMCACHE_CHILD_KEY_FORMAT_STRING, parentId, seq), requestId, Expiration.byDeltaSeconds(expirySeconds));
+    }
+  }
+
+  /**
+   * Get the ids of the requests enqueued by a request.
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @param requestId
+   *          The id of the request.
+   * @return The ids of the child requests (in the order they started).
+   */
+  public static List<String> getChildren(MemcacheService ms, String requestId)
+  {
+    return getChildren(ms, Collections.singletonList(requestId)).get(requestId);
+  }
+
+  /**
+   * Get the ids of the requests enqueued by several requests (with two memcache
+   * calls).
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @param requestIds
+   *          The ids of the requests.
+   * @return The ids of the child requests of each request (in the order they
+   *         started).
+   */
+  public static Map<String, List<String>> getChildren(MemcacheService ms, Collection<String> requestIds)
+  {
+    List<String> seqKeys = new ArrayList<String>();
+    for (String requestId : requestIds)
+    {
+      seqKeys.add(String.format(MEMCACHE_CHILDREN_SEQ_KEY_FORMAT_STRING, requestId));
+    }
+    Map<String, Object> seqs = ms.getAll(seqKeys);
+    List<String> keys = new ArrayList<String>();
+    for (String requestId : requestIds)
+    {
+      Object seq = seqs.get(String.format(MEMCACHE_CHILDREN_SEQ_KEY_FORMAT_STRING, requestId));
+      if (seq instanceof Long)
+      {
+        for (long i = 1; i <= (Long) seq; i++)
+        {
+          keys.add(String.format(MEMCACHE_CHILD_KEY_FORMAT_STRING, requestId, i));
+        }
+      }
+    }
+    Map<String, Object> children = !keys.isEmpty() ? ms.getAll(keys) : Collections.<String, Object> emptyMap();
+
+    Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+    for (String requestId : requestIds)
+    {
+      List<String> ids = new ArrayList<String>();
+      Object seq = seqs.get(String.format(MEMCACHE_CHILDREN_SEQ_KEY_FORMAT_STRING, requestId));
+      if (seq instanceof Long)
+      {
+        for (long i = 1; i <= (Long) seq; i++)
+        {
+          Object child = children.get(String.format(MEMCACHE_CHILD_KEY_FORMAT_STRING, requestId, i));
+          if (child != null)
+          {
+            ids.add((String) child);
+          }
+        }
+      }
+      result.put(requestId, ids);
+    }
+    return result;
+  }
+
+  /**
+   * Build the timeline of a request and the tasks it spawned (recursively).
+   * 
+   * @param ms
+   *          The memcache service (in the profiler's namespace).
+   * @param requestId
+   *          The id of the request.
+   * @return The timeline, or {@code null} if the request's profile isn't
+   *         stored. It has the {@code requests} (in the order they were
+   *         found, each with its {@code id}, {@code parentId},
+   *         {@code requestURL}, {@code queueName}, {@code timestamp},
+   *         {@code start} (milliseconds after the first request started),
+   *         {@code duration} (nanoseconds), {@code queueTime} and
+   *         {@code pending} (whether it hasn't finished)), the
+   *         {@code totalTime} (milliseconds from the start of the first request
+   *         to the end of the last one) and whether the timeline is
+   *         {@code complete} (no requests are pending and none were left out).
+   */
+  public static Map<String, Object> getTimeline(MemcacheService ms, String requestId)
+  {
+    @SuppressWarnings("unchecked")
+    Map<String, Object> rootData = (Map<String, Object>) MiniProfilerStore.get(ms, String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+    if (rootData == null)
+    {
+      return null;
+    }
+    long rootTimestamp = (Long) rootData.get("timestamp");
+    long end = rootTimestamp;
+    boolean complete = true;
+
+    List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+    // Breadth first, so the requests closest to the root are kept. Each level
+    // is loaded with a few batched memcache calls.
+    Map<String, String> level = new LinkedHashMap<String, String>();
+    level.put(requestId, null);
+    Map<String, Object> levelData = Collections.<String, Object> singletonMap(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId),
+        rootData);
+    while (!level.isEmpty())
+    {
+      for (Map.Entry<String, String> next : level.entrySet())
+      {
+        String id = next.getKey();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> requestData = (Map<String, Object>) levelData.get(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, id));
+        requests.add(getTimelineRequest(id, next.getValue(), requestData, rootTimestamp));
+        if (requestData != null)
+        {
+          long timestamp = (Long) requestData.get("timestamp");
+          MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+          end = Math.max(end, timestamp + (profile != null ? profile.getDuration() : 0) / 1000000);
+        }
+        complete &= requestData != null && !Boolean.TRUE.equals(requestData.get("partial"));
+      }
+
+      Map<String, String> nextLevel = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, List<String>> children : getChildren(ms, level.keySet()).entrySet())
+      {
+        for (String child : children.getValue())
+        {
+          if (requests.size() + nextLevel.size() >= MAX_TIMELINE_REQUESTS)
+          {
+            complete = false;
+            break;
+          }
+          nextLevel.put(child, children.getKey());
+        }
+      }
+      level = nextLevel;
+      if (!level.isEmpty())
+      {
+        List<String> dataKeys = new ArrayList<String>();
+        for (String id : level.keySet())
+        {
+          dataKeys.add(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, id));
+        }
+        levelData = MiniProfilerStore.getAll(ms, dataKeys);
+      }
+    }
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("requests", requests);
+    result.put("totalTime", end - rootTimestamp);
+    result.put("complete", complete);
+    return result;
+  }
+
+  /**
+   * Build the entry for a request in a timeline (see {@link #getTimeline}).
+   */
+  private static Map<String, Object> getTimelineRequest(String id, String parentId, Map<String, Object> requestData, long rootTimestamp)
+  {
+    Map<String, Object> request = new HashMap<String, Object>();
+    request.put("id", id);
+    request.put("parentId", parentId);
+    request.put("pending", requestData == null || Boolean.TRUE.equals(requestData.get("partial")));
+    if (requestData != null)
+    {
+      long timestamp = (Long) requestData.get("timestamp");
+      MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+      request.put("requestURL", requestData.get("requestURL"));
+      request.put("queueName", requestData.get("queueName"));
+      request.put("timestamp", timestamp);
+      request.put("start", timestamp - rootTimestamp);
+      request.put("duration", profile != null ? profile.getDuration() : 0);
+      request.put("queueTime", requestData.get("queueTime"));
+    }
+    return request;
+  }
+
+  /**
+   * Adds the parent id header to the tasks added to a queue.
+   */
+  private static class QueueHandler implements InvocationHandler
+  {
+    private Queue queue;
+    private String stepName;
+
+    public QueueHandler(Queue queue)
+    {
+      this.queue = queue;
+      this.stepName = "Task add " + queue.getQueueName();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      String name = method.getName();
+      String requestId = MiniProfiler.getRequestId();
+      if (requestId == null || !(name.equals("add") || name.equals("addAsync")))
+      {
+        return call(method, args);
+      }
+
+      if (args == null || args.length == 0)
+      {
+        // Add a task with the default options (so that it can have the header)
+        method = Queue.class.getMethod(name, TaskOptions.class);
+        args = new Object[] { TaskOptions.Builder.withDefaults() };
+      }
+      int tasks = 0;
+      Object options = args[args.length - 1];
+      if (options instanceof TaskOptions)
+      {
+        ((TaskOptions) options).header(PARENT_ID_HEADER, requestId);
+        tasks = 1;
+      } else if (options instanceof Iterable)
+      {
+        for (Object task : (Iterable<?>) options)
+        {
+          ((TaskOptions) task).header(PARENT_ID_HEADER, requestId);
+          tasks++;
+        }
+      }
+
+      boolean async = name.equals("addAsync");
+      MiniProfiler.Step step = async ? MiniProfiler.asyncStep(stepName, MiniProfiler.TASKS) : MiniProfiler.step(stepName, MiniProfiler.TASKS);
+      step.setDetail("tasks", tasks);
+      if (async)
+      {
+        try
+        {
+          @SuppressWarnings("unchecked")
+          Future<Object> future = (Future<Object>) call(method, args);
+          return new ProfiledFuture(future, step);
+        } catch (Throwable t)
+        {
+          step.close();
+          throw t;
+        }
+      }
+      try
+      {
+        return call(method, args);
+      } finally
+      {
+        step.close();
+      }
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable
+    {
+      try
+      {
+        return method.invoke(queue, args);
+      } catch (InvocationTargetException e)
+      {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Finishes the step of an async add when its result is retrieved.
+   */
+  private static class ProfiledFuture implements Future<Object>
+  {
+    private Future<Object> future;
+    private MiniProfiler.Step step;
+
+    public ProfiledFuture(Future<Object> future, MiniProfiler.Step step)
+    {
+      this.future = future;
+      this.step = step;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      boolean result = future.cancel(mayInterruptIfRunning);
+      if (result)
+      {
+        step.close();
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return future.isDone();
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException
+    {
+      try
+      {
+        return future.get();
+      } finally
+      {
+        step.close();
+      }
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+      boolean timedOut = false;
+      try
+      {
+        return future.get(timeout, unit);
+      } catch (TimeoutException e)
+      {
+        // The add is still running (and may be waited for again)
+        timedOut = true;
+        throw e;
+      } finally
+      {
+        if (!timedOut)
+        {
+          step.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (e.g. of a profiling step).
+ * <p>
+ * Timers are created by a {@link MiniProfilerMeterRegistry} (usually through
+ * {@link MiniProfilerMetrics}) and should be kept (e.g. in a static field) and
+ * reused, rather than looked up each time something is timed. Recording a
+ * duration doesn't lock or allocate anything.
+ * <p>
+ * To time a profiling step, pass the timer to
+ * {@link MiniProfiler#step(String, MiniProfilerTimer)}.
+ */
+public class MiniProfilerTimer
+{
+  /** The upper bounds of the histogram buckets (nanoseconds). */
+  private static final long[] BUCKETS = { 1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L,
+      500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L, 30000000000L, 60000000000L };
+
+  private String name;
+  private Map<String, String> tags;
+  /** The number of durations in each bucket (the last one is for durations above all of the bounds). */
+  private AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong sum = new AtomicLong();
+
+  /**
+   * Create a timer.
+   * 
+   * @param name
+   *          The name of the metric.
+   * @param tags
+   *          The tags of the timer.
+   */
+  public MiniProfilerTimer(String name, Map<String, String> tags)
+  {
+    this.name = name;
+    this.tags = Collections.unmodifiableMap(new TreeMap<String, String>(tags));
+  }
+
+  /**
+   * Record a duration.
+   * 
+   * @param nanos
+   *          The duration (nanoseconds).
+   */
+  public void record(long nanos)
+  {
+    int bucket = 0;
+    while (bucket < BUCKETS.length && nanos > BUCKETS[bucket])
+    {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+  }
+
+  /**
+   * Get the name of the metric.
+   * 
+   * @return The name.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * Get the tags of the timer.
+   * 
+   * @return The tags (sorted by name).
+   */
+  public Map<String, String> getTags()
+  {
+    return tags;
+  }
+
+  /**
+   * Get the number of durations recorded.
+   * 
+   * @return The count.
+   */
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  /**
+   * Get the total of the durations recorded.
+   * 
+   * @return The total (nanoseconds).
+   */
+  public long getSum()
+  {
+    return sum.get();
+  }
+
+  /**
+   * Get the upper bounds of the histogram buckets.
+   * 
+   * @return The bounds (nanoseconds).
+   */
+  public long[] getBucketBounds()
+  {
+    return BUCKETS.clone();
+  }
+
+  /**
+   * Get the number of durations in each bucket (not cumulative). There is one
+   * more count than there are bounds, for the durations above all of the
+   * bounds.
+   * 
+   * @return The counts.
+   */
+  public long[] getBucketCounts()
+  {
+    long[] result = new long[counts.length()];
+    for (int i = 0; i < result.length; i++)
+    {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+}
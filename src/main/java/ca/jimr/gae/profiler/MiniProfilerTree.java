@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.util.*;
+
+/**
+ * Builds limited views of a profile tree, so that a huge profile doesn't have
+ * to be sent to the UI all at once.
+ * <p>
+ * Each step in a view is a map with the same fields as a
+ * {@link MiniProfiler.Profile} (including its {@code self} time, which is
+ * worked out from all of its children), plus a {@code childCount}. If a step's
+ * {@code children} are shorter than its {@code childCount}, the rest can be
+ * fetched later with {@link #subtree(MiniProfiler.Profile, long, int, int)}.
+ */
+public class MiniProfilerTree
+{
+  /**
+   * Build a view of the top of a profile.
+   * 
+   * @param profile
+   *          The profile.
+   * @param depth
+   *          How many levels of steps under the root to include (0 for just the
+   *          root).
+   * @param maxSteps
+   *          The maximum number of steps to include under the root. Steps
+   *          closer to the root are included first.
+   * @return The view of the root step (with a {@code stepCount} of all of the
+   *         steps in the profile), or {@code null} if there is no profile.
+   */
+  public static Map<String, Object> summarize(MiniProfiler.Profile profile, int depth, int maxSteps)
+  {
+    if (profile == null)
+    {
+      return null;
+    }
+    Map<String, Object> result = view(profile, depth, maxSteps);
+    result.put("stepCount", countSteps(profile));
+    return result;
+  }
+
+  /**
+   * Build a view of the subtree under a step.
+   * 
+   * @param profile
+   *          The profile.
+   * @param stepId
+   *          The id of the step.
+   * @param depth
+   *          How many levels of steps under the step to include.
+   * @param maxSteps
+   *          The maximum number of steps to include under the step.
+   * @return The view of the step, or {@code null} if there is no step with the
+   *         id.
+   */
+  public static Map<String, Object> subtree(MiniProfiler.Profile profile, long stepId, int depth, int maxSteps)
+  {
+    MiniProfiler.Profile step = find(profile, stepId);
+    return step != null ? view(step, depth, maxSteps) : null;
+  }
+
+  /**
+   * Find a step in a profile.
+   * 
+   * @param profile
+   *          The profile.
+   * @param stepId
+   *          The id of the step.
+   * @return The step, or {@code null} if there is no step with the id.
+   */
+  public static MiniProfiler.Profile find(MiniProfiler.Profile profile, long stepId)
+  {
+    if (profile == null)
+    {
+      return null;
+    }
+    List<MiniProfiler.Profile> stack = new ArrayList<MiniProfiler.Profile>();
+    stack.add(profile);
+    while (!stack.isEmpty())
+    {
+      MiniProfiler.Profile step = stack.remove(stack.size() - 1);
+      if (step.getId() == stepId)
+      {
+        return step;
+      }
+      stack.addAll(step.getChildren());
+    }
+    return null;
+  }
+
+  /**
+   * Count the steps in a profile (including the root).
+   * 
+   * @param profile
+   *          The profile.
+   * @return The number of steps.
+   */
+  public static int countSteps(MiniProfiler.Profile profile)
+  {
+    int result = 0;
+    List<MiniProfiler.Profile> stack = new ArrayList<MiniProfiler.Profile>();
+    stack.add(profile);
+    while (!stack.isEmpty())
+    {
+      MiniProfiler.Profile step = stack.remove(stack.size() - 1);
+      result++;
+      stack.addAll(step.getChildren());
+    }
+    return result;
+  }
+
+  /**
+   * Build the view of a step and the levels under it (breadth first, so the
+   * closest steps are included first).
+   */
+  private static Map<String, Object> view(MiniProfiler.Profile step, int depth, int maxSteps)
+  {
+    Map<String, Object> result = node(step);
+    LinkedList<Object[]> queue = new LinkedList<Object[]>();
+    queue.add(new Object[] { step, result, 0 });
+    int remaining = maxSteps;
+    while (!queue.isEmpty() && remaining > 0)
+    {
+      Object[] next = queue.removeFirst();
+      MiniProfiler.Profile parent = (MiniProfiler.Profile) next[0];
+      int level = (Integer) next[2];
+      if (level >= depth)
+      {
+        continue;
+      }
+      @SuppressWarnings("unchecked")
+      List<Map<String, Object>> children = (List<Map<String, Object>>) ((Map<String, Object>) next[1]).get("children");
+      for (MiniProfiler.Profile child : parent.getChildren())
+      {
+        if (remaining-- <= 0)
+        {
+          break;
+        }
+        Map<String, Object> childNode = node(child);
+        children.add(childNode);
+        queue.add(new Object[] { child, childNode, level + 1 });
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Build the view of a single step (without its children). This has the same
+   * fields as the serialized {@link MiniProfiler.Profile}, plus the number of
+   * children.
+   */
+  private static Map<String, Object> node(MiniProfiler.Profile step)
+  {
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("id", step.getId());
+    result.put("depth", step.getDepth());
+    result.put("name", step.getName());
+    result.put("category", step.getCategory());
+    result.put("start", step.getStart());
+    result.put("duration", step.getDuration());
+    result.put("self", step.getSelf());
+    result.put("offset", step.getOffset());
+    result.put("cpuTime", step.getCpuTime());
+    result.put("allocatedBytes", step.getAllocatedBytes());
+    result.put("deviation", step.getDeviation());
+    result.put("running", step.isRunning());
+    result.put("async", step.isAsync());
+    result.put("details", step.getDetails());
+    result.put("logs", step.getLogs());
+    result.put("childCount", step.getChildren().size());
+    result.put("children", new ArrayList<Map<String, Object>>());
+    return result;
+  }
+}
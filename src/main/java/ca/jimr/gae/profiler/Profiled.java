@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a method (or all of the methods of a class) to be profiled as a
+ * {@link MiniProfiler} step each time it is called, without having to open and
+ * close the step in the method itself.
+ * <p>
+ * The annotation is applied by wrapping the object with
+ * {@link MiniProfilerProxy#wrap(Class, Object)}, and can be put on the
+ * interface method, the implementation method or the implementation class.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface Profiled
+{
+  /**
+   * The name of the step. By default this is the simple name of the class
+   * followed by the name of the method (e.g. {@code UserService.getUser}).
+   */
+  String value() default "";
+
+  /**
+   * Whether to also time the method as a metric (see
+   * {@link MiniProfilerMetrics#stepTimer(String)}), even when the request isn't
+   * being profiled.
+   */
+  boolean metric() default false;
+
+  /**
+   * The category of the step (see {@link MiniProfiler#category(String)}), e.g.
+   * {@code datastore}. By default the step doesn't have a category.
+   */
+  String category() default "";
+}
@@ -1,6 +1,25 @@
 /** The Mini Profiler! */
 var MiniProfiler = ( function() {
-  var requestData = {}, baseURL;
+  var requestData = {}, compareIds = [], baseURL, pollErrors = 0, profileTree, pageRequestId, pageTiming;
+  /** The height of a row in the profile tree (must match the CSS). */
+  var ROW_HEIGHT = 36;
+  /** The number of rows rendered above and below the visible ones. */
+  var OVERSCAN_ROWS = 10;
+  /** The navigation marks sent to the server (in the order they happen). */
+  var NAVIGATION_MARKS = [ 'redirectStart', 'redirectEnd', 'fetchStart', 'domainLookupStart', 'domainLookupEnd', 'connectStart', 'connectEnd',
+      'requestStart', 'responseStart', 'responseEnd', 'domLoading', 'domInteractive', 'domContentLoadedEventEnd', 'domComplete', 'loadEventStart',
+      'loadEventEnd' ];
+  /** The phases of loading the page (shown in the client timeline). */
+  var CLIENT_PHASES = [ [ 'Redirect', 'redirectStart', 'redirectEnd' ], [ 'DNS', 'domainLookupStart', 'domainLookupEnd' ],
+      [ 'Connect', 'connectStart', 'connectEnd' ], [ 'Waiting (TTFB)', 'requestStart', 'responseStart' ],
+      [ 'Download', 'responseStart', 'responseEnd' ], [ 'DOM processing', 'domLoading', 'domComplete' ],
+      [ 'Load event', 'loadEventStart', 'loadEventEnd' ] ];
+  /** The maximum number of resources sent to the server. */
+  var MAX_RESOURCES = 100;
+  /** Schedules a function to run before the next repaint. */
+  var nextFrame = window.requestAnimationFrame || function( callback ) {
+    return setTimeout( callback, 16 );
+  };
   /**
    * Initializes the Mini Profiler.
    */
@@ -12,25 +31,81 @@ var MiniProfiler = ( function() {
     // Initialize the HTML templates
     $.template( 'requestTemplate', $( '#@@prefix@@-request-tmpl' ).html() );
     $.template( 'resultTemplate', $( '#@@prefix@@-result-tmpl' ).html() );
-    $.template( 'resultTreeTemplate', $( '#@@prefix@@-result-tree-tmpl' ).html() );
+    $.template( 'resultRowTemplate', $( '#@@prefix@@-result-row-tmpl' ).html() );
+    $.template( 'diffTemplate', $( '#@@prefix@@-diff-tmpl' ).html() );
 
     var requestIds = getRedirectRequests( window.location.href );
     requestIds.push( options.requestId );
+    pageRequestId = options.requestId;
+    // Send the browser timings once the page has finished loading (and the
+    // load event end time is known)
+    if ( document.readyState === 'complete' ) {
+      setTimeout( sendClientTiming, 0 );
+    }
+    else {
+      $( window ).load( function() {
+        setTimeout( sendClientTiming, 0 );
+      } );
+    }
     getProfileInformation( requestIds, 'normal' );
 
-    // Dynamically add profile information for any Ajax requets that happen on
-    // this page
-    $( document ).ajaxComplete( function( e, xhr, settings ) {
-      if ( xhr ) {
-        var requestId = xhr.getResponseHeader( 'X-Mini-Profile-Request-Id' );
-        if ( requestId ) {
-          getProfileInformation( requestId.split( ',' ), "ajax" );
+    if ( options.liveResults ) {
+      // Long-poll the server for any requests that happen after this page
+      // loaded (Ajax requests, requests from other tabs, etc.)
+      pollProfileInformation( options.clientSeq );
+    }
+    else {
+      // Dynamically add profile information for any Ajax requets that happen
+      // on this page
+      $( document ).ajaxComplete( function( e, xhr, settings ) {
+        if ( xhr ) {
+          var requestId = xhr.getResponseHeader( 'X-Mini-Profile-Request-Id' );
+          if ( requestId ) {
+            getProfileInformation( requestId.split( ',' ), "ajax" );
+          }
         }
+      } );
+    }
+
+    // Display profile details when one of the request times is clicked on (or
+    // select it for comparison if shift is held down)
+    $( '#@@prefix@@' ).delegate( 'a[id^="@@prefix@@-req-"]', 'click', displayProfileDetails );
+    $( '#@@prefix@@' ).delegate( '#@@prefix@@-compare a', 'click', displayDiff );
+  }
+
+  /**
+   * Collect the Navigation Timing marks and Resource Timing entries for the
+   * page, and send them to the server in a single beacon.
+   */
+  function sendClientTiming() {
+    var performance = window.performance;
+    if ( !window.JSON || !performance || !performance.timing || !performance.timing.navigationStart ) {
+      return;
+    }
+    var timing = performance.timing, navigation = {}, resources = [], i;
+    for ( i = 0; i < NAVIGATION_MARKS.length; i++ ) {
+      var mark = timing[ NAVIGATION_MARKS[ i ] ];
+      if ( mark ) {
+        navigation[ NAVIGATION_MARKS[ i ] ] = mark - timing.navigationStart;
       }
-    } );
+    }
+    var entries = performance.getEntriesByType ? performance.getEntriesByType( 'resource' ) : [];
+    for ( i = 0; i < entries.length && resources.length < MAX_RESOURCES; i++ ) {
+      var entry = entries[ i ];
+      // Don't include the profiler's own requests
+      if ( entry.name.indexOf( baseURL ) < 0 ) {
+        resources.push( {
+          name : entry.name, initiatorType : entry.initiatorType, start : entry.startTime, duration : entry.duration,
+          size : entry.transferSize
+        } );
+      }
+    }
+    pageTiming = { navigation : navigation, resources : resources };
 
-    // Display profile details when one of the request times is clicked on
-    $( '#@@prefix@@' ).delegate( 'a', 'click', displayProfileDetails );
+    var beacon = JSON.stringify( $.extend( { id : pageRequestId }, pageTiming ) );
+    if ( !navigator.sendBeacon || !navigator.sendBeacon( baseURL + 'client', beacon ) ) {
+      $.ajax( { url : baseURL + 'client', type : 'POST', data : beacon, contentType : 'text/plain', global : false } );
+    }
   }
 
   /**
@@ -53,23 +128,24 @@ var MiniProfiler = ( function() {
 
   /**
    * Get profile information for the specified request id via an Ajax request.
+   * Only a summary of each profile (the top-level steps) is fetched, and the
+   * Appstats data is only fetched if asked for.
    */
-  function getProfileInformation( requestIds, type, callback ) {
+  function getProfileInformation( requestIds, type, callback, appstats ) {
     $.get( baseURL + 'results', {
-      ids : requestIds.join( ',' )
+      ids : requestIds.join( ',' ), appstats : appstats ? 1 : 0
     }, function( data ) {
       if ( data.ok ) {
         var requests = data.requests;
         if ( requests && requests.length ) {
           for ( var i = 0; i < requests.length; i++ ) {
-            var request = requests[ i ];
+            var request = requests[ i ], key = '@@prefix@@-req-' + request.id, isNew = !requestData.hasOwnProperty( key );
             request.timestampFormatted = new Date( request.timestamp ).toString();
             // Store the request data for later
-            requestData[ '@@prefix@@-req-' + request.id ] = request;
-            // Add the request to the display
-            $( '#@@prefix@@' ).show().append( $.tmpl( 'requestTemplate', {
-              type : request.redirect ? 'redirect' : type, requestId : request.id, totalTime : ( request.profile.duration / 1000000 ).toFixed( 2 )
-            } ) );
+            requestData[ key ] = request;
+            if ( isNew ) {
+              addRequest( request, type, request.profile.duration );
+            }
           }
         }
       }
@@ -79,6 +155,56 @@ var MiniProfiler = ( function() {
     }, 'json' );
   }
 
+  /**
+   * Add a request to the display, with the share of its time spent in its
+   * biggest step categories.
+   */
+  function addRequest( request, type, duration ) {
+    var categories = $.map( request.categories || [], function( category ) {
+      return {
+        name : category.name, percent : duration > 0 ? Math.round( category.duration * 100 / duration ) : 0,
+        time : ( category.duration / 1000000 ).toFixed( 2 ), count : category.count
+      };
+    } );
+    $( '#@@prefix@@' ).show().append( $.tmpl( 'requestTemplate', {
+      type : request.redirect ? 'redirect' : type, requestId : request.id, totalTime : ( duration / 1000000 ).toFixed( 2 ),
+      categories : categories.slice( 0, 3 ), categoryTitle : $.map( categories, function( category ) {
+        return category.name + ': ' + category.time + ' ms (' + category.count + ' steps)';
+      } ).join( ', ' )
+    } ) );
+  }
+
+  /**
+   * Wait for summaries of any new requests (after the specified sequence
+   * number) and add them to the display. The full profile information for a
+   * request is only fetched when it is clicked on.
+   */
+  function pollProfileInformation( since ) {
+    $.ajax( {
+      url : baseURL + 'poll', data : { since : since }, dataType : 'json', cache : false, global : false,
+      success : function( data ) {
+        pollErrors = 0;
+        if ( data.ok ) {
+          for ( var i = 0; i < data.requests.length; i++ ) {
+            var request = data.requests[ i ], key = '@@prefix@@-req-' + request.id;
+            if ( !requestData.hasOwnProperty( key ) ) {
+              requestData[ key ] = false;
+              addRequest( request, 'ajax', request.duration );
+            }
+          }
+          pollProfileInformation( data.seq );
+        }
+      },
+      error : function() {
+        // Back off if the server is having problems
+        pollErrors++;
+        setTimeout( function() {
+          pollProfileInformation( since );
+        }, Math.min( 60000, 1000 * Math.pow( 2, pollErrors ) ) );
+      }
+    } );
+  }
+
   /**
    * Toggles an expand/collapse link
    */
@@ -102,17 +228,321 @@ var MiniProfiler = ( function() {
   function displayProfileDetails( e ) {
     e.preventDefault();
     e.stopPropagation();
-    var data = requestData[ this.id ];
+    var id = this.id, data = requestData[ id ];
+    if ( e.shiftKey ) {
+      toggleCompare( id );
+    }
+    else if ( !data || ( data.hasAppstats && !data.appstats ) ) {
+      // Only the summary has been loaded so far
+      getProfileInformation( [ id.substring( '@@prefix@@-req-'.length ) ], 'ajax', function() {
+        if ( requestData[ id ] ) {
+          showProfileDetails( requestData[ id ] );
+        }
+      }, true );
+    }
+    else {
+      showProfileDetails( data );
+    }
+  }
+
+  /**
+   * Show the detailed profile information for a request.
+   */
+  function showProfileDetails( data ) {
+    if ( !data.clientTiming && data.id === pageRequestId ) {
+      // The beacon may have been sent after the results were fetched
+      data.clientTiming = pageTiming;
+    }
+    data.clientRows = data.clientTiming ? clientTimeline( data ) : null;
+    var resultDiv = showDetails( $.tmpl( 'resultTemplate', data ) );
+    profileTree = createTree( $( '#@@prefix@@-req-profile-rows' ), data.id, data.profile, data.regressionThreshold );
+    resultDiv.delegate( '#@@prefix@@-req-profile a', 'click', toggleTreeRow );
+    resultDiv.delegate( '#@@prefix@@-req-as a', 'click', toggleLinkDetails );
+  }
+
+  /**
+   * Build the rows of the combined client and server timeline for a page. The
+   * server's time is shown inside the time spent waiting for the first byte
+   * of the response.
+   */
+  function clientTimeline( data ) {
+    var navigation = data.clientTiming.navigation, resources = data.clientTiming.resources, rows = [], total = 0, i;
+    for ( i = 0; i < CLIENT_PHASES.length; i++ ) {
+      var phase = CLIENT_PHASES[ i ], start = navigation[ phase[ 1 ] ], end = navigation[ phase[ 2 ] ];
+      if ( start != null && end != null && end >= start ) {
+        rows.push( { name : phase[ 0 ], type : 'phase', start : start, duration : end - start } );
+        if ( phase[ 1 ] === 'requestStart' && data.profile ) {
+          rows.push( { name : 'Server', type : 'server', start : start, duration : data.profile.duration / 1000000 } );
+        }
+      }
+    }
+    for ( i = 0; i < resources.length; i++ ) {
+      rows.push( { name : resources[ i ].name, type : resources[ i ].initiatorType, start : resources[ i ].start, duration : resources[ i ].duration } );
+    }
+    for ( i = 0; i < rows.length; i++ ) {
+      total = Math.max( total, rows[ i ].start + rows[ i ].duration );
+    }
+    for ( i = 0; i < rows.length; i++ ) {
+      rows[ i ].left = total ? rows[ i ].start / total * 100 : 0;
+      rows[ i ].width = total ? Math.max( 0.5, rows[ i ].duration / total * 100 ) : 0;
+    }
+    return rows;
+  }
+
+  /**
+   * Create the profile tree view. Only the rows that are scrolled into view
+   * are rendered, from a flat (pre-order) array of the steps in the profile.
+   * Steps whose children haven't been loaded yet are loaded when they are
+   * expanded. Steps that are slower than their baseline by more than the
+   * regression threshold (if baselines are enabled) are highlighted.
+   */
+  function createTree( container, requestId, profile, regressionThreshold ) {
+    var tree = {
+      container : container, spacer : container.children( '.spacer' ), list : container.find( 'ul' ), requestId : requestId,
+      regressionThreshold : regressionThreshold, rows : flattenProfile( [ profile ], 0, 0 ), visible : [ 0 ], scheduled : false
+    };
+    container.scroll( function() {
+      scheduleRender( tree );
+    } );
+    renderTree( tree );
+    return tree;
+  }
+
+  /**
+   * Flatten some steps (and their descendants) into an array of rows in
+   * pre-order. Each row has the index just past the end of its subtree, so
+   * that the subtree can be skipped over. The log records of a step are rows
+   * under it, in order with its children.
+   *
+   * @param nodes The steps.
+   * @param depth The depth of the steps in the tree.
+   * @param offset Where the rows will start in the full array of rows.
+   */
+  function flattenProfile( nodes, depth, offset ) {
+    var rows = [], stack = [], open = [], i;
+    for ( i = nodes.length - 1; i >= 0; i-- ) {
+      stack.push( { node : nodes[ i ], depth : depth } );
+    }
+    while ( stack.length ) {
+      var row = stack.pop(), children = row.log ? [] : stepItems( row.node );
+      // Close the subtrees that this row is not part of
+      while ( open.length && rows[ open[ open.length - 1 ] ].depth >= row.depth ) {
+        rows[ open.pop() ].end = offset + rows.length;
+      }
+      row.expanded = false;
+      open.push( rows.length );
+      rows.push( row );
+      for ( i = children.length - 1; i >= 0; i-- ) {
+        stack.push( { node : children[ i ].node, log : children[ i ].log, depth : row.depth + 1 } );
+      }
+    }
+    while ( open.length ) {
+      rows[ open.pop() ].end = offset + rows.length;
+    }
+    return rows;
+  }
+
+  /**
+   * Get the children and log records of a step, merged by when they started.
+   */
+  function stepItems( node ) {
+    var children = node.children, logs = node.logs || [], items = [], i = 0, j = 0;
+    while ( i < children.length || j < logs.length ) {
+      if ( j >= logs.length || ( i < children.length && children[ i ].offset <= logs[ j ].offset ) ) {
+        items.push( { node : children[ i++ ], log : false } );
+      }
+      else {
+        items.push( { node : logs[ j++ ], log : true } );
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Expands or collapses a row of the profile tree.
+   */
+  function toggleTreeRow( e ) {
+    e.preventDefault();
+    e.stopPropagation();
+    toggleRow( profileTree, parseInt( this.id.substring( '@@prefix@@-req-profile-'.length ), 10 ) );
+  }
+
+  /**
+   * Expands or collapses a row of a tree.
+   */
+  function toggleRow( tree, index ) {
+    var row = tree.rows[ index ], position = $.inArray( index, tree.visible ), i, descendants = [];
+    if ( !row || position < 0 ) {
+      return;
+    }
+    if ( !row.expanded && row.node.children.length < row.node.childCount ) {
+      loadChildren( tree, index );
+      return;
+    }
+    if ( row.expanded ) {
+      // Hide everything in the row's subtree
+      i = position + 1;
+      while ( i < tree.visible.length && tree.visible[ i ] < row.end ) {
+        i++;
+      }
+      tree.visible.splice( position + 1, i - position - 1 );
+    }
+    else {
+      // Show the children (and the descendants of any that are expanded)
+      for ( i = index + 1; i < row.end; i = tree.rows[ i ].expanded ? i + 1 : tree.rows[ i ].end ) {
+        descendants.push( i );
+      }
+      tree.visible.splice.apply( tree.visible, [ position + 1, 0 ].concat( descendants ) );
+    }
+    row.expanded = !row.expanded;
+    scheduleRender( tree );
+  }
+
+  /**
+   * Load the children of a step that were left out of the profile summary,
+   * and then expand it.
+   */
+  function loadChildren( tree, index ) {
+    var row = tree.rows[ index ];
+    if ( row.loading ) {
+      return;
+    }
+    row.loading = true;
+    $.get( baseURL + 'subtree', {
+      id : tree.requestId, step : row.node.id, depth : 1, maxSteps : 1000
+    }, function( data ) {
+      row.loading = false;
+      if ( data.ok && tree === profileTree ) {
+        replaceChildren( tree, index, data.step.children );
+        row.node.childCount = Math.min( row.node.childCount, data.step.children.length );
+        toggleRow( tree, index );
+      }
+    }, 'json' );
+  }
+
+  /**
+   * Replace the rows under a (collapsed) row with rows for new children (and
+   * the step's log records).
+   */
+  function replaceChildren( tree, index, children ) {
+    var row = tree.rows[ index ], oldEnd = row.end;
+    row.node.children = children;
+    var newRows = flattenProfile( [ row.node ], row.depth, index ).slice( 1 );
+    var delta = newRows.length - ( oldEnd - index - 1 ), i;
+    // Shift the rows (and the ends of the subtrees) that come after
+    for ( i = 0; i < tree.rows.length; i++ ) {
+      if ( ( i <= index || i >= oldEnd ) && tree.rows[ i ].end > index ) {
+        tree.rows[ i ].end += delta;
+      }
+    }
+    for ( i = 0; i < tree.visible.length; i++ ) {
+      if ( tree.visible[ i ] >= oldEnd ) {
+        tree.visible[ i ] += delta;
+      }
+    }
+    tree.rows.splice.apply( tree.rows, [ index + 1, oldEnd - index - 1 ].concat( newRows ) );
+  }
+
+  /**
+   * Render the profile tree before the next repaint (at most once per frame).
+   */
+  function scheduleRender( tree ) {
+    if ( !tree.scheduled ) {
+      tree.scheduled = true;
+      nextFrame( function() {
+        tree.scheduled = false;
+        renderTree( tree );
+      } );
+    }
+  }
+
+  /**
+   * Render the rows of the profile tree that are scrolled into view.
+   */
+  function renderTree( tree ) {
+    var scrollTop = tree.container.scrollTop(), height = tree.container.height() || ROW_HEIGHT * OVERSCAN_ROWS;
+    var first = Math.max( 0, Math.floor( scrollTop / ROW_HEIGHT ) - OVERSCAN_ROWS );
+    var last = Math.min( tree.visible.length, Math.ceil( ( scrollTop + height ) / ROW_HEIGHT ) + OVERSCAN_ROWS );
+    var items = [];
+    for ( var i = first; i < last; i++ ) {
+      var index = tree.visible[ i ], row = tree.rows[ index ];
+      items.push( $.extend( {}, row.node, {
+        index : index, depth : row.depth, expanded : row.expanded, log : !!row.log, hasLogs : !row.log && !!( row.node.logs && row.node.logs.length ),
+        slow : row.node.deviation != null && tree.regressionThreshold != null && row.node.deviation > tree.regressionThreshold
+      } ) );
+    }
+    tree.spacer.height( tree.visible.length * ROW_HEIGHT );
+    tree.list.css( 'top', first * ROW_HEIGHT ).html( $.tmpl( 'resultRowTemplate', items ) );
+  }
+
+  /**
+   * Show some content in the details panel.
+   */
+  function showDetails( content ) {
     var resultDiv = $( '#@@prefix@@-req' );
     resultDiv.undelegate();
-    resultDiv.html( $.tmpl( 'resultTemplate', data ) ).slideDown();
+    resultDiv.html( content ).slideDown();
     resultDiv.delegate( '#@@prefix@@-req-close', 'click', function( e ) {
       e.preventDefault();
       e.stopPropagation();
       resultDiv.slideUp();
     } );
-    resultDiv.delegate( '#@@prefix@@-req-profile a', 'click', toggleLinkDetails );
-    resultDiv.delegate( '#@@prefix@@-req-as a', 'click', toggleLinkDetails );
+    return resultDiv;
+  }
+
+  /**
+   * Select (or unselect) a request for comparison.
+   */
+  function toggleCompare( id ) {
+    var requestId = id.substring( '@@prefix@@-req-'.length ), index = $.inArray( requestId, compareIds );
+    if ( index >= 0 ) {
+      compareIds.splice( index, 1 );
+    }
+    else {
+      compareIds.push( requestId );
+    }
+    $( '#' + id ).parent().toggleClass( 'compare', index < 0 );
+
+    $( '#@@prefix@@-compare' ).remove();
+    if ( compareIds.length >= 2 ) {
+      $( '#@@prefix@@' ).append( '<div id="@@prefix@@-compare"><a href="#">Compare ' + compareIds.length + '</a></div>' );
+    }
+  }
+
+  /**
+   * Compare the selected requests.
+   */
+  function displayDiff( e ) {
+    e.preventDefault();
+    e.stopPropagation();
+    $.get( baseURL + 'diff', {
+      ids : compareIds.join( ',' )
+    }, function( data ) {
+      if ( data.ok ) {
+        var rows = [];
+        flattenDiff( data.diff, '', rows );
+        // Biggest regressions first
+        rows.sort( function( a, b ) {
+          return b.selfDelta - a.selfDelta || b.durationDelta - a.durationDelta;
+        } );
+        showDetails( $.tmpl( 'diffTemplate', {
+          requests : data.requests, rows : rows
+        } ) );
+      }
+    }, 'json' );
+  }
+
+  /**
+   * Flatten the aligned tree returned by the diff endpoint into rows.
+   */
+  function flattenDiff( node, parentPath, rows ) {
+    var last = node.count.length - 1;
+    node.path = parentPath ? parentPath + ' > ' + node.name : node.name;
+    node.status = node.count[ 0 ] === 0 ? 'added' : ( node.count[ last ] === 0 ? 'removed' : '' );
+    rows.push( node );
+    for ( var i = 0; i < node.children.length; i++ ) {
+      flattenDiff( node.children[ i ], node.path, rows );
+    }
   }
 
   return {
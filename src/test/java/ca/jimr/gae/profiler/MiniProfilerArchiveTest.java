@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.profile;
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.requestData;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class MiniProfilerArchiveTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testURLPattern()
+  {
+    assertEquals("/", MiniProfilerArchive.getURLPattern("/"));
+    assertEquals("/users/*/edit", MiniProfilerArchive.getURLPattern("/users/123/edit"));
+    assertEquals("/users/*", MiniProfilerArchive.getURLPattern("/users/3f2504e0-4f89-11d3-9a0c-0305e82c3301?x=1"));
+    assertEquals("/about", MiniProfilerArchive.getURLPattern("/about?id=5"));
+  }
+
+  @Test
+  public void testBuckets()
+  {
+    assertEquals(0, MiniProfilerArchive.getHour(3599999));
+    assertEquals(1, MiniProfilerArchive.getHour(3600000));
+    assertEquals(0, MiniProfilerArchive.getDurationBand(500000));
+    assertEquals(1, MiniProfilerArchive.getDurationBand(1000000));
+    assertEquals(64, MiniProfilerArchive.getDurationBand(100000000));
+  }
+
+  @Test
+  public void testBatching() throws Exception
+  {
+    MiniProfilerArchive archive = new MiniProfilerArchive(3, 60000);
+    archive.add("1", null, requestData("/a/1", 1000, profile(10)));
+    archive.add("2", null, requestData("/a/2", 2000, profile(20)));
+    assertNotNull("Pending profiles should be written", archive.flush());
+    assertNull("Nothing should be pending", archive.flush());
+
+    archive.add("3", null, requestData("/a/3", 3000, profile(30)));
+    archive.add("4", null, requestData("/a/4", 4000, profile(40)));
+    archive.add("5", null, requestData("/a/5", 5000, profile(50)));
+    assertNull("Full batch should have been written", archive.flush());
+
+    archive = new MiniProfilerArchive(100, 0);
+    archive.add("6", null, requestData("/a/6", 6000, profile(60)));
+    assertNull("Batch should have been written after the delay", archive.flush());
+  }
+
+  @Test
+  public void testFlushIfDue() throws Exception
+  {
+    MiniProfilerArchive archive = new MiniProfilerArchive(100, 60000);
+    archive.add("1", null, requestData("/a/1", 1000, profile(10)));
+    assertNull("Batch should not be due yet", archive.flushIfDue());
+    assertNotNull("Batch should still be pending", archive.flush());
+
+    archive = new MiniProfilerArchive(100, 50);
+    archive.add("2", null, requestData("/a/2", 2000, profile(20)));
+    Thread.sleep(60);
+    assertNotNull("Batch should be due", archive.flushIfDue());
+    assertNull(archive.flush());
+  }
+
+  @Test
+  public void testTooBig() throws Exception
+  {
+    MiniProfilerArchive archive = new MiniProfilerArchive(100, 60000);
+    Map<String, Object> big = requestData("/a/1", 1000, profile(10));
+    byte[] bytes = new byte[1100 * 1000];
+    new Random(1).nextBytes(bytes);
+    big.put("padding", bytes);
+    archive.add("1", null, big);
+    archive.add("2", null, requestData("/a/2", 2000, profile(20)));
+    assertEquals("Only the profile that fits should be written", 1, archive.flush().get().size());
+  }
+
+  @Test
+  public void testQuery() throws Exception
+  {
+    MiniProfilerArchive archive = new MiniProfilerArchive(100, 60000);
+    archive.add("1", "a@example.com", requestData("/a/1", 1000, profile(10)));
+    archive.add("2", "b@example.com", requestData("/a/2", 2000, profile(50)));
+    archive.add("3", "a@example.com", requestData("/b", 3000, profile(30)));
+    archive.add("4", null, requestData("/a/4", 4000, profile(40)));
+    archive.flush().get();
+
+    List<Map<String, Object>> requests = requests(archive.query(null, null, null, null, null, null, null, null, 10));
+    assertEquals(Arrays.asList("4", "3", "2", "1"), ids(requests));
+    assertEquals("/a/4", requests.get(0).get("requestURL"));
+    assertEquals("/a/*", requests.get(0).get("urlPattern"));
+
+    assertEquals(Arrays.asList("4", "2", "1"), ids(requests(archive.query("/a/*", null, null, null, null, null, null, null, 10))));
+    assertEquals(Arrays.asList("3", "1"), ids(requests(archive.query(null, "a@example.com", null, null, null, null, null, null, 10))));
+    assertEquals(Arrays.asList("3", "2"), ids(requests(archive.query(null, null, 2000L, 4000L, null, null, null, null, 10))));
+    assertEquals(Arrays.asList("2", "4"), ids(requests(archive.query(null, null, null, null, null, null, 40L, null, 10))));
+    assertEquals(Arrays.asList("2"), ids(requests(archive.query(null, null, 2000L, 4000L, null, null, 40L, null, 10))));
+
+    // Hours and duration bands
+    assertEquals(0L, requests.get(0).get("hour"));
+    assertEquals(32L, requests.get(0).get("durationBand"));
+    assertEquals(Arrays.asList("2", "4"), ids(requests(archive.query(null, null, null, null, 0L, null, 40L, null, 10))));
+    assertTrue(requests(archive.query(null, null, null, null, 1L, null, null, null, 10)).isEmpty());
+    assertEquals(Arrays.asList("4", "2"), ids(requests(archive.query(null, null, null, null, null, 32L, null, null, 10))));
+    assertEquals(Arrays.asList("2"), ids(requests(archive.query(null, null, 2000L, 4000L, null, 32L, null, null, 10))));
+
+    // Pagination
+    Map<String, Object> page = archive.query(null, null, null, null, null, null, null, null, 3);
+    assertEquals(Arrays.asList("4", "3", "2"), ids(requests(page)));
+    page = archive.query(null, null, null, null, null, null, null, (String) page.get("cursor"), 3);
+    assertEquals(Arrays.asList("1"), ids(requests(page)));
+    assertNull(page.get("cursor"));
+
+    // Full data
+    Map<String, Object> requestData = archive.get((Long) requests.get(0).get("archiveId"));
+    assertEquals("/a/4", requestData.get("requestURL"));
+    assertEquals(40000000L, ((MiniProfiler.Profile) requestData.get("profile")).getDuration());
+    assertNull(archive.get(12345));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> requests(Map<String, Object> result)
+  {
+    return (List<Map<String, Object>>) result.get("requests");
+  }
+
+  private static List<String> ids(List<Map<String, Object>> requests)
+  {
+    List<String> result = new ArrayList<String>();
+    for (Map<String, Object> request : requests)
+    {
+      result.add((String) request.get("id"));
+    }
+    return result;
+  }
+}
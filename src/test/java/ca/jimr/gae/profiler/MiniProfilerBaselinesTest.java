@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class MiniProfilerBaselinesTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+  private MemcacheService ms;
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+    ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testSketchQuantiles()
+  {
+    MiniProfilerBaselines.Sketch sketch = new MiniProfilerBaselines.Sketch();
+    assertEquals(0, sketch.getQuantile(0.5));
+    for (int i = 1; i <= 100; i++)
+    {
+      sketch.add(i * 1000000L);
+    }
+    assertEquals(100, sketch.getCount());
+    assertEquals(50000000, sketch.getQuantile(0.5), 5000000);
+    assertEquals(90000000, sketch.getQuantile(0.9), 9000000);
+  }
+
+  @Test
+  public void testSketchDecay()
+  {
+    MiniProfilerBaselines.Sketch sketch = new MiniProfilerBaselines.Sketch();
+    for (int i = 0; i < 5000; i++)
+    {
+      sketch.add(1000000L);
+    }
+    assertTrue(sketch.getCount() < 1000);
+    for (int i = 0; i < 5000; i++)
+    {
+      sketch.add(8000000L);
+    }
+    // Old samples fade out
+    assertEquals(8000000, sketch.getQuantile(0.5), 800000);
+  }
+
+  @Test
+  public void testDeviationAndRegressions()
+  {
+    MiniProfilerBaselines baselines = new MiniProfilerBaselines(0.3, ms);
+
+    Profile first = profile(10, 5);
+    baselines.record("/users/1", first);
+    assertNull("There is no baseline yet", first.getDeviation());
+
+    for (int i = 0; i < 50; i++)
+    {
+      baselines.record("/users/" + i, profile(10, 5));
+    }
+    Profile normal = profile(10, 5);
+    baselines.record("/users/2", normal);
+    assertEquals(0, normal.getDeviation(), 0.1);
+    assertEquals(0, normal.getChildren().get(0).getDeviation(), 0.1);
+    assertTrue(MiniProfilerBaselines.getRegressions(ms).isEmpty());
+
+    // Another URL pattern has its own baseline
+    Profile other = profile(10, 5);
+    baselines.record("/other", other);
+    assertNull(other.getDeviation());
+
+    // The step gets twice as slow
+    Profile slow = profile(15, 10);
+    baselines.record("/users/3", slow);
+    assertEquals(0.5, slow.getDeviation(), 0.15);
+    assertEquals(1, slow.getChildren().get(0).getDeviation(), 0.2);
+    for (int i = 0; i < 20; i++)
+    {
+      baselines.record("/users/3", profile(15, 10));
+    }
+
+    List<Map<String, Object>> regressions = MiniProfilerBaselines.getRegressions(ms);
+    assertEquals(2, regressions.size());
+    assertEquals("/users/*", regressions.get(0).get("urlPattern"));
+    assertEquals("Step", regressions.get(0).get("step"));
+    assertEquals("Request", regressions.get(1).get("step"));
+    assertTrue((Double) regressions.get(0).get("deviation") > 0.3);
+  }
+
+  @Test
+  public void testEviction()
+  {
+    MiniProfilerBaselines baselines = new MiniProfilerBaselines(0.3, ms);
+    for (int i = 0; i < 30; i++)
+    {
+      baselines.record("/hot", profile(10, 5));
+      baselines.record("/cold", profile(10, 5));
+    }
+    // Lots of different steps, with the hot one still being used
+    for (int i = 0; i < 3000; i++)
+    {
+      baselines.record("/page" + i, profile(10, 5));
+      if (i % 100 == 0)
+      {
+        baselines.record("/hot", profile(10, 5));
+      }
+    }
+
+    Profile hot = profile(10, 5);
+    baselines.record("/hot", hot);
+    assertEquals("Baselines that are still used are kept", 0, hot.getDeviation(), 0.1);
+
+    Profile old = profile(10, 5);
+    baselines.record("/cold", old);
+    assertNull("The least recently used baselines are dropped", old.getDeviation());
+
+    // New steps still get a baseline
+    for (int i = 0; i < 30; i++)
+    {
+      baselines.record("/new", profile(10, 5));
+    }
+    Profile slow = profile(20, 10);
+    baselines.record("/new", slow);
+    assertEquals(1, slow.getDeviation(), 0.2);
+  }
+
+  private static Profile profile(long durationMillis, long stepMillis)
+  {
+    Profile root = new Profile(0, "Request");
+    root.setDuration(durationMillis * 1000000);
+    Profile step = new Profile(1, "Step");
+    step.setDuration(stepMillis * 1000000);
+    root.addChild(step);
+    return root;
+  }
+}
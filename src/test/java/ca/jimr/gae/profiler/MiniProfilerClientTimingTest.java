@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.*;
+
+import org.junit.Test;
+
+public class MiniProfilerClientTimingTest
+{
+  @Test
+  public void testParse() throws Exception
+  {
+    Map<String, Object> timing = parse("{\"id\": \"12\", \"navigation\": {\"requestStart\": 5, \"responseStart\": 45.5, \"bogus\": 1, \"domComplete\": -1},"
+        + " \"resources\": [{\"name\": \"/a.js\", \"initiatorType\": \"script\", \"start\": 50, \"duration\": 10, \"size\": 300},"
+        + " {\"name\": \"/b.css\", \"start\": 51}, \"junk\"]}");
+    assertEquals("12", timing.get("id"));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> navigation = (Map<String, Object>) timing.get("navigation");
+    assertEquals(Arrays.asList("requestStart", "responseStart"), new ArrayList<String>(navigation.keySet()));
+    assertEquals(45.5, navigation.get("responseStart"));
+
+    @SuppressWarnings("unchecked")
+    List<Map<String, Object>> resources = (List<Map<String, Object>>) timing.get("resources");
+    assertEquals(1, resources.size());
+    assertEquals("/a.js", resources.get(0).get("name"));
+    assertEquals("script", resources.get(0).get("initiatorType"));
+    assertEquals(300.0, resources.get(0).get("size"));
+  }
+
+  @Test
+  public void testInvalid() throws Exception
+  {
+    assertNull(parse("not json"));
+    assertNull(parse("{\"navigation\": {}}"));
+    assertNull(parse("{\"id\": 12, \"navigation\": {}}"));
+    assertNull(parse("{\"id\": \"12\"}"));
+
+    StringBuilder big = new StringBuilder("{\"id\": \"12\", \"navigation\": {}, \"x\": \"");
+    while (big.length() < MiniProfilerClientTiming.MAX_BEACON_BYTES)
+    {
+      big.append("xxxxxxxxxx");
+    }
+    assertNull(parse(big.append("\"}").toString()));
+  }
+
+  private static Map<String, Object> parse(String beacon) throws Exception
+  {
+    return MiniProfilerClientTiming.parse(new ByteArrayInputStream(beacon.getBytes("UTF-8")));
+  }
+}
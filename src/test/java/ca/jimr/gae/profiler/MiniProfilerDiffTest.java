@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.step;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+public class MiniProfilerDiffTest
+{
+  @Test
+  public void testDiff()
+  {
+    Profile before = step(0, "Request", 100);
+    Profile query = step(1, "Query", 30);
+    before.addChild(query);
+    query.addChild(step(2, "Datastore", 20));
+    before.addChild(step(3, "Render", 50));
+
+    Profile after = step(0, "Request", 120);
+    after.addChild(step(1, "Query", 10));
+    after.addChild(step(2, "Query", 15));
+    after.addChild(step(3, "Render", 60));
+    after.addChild(step(4, "Cache", 5));
+
+    MiniProfilerDiff.Node root = MiniProfilerDiff.diff(Arrays.asList(before, after));
+    assertEquals("Request", root.getName());
+    assertArrayEquals(new long[] { 100, 120 }, root.getDuration());
+    assertArrayEquals(new long[] { 20, 30 }, root.getSelf());
+    assertEquals(20, root.getDurationDelta());
+    assertEquals(10, root.getSelfDelta());
+    assertEquals(3, root.getChildren().size());
+
+    MiniProfilerDiff.Node queryNode = root.getChildren().get(0);
+    assertEquals("Query", queryNode.getName());
+    assertEquals(1, queryNode.getDepth());
+    assertArrayEquals(new int[] { 1, 2 }, queryNode.getCount());
+    assertEquals(-5, queryNode.getDurationDelta());
+    assertEquals(15, queryNode.getSelfDelta());
+    assertEquals(1, queryNode.getCountDelta());
+
+    // Only in the first profile
+    MiniProfilerDiff.Node datastore = queryNode.getChildren().get(0);
+    assertArrayEquals(new int[] { 1, 0 }, datastore.getCount());
+    assertEquals(-20, datastore.getDurationDelta());
+
+    // Only in the second profile
+    MiniProfilerDiff.Node cache = root.getChildren().get(2);
+    assertEquals("Cache", cache.getName());
+    assertArrayEquals(new int[] { 0, 1 }, cache.getCount());
+    assertEquals(5, cache.getSelfDelta());
+  }
+
+  @Test
+  public void testMissingProfile()
+  {
+    MiniProfilerDiff.Node root = MiniProfilerDiff.diff(Arrays.asList(null, step(0, "Request", 10)));
+    assertEquals("Request", root.getName());
+    assertArrayEquals(new int[] { 0, 1 }, root.getCount());
+    assertEquals(10, root.getDurationDelta());
+  }
+}
@@ -23,19 +23,28 @@ package ca.jimr.gae.profiler;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.servlet.FilterConfig;
-import javax.servlet.ServletContext;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
 
 import org.junit.*;
 
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.apphosting.api.ApiProxy;
 
 public class MiniProfilerFilterTest
 {
-  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalUserServiceTestConfig());
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+      new LocalMemcacheServiceTestConfig());
 
   @Before
   public void setUp()
@@ -52,8 +61,7 @@ public class MiniProfilerFilterTest
   @Test
   public void testShouldProfileNoRestrict() throws Exception
   {
-    MockFilterConfig cfg = new MockFilterConfig();
-    cfg.filterName = "ProfilerFilter";
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
 
     MiniProfilerFilter filter = new MiniProfilerFilter();
     filter.init(cfg);
@@ -66,8 +74,7 @@ public class MiniProfilerFilterTest
   @Test
   public void testShouldProfileAdminRestrict() throws Exception
   {
-    MockFilterConfig cfg = new MockFilterConfig();
-    cfg.filterName = "ProfilerFilter";
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY, "true");
 
     MiniProfilerFilter filter = new MiniProfilerFilter();
@@ -88,8 +95,7 @@ public class MiniProfilerFilterTest
   @Test
   public void testShouldProfileURLRestrict() throws Exception
   {
-    MockFilterConfig cfg = new MockFilterConfig();
-    cfg.filterName = "ProfilerFilter";
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/test/url$,^/test/regex/.*$");
 
     MiniProfilerFilter filter = new MiniProfilerFilter();
@@ -101,8 +107,7 @@ public class MiniProfilerFilterTest
   @Test
   public void testShouldProfileEmailRestrict() throws Exception
   {
-    MockFilterConfig cfg = new MockFilterConfig();
-    cfg.filterName = "ProfilerFilter";
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, "test@example.com,test2@example.com");
 
     MiniProfilerFilter filter = new MiniProfilerFilter();
@@ -124,8 +129,7 @@ public class MiniProfilerFilterTest
   @Test
   public void testShouldProfileKitchenSink() throws Exception
   {
-    MockFilterConfig cfg = new MockFilterConfig();
-    cfg.filterName = "ProfilerFilter";
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY, "true");
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/test/url$,^/test/regex/.*$");
     cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, "admin@example.com");
@@ -149,44 +153,467 @@ public class MiniProfilerFilterTest
     runURLAssertions(filter);
   }
 
-  private void runURLAssertions(MiniProfilerFilter filter)
+  @Test
+  public void testShouldProfileAnonymousRestrict() throws Exception
   {
-    assertFalse(filter.shouldProfile("/some/url"));
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, "test@example.com");
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/test/url$");
+    cfg.initParameters.put(MiniProfilerFilter.SAMPLE_PERCENT_KEY, "100");
+
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    // Anonymous requests aren't profiled, even if the URL matches
+    helper.setEnvIsLoggedIn(false);
+    assertFalse(filter.shouldProfile("/test/url"));
+    assertFalse(filter.shouldProfile("/other"));
+    helper.setEnvIsAdmin(true);
+    assertFalse(filter.shouldProfile("/test/url"));
+
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvAuthDomain("example.com");
+    helper.setEnvEmail("test@example.com");
     assertTrue(filter.shouldProfile("/test/url"));
-    assertFalse(filter.shouldProfile("/test/url2"));
-    assertTrue(filter.shouldProfile("/test/regex/"));
-    assertTrue(filter.shouldProfile("/test/regex/blah"));
-    assertTrue(filter.shouldProfile("/test/regex/foo/bar/baz"));
+    assertFalse(filter.shouldProfile("/other"));
   }
-  
-  private static class MockFilterConfig implements FilterConfig
+
+  @Test
+  public void testShouldProfileNonAdmin() throws Exception
   {
-    public String filterName;
-    public Map<String, String> initParameters = new HashMap<String, String>();
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY, "true");
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, "test@example.com");
+
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    // Being in the email list isn't enough if admins are required
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvAuthDomain("example.com");
+    helper.setEnvEmail("test@example.com");
+    helper.setEnvIsAdmin(false);
+    assertFalse(filter.shouldProfile("/test/url"));
+    helper.setEnvIsAdmin(true);
+    assertTrue(filter.shouldProfile("/test/url"));
 
-    @Override
-    public String getFilterName()
+    // The same user loses access as soon as they aren't an admin
+    helper.setEnvIsAdmin(false);
+    assertFalse(filter.shouldProfile("/test/url"));
+  }
+
+  @Test
+  public void testShouldProfileEmailList() throws Exception
+  {
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, " test@example.com , test2@example.com ");
+
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvAuthDomain("example.com");
+    for (String email : Arrays.asList("test@example.com", "test2@example.com"))
     {
-      return filterName;
+      helper.setEnvEmail(email);
+      helper.setEnvIsAdmin(false);
+      assertTrue(email, filter.shouldProfile("/test/url"));
+      helper.setEnvIsAdmin(true);
+      assertTrue(email, filter.shouldProfile("/test/url"));
     }
 
-    @Override
-    public String getInitParameter(String key)
+    // Admins not in the list aren't profiled
+    helper.setEnvEmail("admin@example.com");
+    assertFalse(filter.shouldProfile("/test/url"));
+    helper.setEnvEmail("test3@example.com");
+    helper.setEnvIsAdmin(false);
+    assertFalse(filter.shouldProfile("/test/url"));
+  }
+
+  @Test
+  public void testShouldProfileAfterConfigSwap() throws Exception
+  {
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY, "true");
+    cfg.initParameters.put(MiniProfilerFilter.CONFIG_POLL_SECONDS_KEY, "1");
+
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvAuthDomain("example.com");
+    helper.setEnvEmail("test@example.com");
+    helper.setEnvIsAdmin(false);
+    assertFalse(filter.shouldProfile("/test/url"));
+
+    // The same filter picks up the new restrictions on its next poll, and the
+    // user's answer changes straight away
+    Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put(MiniProfilerFilter.RESTRICT_TO_ADMINS_KEY, "false");
+    overrides.put(MiniProfilerFilter.RESTRICT_TO_EMAILS_KEY, "test@example.com");
+    MiniProfilerConfig.setOverrides(ms, overrides, 60);
+    Thread.sleep(1100);
+    assertTrue(filter.shouldProfile("/test/url"));
+    helper.setEnvEmail("test2@example.com");
+    assertFalse(filter.shouldProfile("/test/url"));
+
+    // And going back to the init parameters
+    MiniProfilerConfig.setOverrides(ms, new HashMap<String, String>(), 60);
+    Thread.sleep(1100);
+    helper.setEnvEmail("test@example.com");
+    assertFalse(filter.shouldProfile("/test/url"));
+    helper.setEnvIsAdmin(true);
+    helper.setEnvEmail("test2@example.com");
+    assertTrue(filter.shouldProfile("/test/url"));
+  }
+
+  @Test
+  public void testRuntimeConfig() throws Exception
+  {
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/test/url$");
+    cfg.initParameters.put(MiniProfilerFilter.CONFIG_POLL_SECONDS_KEY, "60");
+
+    Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/other$");
+    overrides.put(MiniProfilerFilter.DATA_EXPIRY_KEY, "300");
+    MiniProfilerConfig.setOverrides(ms, overrides, 60);
+
+    // The overrides are picked up on the first poll
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+    assertFalse(filter.shouldProfile("/test/url"));
+    assertTrue(filter.shouldProfile("/other"));
+    assertEquals(300, filter.getConfig().getDataExpiry());
+
+    // Sampling
+    overrides.put(MiniProfilerFilter.SAMPLE_PERCENT_KEY, "0");
+    MiniProfilerConfig.setOverrides(ms, overrides, 60);
+    filter = new MiniProfilerFilter();
+    filter.init(cfg);
+    assertFalse(filter.shouldProfile("/other"));
+
+    // Without polling, the overrides are ignored
+    cfg.initParameters.remove(MiniProfilerFilter.CONFIG_POLL_SECONDS_KEY);
+    filter = new MiniProfilerFilter();
+    filter.init(cfg);
+    assertTrue(filter.shouldProfile("/test/url"));
+
+    // Going back to the init parameters
+    MiniProfilerConfig.setOverrides(ms, new HashMap<String, String>(), 60);
+    assertTrue(MiniProfilerConfig.getOverrides(ms).isEmpty());
+
+    // Bad overrides aren't stored
+    try
     {
-      return initParameters.get(key);
+      MiniProfilerConfig.setOverrides(ms, Collections.singletonMap(MiniProfilerFilter.SAMPLE_PERCENT_KEY, "200"), 60);
+      fail("Sample percent should be checked");
+    } catch (IllegalArgumentException e)
+    {
+      // Expected
     }
+    try
+    {
+      MiniProfilerConfig.setOverrides(ms, Collections.singletonMap(MiniProfilerFilter.PROFILE_SERVLET_URL_KEY, "/x/"), 60);
+      fail("Only reloadable settings can be overridden");
+    } catch (IllegalArgumentException e)
+    {
+      // Expected
+    }
+    assertTrue(MiniProfilerConfig.getOverrides(ms).isEmpty());
+  }
 
-    @Override
-    public Enumeration<String> getInitParameterNames()
+  @Test
+  public void testRegressionThreshold() throws Exception
+  {
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.BASELINES_KEY, "true");
+    cfg.initParameters.put(MiniProfilerFilter.REGRESSION_THRESHOLD_KEY, "50");
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    MiniProfilerFixtures.MockRequest req = new MiniProfilerFixtures.MockRequest("/test/url");
+    filter.doFilter(req.create(), new MiniProfilerFixtures.MockResponse().create(), MiniProfilerFixtures.EMPTY_CHAIN);
+    String requestId = (String) req.attributes.get(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE);
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    @SuppressWarnings("unchecked")
+    Map<String, Object> requestData = (Map<String, Object>) MiniProfilerStore.get(ms,
+        String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+    assertEquals("The UI highlights steps with the configured threshold", 0.5, (Double) requestData.get("regressionThreshold"), 0.0001);
+  }
+
+  @Test
+  public void testServerTimingHeader() throws Exception
+  {
+    MiniProfiler.Profile root = new MiniProfiler.Profile(0, "Request");
+    root.setDuration(10000000);
+    MiniProfiler.Profile step1 = new MiniProfiler.Profile(1, "Fast");
+    step1.setDuration(1000000);
+    root.addChild(step1);
+    MiniProfiler.Profile step2 = new MiniProfiler.Profile(2, "Slow \"step\"");
+    step2.setDuration(5500000);
+    root.addChild(step2);
+    MiniProfiler.Profile step3 = new MiniProfiler.Profile(3, "Medium");
+    step3.setDuration(2000000);
+    root.addChild(step3);
+
+    assertNull(MiniProfilerFilter.getServerTimingHeader(null, 5, 1024));
+    assertEquals("total;dur=10.00", MiniProfilerFilter.getServerTimingHeader(root, 0, 1024));
+    assertEquals("total;dur=10.00, s2;desc=\"Slow \\\"step\\\"\";dur=5.50, s3;desc=\"Medium\";dur=2.00",
+        MiniProfilerFilter.getServerTimingHeader(root, 2, 1024));
+    assertEquals("total;dur=10.00, s2;desc=\"Slow \\\"step\\\"\";dur=5.50", MiniProfilerFilter.getServerTimingHeader(root, 5, 50));
+  }
+
+  @Test
+  public void testServerTimingResponse() throws Exception
+  {
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.SERVER_TIMING_STEPS_KEY, "0");
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    // The header is added before the buffered body is written
+    MiniProfilerFixtures.MockResponse res = new MiniProfilerFixtures.MockResponse();
+    filter.doFilter(new MiniProfilerFixtures.MockRequest("/test/url").create(), res.create(), new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse res) throws IOException
+      {
+        res.getWriter().write("body");
+        res.flushBuffer();
+      }
+    });
+    assertEquals("body", res.getBody());
+    assertTrue(res.headers.get(MiniProfilerFilter.SERVER_TIMING_HEADER).startsWith("total;dur="));
+
+    // What was written before a failure is still sent
+    res = new MiniProfilerFixtures.MockResponse();
+    try
     {
-      return Collections.enumeration(initParameters.keySet());
+      filter.doFilter(new MiniProfilerFixtures.MockRequest("/test/url").create(), res.create(), new FilterChain()
+      {
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res) throws IOException
+        {
+          res.getOutputStream().write("partial".getBytes("UTF-8"));
+          throw new IllegalStateException("Failed");
+        }
+      });
+      fail("The error should be rethrown");
+    } catch (IllegalStateException e)
+    {
+      assertEquals("Failed", e.getMessage());
     }
+    assertEquals("partial", res.getBody());
 
-    @Override
-    public ServletContext getServletContext()
+    // Redirects and errors discard the buffered body, and the header can't be
+    // added after them
+    res = new MiniProfilerFixtures.MockResponse();
+    filter.doFilter(new MiniProfilerFixtures.MockRequest("/test/url").create(), res.create(), new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse res) throws IOException
+      {
+        res.getWriter().write("before");
+        ((HttpServletResponse) res).sendRedirect("/next");
+        res.getWriter().write("after");
+      }
+    });
+    assertEquals(HttpServletResponse.SC_FOUND, res.status);
+    assertTrue(res.headers.get("Location").startsWith("/next?" + MiniProfilerFilter.REQUEST_ID_PARAM_REDIRECT + "="));
+    assertEquals("", res.getBody());
+    assertNull(res.headers.get(MiniProfilerFilter.SERVER_TIMING_HEADER));
+
+    res = new MiniProfilerFixtures.MockResponse();
+    filter.doFilter(new MiniProfilerFixtures.MockRequest("/test/url").create(), res.create(), new FilterChain()
     {
-      return null;
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse res) throws IOException
+      {
+        res.getWriter().write("before");
+        ((HttpServletResponse) res).sendError(HttpServletResponse.SC_NOT_FOUND);
+      }
+    });
+    assertEquals(HttpServletResponse.SC_NOT_FOUND, res.status);
+    assertEquals("", res.getBody());
+    assertNull(res.headers.get(MiniProfilerFilter.SERVER_TIMING_HEADER));
+  }
+
+  @Test
+  public void testConcurrency() throws Exception
+  {
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.RESTRICT_TO_URLS_KEY, "^/test/url$");
+    final MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    // Another request and a long-poll of the results servlet are in flight
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final FilterChain blocking = new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse res)
+      {
+        started.countDown();
+        try
+        {
+          finish.await();
+        } catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    List<Thread> threads = new ArrayList<Thread>();
+    for (final String url : Arrays.asList("/other", "/gae_mini_profile/poll"))
+    {
+      Thread thread = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            filter.doFilter(new MiniProfilerFixtures.MockRequest(url).create(), new MiniProfilerFixtures.MockResponse().create(), blocking);
+          } catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    try
+    {
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      MiniProfilerFixtures.MockRequest req = new MiniProfilerFixtures.MockRequest("/test/url");
+      filter.doFilter(req.create(), new MiniProfilerFixtures.MockResponse().create(), MiniProfilerFixtures.EMPTY_CHAIN);
+      String requestId = (String) req.attributes.get(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE);
+      MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+      @SuppressWarnings("unchecked")
+      Map<String, Object> requestData = (Map<String, Object>) MiniProfilerStore.get(ms,
+          String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId));
+      assertEquals("The profiler's own requests aren't counted", 2, requestData.get("concurrencyStart"));
+      assertEquals(2, requestData.get("concurrencyEnd"));
+    } finally
+    {
+      finish.countDown();
+      for (Thread thread : threads)
+      {
+        thread.join();
+      }
     }
+  }
+
+  @Test
+  public void testWatchdog() throws Exception
+  {
+    // Give the request a deadline, and let it create threads
+    helper.tearDown();
+    helper.setRemainingMillisTimer(new LocalServiceTestHelper.RequestMillisTimer()
+    {
+      @Override
+      public long getRemainingMillis()
+      {
+        return 1000;
+      }
+    });
+    final ApiProxy.Environment[] env = new ApiProxy.Environment[1];
+    helper.setEnvAttributes(Collections.<String, Object> singletonMap("com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY",
+        new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(final Runnable r)
+          {
+            return new Thread()
+            {
+              @Override
+              public void run()
+              {
+                ApiProxy.setEnvironmentForCurrentThread(env[0]);
+                r.run();
+              }
+            };
+          }
+        }));
+    helper.setUp();
+    env[0] = ApiProxy.getCurrentEnvironment();
 
+    MiniProfilerFixtures.MockConfig cfg = new MiniProfilerFixtures.MockConfig();
+    cfg.initParameters.put(MiniProfilerFilter.WATCHDOG_KEY, "5");
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    filter.init(cfg);
+
+    final MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    final MiniProfilerFixtures.MockRequest req = new MiniProfilerFixtures.MockRequest("/test/url");
+    final List<Map<String, Object>> partial = new ArrayList<Map<String, Object>>();
+    filter.doFilter(req.create(), new MiniProfilerFixtures.MockResponse().create(), new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest sReq, ServletResponse sRes)
+      {
+        String key = String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, req.attributes.get(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE));
+        MiniProfiler.Step step = MiniProfiler.step("Slow");
+        try
+        {
+          // Keep running until the watchdog has stored a snapshot
+          for (int i = 0; i < 100 && partial.isEmpty(); i++)
+          {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> requestData = (Map<String, Object>) MiniProfilerStore.get(ms, key);
+            if (requestData != null)
+            {
+              partial.add(requestData);
+            } else
+            {
+              Thread.sleep(20);
+            }
+          }
+        } catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        } finally
+        {
+          step.close();
+        }
+      }
+    });
+
+    assertEquals("The watchdog should store a snapshot", 1, partial.size());
+    assertEquals(true, partial.get(0).get("partial"));
+    assertEquals(Arrays.asList("Request", "Slow"), partial.get(0).get("stack"));
+    assertTrue(((MiniProfiler.Profile) partial.get(0).get("profile")).isRunning());
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> requestData = (Map<String, Object>) MiniProfilerStore.get(ms,
+        String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, req.attributes.get(MiniProfilerFilter.REQUEST_ID_ATTRIBUTE)));
+    assertNull("The full profile replaces the snapshot", requestData.get("partial"));
+    MiniProfiler.Profile profile = (MiniProfiler.Profile) requestData.get("profile");
+    assertFalse(profile.isRunning());
+    assertEquals("Slow", profile.getChildren().get(0).getName());
+  }
+
+  @Test
+  public void testParseRequestStart() throws Exception
+  {
+    assertEquals(-1, MiniProfilerFilter.parseRequestStart(null));
+    assertEquals(-1, MiniProfilerFilter.parseRequestStart("t=abc"));
+    assertEquals(1300000000123L, MiniProfilerFilter.parseRequestStart("t=1300000000123456"));
+    assertEquals(1300000000123L, MiniProfilerFilter.parseRequestStart("1300000000123"));
+    assertEquals(1300000000123L, MiniProfilerFilter.parseRequestStart("t=1300000000.123"));
+  }
+
+  private void runURLAssertions(MiniProfilerFilter filter)
+  {
+    assertFalse(filter.shouldProfile("/some/url"));
+    assertTrue(filter.shouldProfile("/test/url"));
+    assertFalse(filter.shouldProfile("/test/url2"));
+    assertTrue(filter.shouldProfile("/test/regex/"));
+    assertTrue(filter.shouldProfile("/test/regex/blah"));
+    assertTrue(filter.shouldProfile("/test/regex/foo/bar/baz"));
   }
 }
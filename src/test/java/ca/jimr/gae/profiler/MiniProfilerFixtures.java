@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import javax.servlet.*;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+/**
+ * Shared test fixtures.
+ */
+public class MiniProfilerFixtures
+{
+  /**
+   * A filter chain that does nothing.
+   */
+  public static final FilterChain EMPTY_CHAIN = new FilterChain()
+  {
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res)
+    {
+    }
+  };
+
+  /**
+   * Create a step with a raw duration.
+   */
+  public static Profile step(int id, String name, long duration)
+  {
+    Profile result = new Profile(id, name);
+    result.setDuration(duration);
+    return result;
+  }
+
+  /**
+   * Create a request profile with a chain of nested steps ("Step 1" >
+   * "Step 1.1" > ...), each starting a millisecond into its parent.
+   */
+  public static Profile profile(long durationMillis, long... stepMillis)
+  {
+    Profile root = step(0, "Request", durationMillis * 1000000);
+    Profile parent = root;
+    String name = "Step 1";
+    for (int i = 0; i < stepMillis.length; i++)
+    {
+      Profile step = step(i + 1, name, stepMillis[i] * 1000000);
+      step.setDepth(i + 1);
+      step.setOffset(i * 1000000L);
+      parent.addChild(step);
+      parent = step;
+      name += ".1";
+    }
+    return root;
+  }
+
+  /**
+   * Create the data stored for a profiled request.
+   */
+  public static Map<String, Object> requestData(String url, long timestamp, Profile profile)
+  {
+    Map<String, Object> requestData = new HashMap<String, Object>();
+    requestData.put("requestURL", url);
+    requestData.put("timestamp", timestamp);
+    requestData.put("redirect", false);
+    requestData.put("profile", profile);
+    return requestData;
+  }
+
+  /**
+   * The init parameters of a filter or servlet.
+   */
+  public static class MockConfig implements FilterConfig, ServletConfig
+  {
+    public Map<String, String> initParameters = new HashMap<String, String>();
+
+    @Override
+    public String getFilterName()
+    {
+      return "Mock";
+    }
+
+    @Override
+    public String getServletName()
+    {
+      return "Mock";
+    }
+
+    @Override
+    public String getInitParameter(String key)
+    {
+      return initParameters.get(key);
+    }
+
+    @Override
+    public Enumeration<String> getInitParameterNames()
+    {
+      return Collections.enumeration(initParameters.keySet());
+    }
+
+    @Override
+    public ServletContext getServletContext()
+    {
+      return null;
+    }
+  }
+
+  /**
+   * A mock HTTP request. Set the fields, then call {@link #create()} to get the
+   * request. Methods that aren't supported return null (or 0/false).
+   */
+  public static class MockRequest implements InvocationHandler
+  {
+    public String method = "GET";
+    public String requestURI = "/";
+    public String queryString;
+    public Map<String, String> parameters = new HashMap<String, String>();
+    public Map<String, String> headers = new HashMap<String, String>();
+    public List<Cookie> cookies = new ArrayList<Cookie>();
+    public Map<String, Object> attributes = new HashMap<String, Object>();
+    public String contentType;
+    public byte[] body = new byte[0];
+
+    public MockRequest(String requestURI)
+    {
+      this.requestURI = requestURI;
+    }
+
+    public HttpServletRequest create()
+    {
+      return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletRequest.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+    {
+      String name = m.getName();
+      if ("getMethod".equals(name))
+      {
+        return method;
+      } else if ("getRequestURI".equals(name))
+      {
+        return requestURI;
+      } else if ("getQueryString".equals(name))
+      {
+        return queryString;
+      } else if ("getProtocol".equals(name))
+      {
+        return "HTTP/1.1";
+      } else if ("getParameter".equals(name))
+      {
+        return parameters.get(args[0]);
+      } else if ("getHeader".equals(name))
+      {
+        return headers.get(args[0]);
+      } else if ("getDateHeader".equals(name))
+      {
+        return -1L;
+      } else if ("getCookies".equals(name))
+      {
+        return cookies.isEmpty() ? null : cookies.toArray(new Cookie[cookies.size()]);
+      } else if ("getAttribute".equals(name))
+      {
+        return attributes.get(args[0]);
+      } else if ("setAttribute".equals(name))
+      {
+        attributes.put((String) args[0], args[1]);
+        return null;
+      } else if ("getContentType".equals(name))
+      {
+        return contentType;
+      } else if ("getInputStream".equals(name))
+      {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream()
+        {
+          @Override
+          public int read()
+          {
+            return in.read();
+          }
+        };
+      }
+      return defaultValue(proxy, m, args);
+    }
+  }
+
+  /**
+   * A mock HTTP response that keeps everything that is written to it. Call
+   * {@link #create()} to get the response.
+   */
+  public static class MockResponse implements InvocationHandler
+  {
+    public int status = HttpServletResponse.SC_OK;
+    public Map<String, String> headers = new HashMap<String, String>();
+    public List<Cookie> cookies = new ArrayList<Cookie>();
+    public ByteArrayOutputStream body = new ByteArrayOutputStream();
+    /** Whether the response was committed by a redirect or error. */
+    public boolean committed;
+    private PrintWriter writer;
+
+    public HttpServletResponse create()
+    {
+      return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, this);
+    }
+
+    /**
+     * Get what was written to the response.
+     *
+     * @return The body (as UTF-8).
+     */
+    public String getBody() throws UnsupportedEncodingException
+    {
+      if (writer != null)
+      {
+        writer.flush();
+      }
+      return body.toString("UTF-8");
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+    {
+      String name = m.getName();
+      if ("setStatus".equals(name))
+      {
+        status = (Integer) args[0];
+        return null;
+      } else if ("sendError".equals(name))
+      {
+        status = (Integer) args[0];
+        committed = true;
+        return null;
+      } else if ("sendRedirect".equals(name))
+      {
+        status = HttpServletResponse.SC_FOUND;
+        headers.put("Location", (String) args[0]);
+        committed = true;
+        return null;
+      } else if ("isCommitted".equals(name))
+      {
+        return committed;
+      } else if ("setHeader".equals(name) || "addHeader".equals(name))
+      {
+        headers.put((String) args[0], (String) args[1]);
+        return null;
+      } else if ("setContentType".equals(name))
+      {
+        headers.put("Content-Type", (String) args[0]);
+        return null;
+      } else if ("addCookie".equals(name))
+      {
+        cookies.add((Cookie) args[0]);
+        return null;
+      } else if ("getCharacterEncoding".equals(name))
+      {
+        return "UTF-8";
+      } else if ("getOutputStream".equals(name))
+      {
+        return new ServletOutputStream()
+        {
+          @Override
+          public void write(int b)
+          {
+            body.write(b);
+          }
+        };
+      } else if ("getWriter".equals(name))
+      {
+        if (writer == null)
+        {
+          writer = new PrintWriter(new OutputStreamWriter(body, "UTF-8"));
+        }
+        return writer;
+      }
+      return defaultValue(proxy, m, args);
+    }
+  }
+
+  private static Object defaultValue(Object proxy, Method m, Object[] args)
+  {
+    if ("equals".equals(m.getName()))
+    {
+      return proxy == args[0];
+    } else if ("hashCode".equals(m.getName()))
+    {
+      return System.identityHashCode(proxy);
+    } else if ("toString".equals(m.getName()))
+    {
+      return "Mock";
+    }
+    Class<?> type = m.getReturnType();
+    if (type == boolean.class)
+    {
+      return false;
+    } else if (type == int.class)
+    {
+      return 0;
+    } else if (type == long.class)
+    {
+      return 0L;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+import com.google.appengine.api.urlfetch.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MiniProfilerHttpTest
+{
+  private HttpServer server;
+  private URL url;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    // Echoes the request body after "Hello "
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("Hello ".getBytes("UTF-8"));
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+        {
+          body.write(buffer, 0, n);
+        }
+        exchange.sendResponseHeaders(exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200, body.size());
+        exchange.getResponseBody().write(body.toByteArray());
+        exchange.close();
+      }
+    });
+    server.start();
+    url = new URL("http://localhost:" + server.getAddress().getPort() + "/test");
+  }
+
+  @After
+  public void tearDown()
+  {
+    server.stop(0);
+  }
+
+  @Test
+  public void testURLFetch() throws Exception
+  {
+    URLFetchService fetch = MiniProfilerHttp.wrap(new FakeURLFetchService());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      HTTPRequest request = new HTTPRequest(url, HTTPMethod.POST);
+      request.setPayload("Bob".getBytes("UTF-8"));
+      assertEquals("Hello Bob", new String(fetch.fetch(request).getContent(), "UTF-8"));
+
+      Future<HTTPResponse> future = fetch.fetchAsync(url);
+      MiniProfiler.step("Other work").close();
+      assertEquals(200, future.get().getResponseCode());
+
+      // Never retrieved
+      fetch.fetchAsync(url);
+      Thread.sleep(2);
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(4, result.getChildren().size());
+    Profile post = result.getChildren().get(0);
+    assertEquals("HTTP POST localhost", post.getName());
+    assertFalse("A blocking fetch is part of its parent's own time", post.isAsync());
+    assertEquals(url.toString(), post.getDetails().get("url"));
+    assertEquals(200, post.getDetails().get("status"));
+    assertEquals(3, post.getDetails().get("requestBytes"));
+    assertEquals(9, post.getDetails().get("responseBytes"));
+
+    Profile get = result.getChildren().get(1);
+    assertEquals("HTTP GET localhost", get.getName());
+    assertTrue(get.isAsync());
+    assertEquals(6, get.getDetails().get("responseBytes"));
+    // The async fetch overlaps the other step
+    Profile other = result.getChildren().get(2);
+    assertTrue(get.getOffset() + get.getDuration() >= other.getOffset() + other.getDuration());
+
+    // The fetch that was never retrieved is closed when the profile is
+    Profile unfinished = result.getChildren().get(3);
+    assertTrue(unfinished.isAsync());
+    assertTrue(unfinished.isRunning());
+    assertTrue(unfinished.getDuration() > 0);
+  }
+
+  @Test
+  public void testHttpURLConnection() throws Exception
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      HttpURLConnection c = MiniProfilerHttp.wrap((HttpURLConnection) url.openConnection());
+      c.setRequestMethod("POST");
+      c.setDoOutput(true);
+      OutputStream out = c.getOutputStream();
+      out.write("Alice".getBytes("UTF-8"));
+      out.close();
+      assertEquals(200, c.getResponseCode());
+      BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), "UTF-8"));
+      assertEquals("Hello Alice", in.readLine());
+      in.close();
+
+      c = MiniProfilerHttp.wrap((HttpURLConnection) new URL(url, "/missing").openConnection());
+      assertEquals(404, c.getResponseCode());
+      c.disconnect();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(2, result.getChildren().size());
+    Profile post = result.getChildren().get(0);
+    assertEquals("HTTP POST localhost", post.getName());
+    assertEquals(200, post.getDetails().get("status"));
+    assertEquals(5L, post.getDetails().get("requestBytes"));
+    assertEquals(11L, post.getDetails().get("responseBytes"));
+    assertTrue((Long) post.getDetails().get("firstByteTime") <= post.getDuration());
+    assertFalse(post.isRunning());
+
+    Profile missing = result.getChildren().get(1);
+    assertEquals(404, missing.getDetails().get("status"));
+  }
+
+  @Test
+  public void testHttpURLConnectionSettings() throws Exception
+  {
+    final List<String> calls = new ArrayList<String>();
+    HttpURLConnection connection = new HttpURLConnection(url)
+    {
+      @Override
+      public void setFixedLengthStreamingMode(long contentLength)
+      {
+        calls.add("fixedLength " + contentLength);
+      }
+
+      @Override
+      public void setChunkedStreamingMode(int chunkLength)
+      {
+        calls.add("chunked " + chunkLength);
+      }
+
+      @Override
+      public void connect()
+      {
+      }
+
+      @Override
+      public void disconnect()
+      {
+      }
+
+      @Override
+      public boolean usingProxy()
+      {
+        return false;
+      }
+    };
+    HttpURLConnection c = MiniProfilerHttp.wrap(connection);
+    c.setFixedLengthStreamingMode(5000000000L);
+    c.setChunkedStreamingMode(1024);
+    assertEquals(Arrays.asList("fixedLength 5000000000", "chunked 1024"), calls);
+
+    // Every setting is passed on to the real connection (rather than being
+    // kept in the wrapper's own fields)
+    for (Method m : HttpURLConnection.class.getMethods())
+    {
+      if (m.getName().startsWith("set") && !Modifier.isStatic(m.getModifiers()) && !Modifier.isFinal(m.getModifiers()))
+      {
+        assertEquals(m.toString(), c.getClass(), c.getClass().getMethod(m.getName(), m.getParameterTypes()).getDeclaringClass());
+      }
+    }
+  }
+
+  /**
+   * A URLFetch service that responds with "Hello " followed by the request
+   * body. (The local URLFetch service doesn't work on newer JVMs.)
+   */
+  private static class FakeURLFetchService implements URLFetchService
+  {
+    @Override
+    public HTTPResponse fetch(URL url) throws IOException
+    {
+      return fetch(new HTTPRequest(url));
+    }
+
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException
+    {
+      try
+      {
+        // The response can't be created outside of the URLFetch package
+        Constructor<HTTPResponse> constructor = HTTPResponse.class.getDeclaredConstructor(int.class);
+        constructor.setAccessible(true);
+        HTTPResponse response = constructor.newInstance(200);
+        Method setContent = HTTPResponse.class.getDeclaredMethod("setContent", byte[].class);
+        setContent.setAccessible(true);
+        String body = "Hello " + (request.getPayload() != null ? new String(request.getPayload(), "UTF-8") : "");
+        setContent.invoke(response, body.getBytes("UTF-8"));
+        return response;
+      } catch (Exception e)
+      {
+        throw new IOException(e.toString());
+      }
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(URL url)
+    {
+      return fetchAsync(new HTTPRequest(url));
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(final HTTPRequest request)
+    {
+      FutureTask<HTTPResponse> result = new FutureTask<HTTPResponse>(new Callable<HTTPResponse>()
+      {
+        @Override
+        public HTTPResponse call() throws Exception
+        {
+          return fetch(request);
+        }
+      });
+      new Thread(result).start();
+      return result;
+    }
+  }
+}
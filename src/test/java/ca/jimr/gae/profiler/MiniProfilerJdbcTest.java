@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+
+import org.junit.Test;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+public class MiniProfilerJdbcTest
+{
+  @Test
+  public void testCountParameters()
+  {
+    assertEquals(0, MiniProfilerJdbc.countParameters(null));
+    assertEquals(2, MiniProfilerJdbc.countParameters("SELECT * FROM user WHERE id = ? AND name = ?"));
+    assertEquals(1, MiniProfilerJdbc.countParameters("SELECT * FROM user WHERE name = 'what?' AND id = ?"));
+  }
+
+  @Test
+  public void testStatements() throws Exception
+  {
+    Connection c = MiniProfilerJdbc.wrap(fakeConnection());
+    String sql = "SELECT * FROM user WHERE id = ?";
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      for (int i = 0; i < 2; i++)
+      {
+        PreparedStatement s = c.prepareStatement(sql);
+        assertSame(c, s.getConnection());
+        s.setInt(1, i);
+        ResultSet rs = s.executeQuery();
+        while (rs.next())
+        {
+          rs.getString(1);
+        }
+        rs.close();
+        s.close();
+      }
+      Statement s = c.createStatement();
+      assertEquals(2, s.executeUpdate("DELETE FROM user"));
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(3, result.getChildren().size());
+    Profile query = result.getChildren().get(0);
+    assertEquals("SQL: " + sql, query.getName());
+    assertEquals(1, query.getDetails().get("parameters"));
+    assertEquals(3, query.getDetails().get("rows"));
+    assertTrue((Long) query.getDetails().get("executeTime") >= 0);
+    assertTrue((Long) query.getDetails().get("fetchTime") >= 0);
+    // The step name is only built once per request
+    assertSame(query.getName(), result.getChildren().get(1).getName());
+
+    Profile update = result.getChildren().get(2);
+    assertEquals("SQL: DELETE FROM user", update.getName());
+    assertEquals(0, update.getDetails().get("parameters"));
+    assertEquals(2, update.getDetails().get("rows"));
+  }
+
+  @Test
+  public void testNotProfiling() throws Exception
+  {
+    Connection c = MiniProfilerJdbc.wrap(fakeConnection());
+    ResultSet rs = c.prepareStatement("SELECT 1").executeQuery();
+    assertTrue(rs.next());
+  }
+
+  /**
+   * A connection whose queries return 3 rows and updates update 2 rows.
+   */
+  private static Connection fakeConnection()
+  {
+    return fake(Connection.class, new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+        if (method.getName().equals("prepareStatement"))
+        {
+          return fake(PreparedStatement.class, new FakeStatement());
+        }
+        if (method.getName().equals("createStatement"))
+        {
+          return fake(Statement.class, new FakeStatement());
+        }
+        return null;
+      }
+    });
+  }
+
+  private static class FakeStatement implements InvocationHandler
+  {
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      if (method.getName().equals("executeQuery"))
+      {
+        return fake(ResultSet.class, new InvocationHandler()
+        {
+          private int row = 0;
+
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+          {
+            if (method.getName().equals("next"))
+            {
+              return ++row <= 3;
+            }
+            return method.getName().equals("getString") ? "row" : null;
+          }
+        });
+      }
+      if (method.getName().equals("executeUpdate"))
+      {
+        return 2;
+      }
+      return null;
+    }
+  }
+
+  private static <T> T fake(Class<T> iface, InvocationHandler handler)
+  {
+    return iface.cast(Proxy.newProxyInstance(MiniProfilerJdbcTest.class.getClassLoader(), new Class<?>[] { iface }, handler));
+  }
+}
@@ -0,0 +1,710 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.*;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockConfig;
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockRequest;
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockResponse;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures how much the {@link MiniProfilerFilter} costs under concurrency.
+ * <p>
+ * An embedded HTTP server is started with the filter, the
+ * {@link MiniProfilerServlet} and a synthetic workload (a servlet that does
+ * some busy work in a tree of nested steps), backed by the local App Engine
+ * memcache and user services. Many clients then make requests to it for a
+ * fixed amount of time, once for each mode:
+ * <ul>
+ * <li>{@code none} - the filter isn't installed (the baseline).</li>
+ * <li>{@code off} - the filter is installed, but no requests are profiled.</li>
+ * <li>{@code sampled} - a percentage of requests are profiled.</li>
+ * <li>{@code on} - every request is profiled.</li>
+ * </ul>
+ * The throughput and latency percentiles of each mode are written to a JSON
+ * file so they can be tracked over time (and printed when run from the
+ * command line). Run it with
+ * {@code --help} to see the options.
+ * <p>
+ * The server is the JDK's {@code com.sun.net.httpserver}, bridged to the
+ * servlets with the mock requests and responses in {@link MiniProfilerFixtures},
+ * so it only supports what the profiler and the workload need.
+ */
+public class MiniProfilerLoadHarness
+{
+  public static final String[] MODES = { "none", "off", "sampled", "on" };
+
+  private static final String SERVLET_URL = "/gae_mini_profile/";
+  private static final String WORK_URL = "/work";
+
+  /**
+   * The settings for a run.
+   */
+  public static class Settings
+  {
+    /** The number of concurrent clients. */
+    public int clients = 32;
+    /** The number of server threads. */
+    public int threads = 32;
+    /** How long each mode is measured for (seconds). */
+    public double seconds = 10;
+    /** How long each mode is run before it's measured (seconds). */
+    public double warmupSeconds = 2;
+    /** How deep the tree of steps is for each request. */
+    public int depth = 3;
+    /** How many child steps each step has. */
+    public int breadth = 3;
+    /** How much busy work each step does (microseconds). */
+    public int workMicros = 20;
+    /** The percentage of requests profiled in the sampled mode. */
+    public double samplePercent = 10;
+    /** The modes to run (in order). */
+    public List<String> modes = new ArrayList<String>(Arrays.asList(MODES));
+    /** Extra init parameters for the filter. */
+    public Map<String, String> filterParams = new LinkedHashMap<String, String>();
+    /** Where the results are written (null for the default). */
+    public File out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (Arrays.asList(args).contains("--help"))
+    {
+      System.out.println("Usage: MiniProfilerLoadHarness [options]");
+      System.out.println("  --clients N         concurrent clients (default 32)");
+      System.out.println("  --threads N         server threads (default 32)");
+      System.out.println("  --seconds N         how long each mode is measured (default 10)");
+      System.out.println("  --warmup N          how long each mode is warmed up (default 2)");
+      System.out.println("  --depth N           depth of the tree of steps (default 3)");
+      System.out.println("  --breadth N         children of each step (default 3)");
+      System.out.println("  --workMicros N      busy work in each step (default 20)");
+      System.out.println("  --samplePercent N   requests profiled in the sampled mode (default 10)");
+      System.out.println("  --modes a,b,...     modes to run, from none,off,sampled,on (default all)");
+      System.out.println("  --filterParam k=v   extra filter init parameter (can be repeated)");
+      System.out.println("  --out FILE          where to write the results (default target/load/load-<time>.json)");
+      return;
+    }
+    Settings settings = parse(args);
+    Map<String, Object> results = run(settings);
+    print(results, System.out);
+  }
+
+  /**
+   * Parse the command line options.
+   *
+   * @param args
+   *          The options (see {@code --help}).
+   * @return The settings for the run.
+   * @throws IllegalArgumentException
+   *           If an option is unknown or is missing its value.
+   */
+  protected static Settings parse(String[] args)
+  {
+    Settings settings = new Settings();
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      if (i + 1 >= args.length)
+      {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      }
+      String value = args[++i];
+      if ("--clients".equals(arg))
+      {
+        settings.clients = Integer.parseInt(value);
+      } else if ("--threads".equals(arg))
+      {
+        settings.threads = Integer.parseInt(value);
+      } else if ("--seconds".equals(arg))
+      {
+        settings.seconds = Double.parseDouble(value);
+      } else if ("--warmup".equals(arg))
+      {
+        settings.warmupSeconds = Double.parseDouble(value);
+      } else if ("--depth".equals(arg))
+      {
+        settings.depth = Integer.parseInt(value);
+      } else if ("--breadth".equals(arg))
+      {
+        settings.breadth = Integer.parseInt(value);
+      } else if ("--workMicros".equals(arg))
+      {
+        settings.workMicros = Integer.parseInt(value);
+      } else if ("--samplePercent".equals(arg))
+      {
+        settings.samplePercent = Double.parseDouble(value);
+      } else if ("--modes".equals(arg))
+      {
+        settings.modes = Arrays.asList(value.split(","));
+      } else if ("--filterParam".equals(arg))
+      {
+        int equals = value.indexOf('=');
+        if (equals <= 0)
+        {
+          throw new IllegalArgumentException("--filterParam must be name=value");
+        }
+        settings.filterParams.put(value.substring(0, equals), value.substring(equals + 1));
+      } else if ("--out".equals(arg))
+      {
+        settings.out = new File(value);
+      } else
+      {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    return settings;
+  }
+
+  /**
+   * Run each mode and write the results.
+   *
+   * @param settings
+   *          The settings for the run.
+   * @return The results (as written to the file).
+   */
+  public static Map<String, Object> run(Settings settings) throws Exception
+  {
+    for (String mode : settings.modes)
+    {
+      if (!Arrays.asList(MODES).contains(mode))
+      {
+        throw new IllegalArgumentException("Unknown mode " + mode);
+      }
+    }
+    File out = settings.out;
+    if (out == null)
+    {
+      out = new File("target/load/load-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+    }
+
+    List<Map<String, Object>> modeResults = new ArrayList<Map<String, Object>>();
+    Map<String, Object> baseline = null;
+    for (String mode : settings.modes)
+    {
+      Map<String, Object> result = runMode(mode, settings);
+      if ("none".equals(mode))
+      {
+        baseline = result;
+      } else if (baseline != null)
+      {
+        result.put("p50OverheadMicros", (Long) result.get("p50Micros") - (Long) baseline.get("p50Micros"));
+        result.put("p99OverheadMicros", (Long) result.get("p99Micros") - (Long) baseline.get("p99Micros"));
+        result.put("p999OverheadMicros", (Long) result.get("p999Micros") - (Long) baseline.get("p999Micros"));
+      }
+      modeResults.add(result);
+    }
+
+    Map<String, Object> settingsData = new LinkedHashMap<String, Object>();
+    settingsData.put("clients", settings.clients);
+    settingsData.put("threads", settings.threads);
+    settingsData.put("seconds", settings.seconds);
+    settingsData.put("warmupSeconds", settings.warmupSeconds);
+    settingsData.put("depth", settings.depth);
+    settingsData.put("breadth", settings.breadth);
+    settingsData.put("workMicros", settings.workMicros);
+    settingsData.put("samplePercent", settings.samplePercent);
+    settingsData.put("filterParams", settings.filterParams);
+
+    Map<String, Object> results = new LinkedHashMap<String, Object>();
+    results.put("timestamp", System.currentTimeMillis());
+    results.put("javaVersion", System.getProperty("java.version"));
+    results.put("processors", Runtime.getRuntime().availableProcessors());
+    results.put("settings", settingsData);
+    results.put("modes", modeResults);
+
+    File dir = out.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+    {
+      throw new IOException("Couldn't create " + dir);
+    }
+    results.put("out", out.getPath());
+    new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, results);
+    return results;
+  }
+
+  /**
+   * Print a summary of the results of a run.
+   *
+   * @param results
+   *          The results (from {@link #run(Settings)}).
+   * @param out
+   *          Where to print them.
+   */
+  @SuppressWarnings("unchecked")
+  public static void print(Map<String, Object> results, PrintStream out)
+  {
+    out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s", "mode", "requests", "errors", "req/s", "mean(us)", "p50(us)",
+        "p99(us)", "p999(us)"));
+    for (Map<String, Object> result : (List<Map<String, Object>>) results.get("modes"))
+    {
+      out.println(String.format("%-8s %10d %8d %10.1f %10d %10d %10d %10d", result.get("mode"), result.get("requests"), result.get("errors"),
+          result.get("throughput"), result.get("meanMicros"), result.get("p50Micros"), result.get("p99Micros"), result.get("p999Micros")));
+    }
+    out.println("Results written to " + results.get("out"));
+  }
+
+  /**
+   * Start a server for a mode, run the clients against it and stop it.
+   */
+  private static Map<String, Object> runMode(String mode, Settings settings) throws Exception
+  {
+    final Services services = new Services();
+    services.setUp();
+    Filter filter = null;
+    HttpServer server = null;
+    ExecutorService serverThreads = null;
+    try
+    {
+      if (!"none".equals(mode))
+      {
+        MockConfig filterConfig = new MockConfig();
+        filterConfig.initParameters.putAll(settings.filterParams);
+        filterConfig.initParameters.put(MiniProfilerFilter.PROFILE_SERVLET_URL_KEY, SERVLET_URL);
+        if ("off".equals(mode))
+        {
+          filterConfig.initParameters.put(MiniProfilerFilter.SAMPLE_PERCENT_KEY, "0");
+        } else if ("sampled".equals(mode))
+        {
+          filterConfig.initParameters.put(MiniProfilerFilter.SAMPLE_PERCENT_KEY, String.valueOf(settings.samplePercent));
+        } else
+        {
+          filterConfig.initParameters.put(MiniProfilerFilter.SAMPLE_PERCENT_KEY, "100");
+        }
+        filter = new MiniProfilerFilter();
+        filter.init(filterConfig);
+      }
+      MiniProfilerServlet profilerServlet = new MiniProfilerServlet();
+      profilerServlet.init(new MockConfig());
+
+      // Each server thread needs its own App Engine environment
+      serverThreads = Executors.newFixedThreadPool(settings.threads, new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+          Thread thread = new Thread(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              ApiProxy.setEnvironmentForCurrentThread(services.createEnvironment());
+              r.run();
+            }
+          });
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), settings.clients * 2);
+      server.createContext("/", new ServletHandler(filter, profilerServlet, new WorkloadServlet(settings.depth, settings.breadth,
+          settings.workMicros)));
+      server.setExecutor(serverThreads);
+      server.start();
+
+      URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + WORK_URL);
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("mode", mode);
+      result.putAll(drive(url, settings));
+      return result;
+    } finally
+    {
+      if (server != null)
+      {
+        server.stop(0);
+      }
+      if (serverThreads != null)
+      {
+        serverThreads.shutdownNow();
+      }
+      if (filter != null)
+      {
+        filter.destroy();
+      }
+      services.tearDown();
+    }
+  }
+
+  /**
+   * Run the clients against a URL (warming up first) and work out the
+   * throughput and latency percentiles of the measured requests.
+   */
+  private static Map<String, Object> drive(URL url, Settings settings) throws InterruptedException
+  {
+    long start = System.nanoTime();
+    long measureStart = start + (long) (settings.warmupSeconds * 1e9);
+    long end = measureStart + (long) (settings.seconds * 1e9);
+
+    Client[] clients = new Client[settings.clients];
+    Thread[] threads = new Thread[settings.clients];
+    for (int i = 0; i < clients.length; i++)
+    {
+      clients[i] = new Client(url, measureStart, end);
+      threads[i] = new Thread(clients[i], "load-client-" + i);
+      threads[i].start();
+    }
+    int count = 0;
+    int errors = 0;
+    for (int i = 0; i < clients.length; i++)
+    {
+      threads[i].join();
+      count += clients[i].count;
+      errors += clients[i].errors;
+    }
+
+    long[] latencies = new long[count];
+    int offset = 0;
+    for (Client client : clients)
+    {
+      System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+      offset += client.count;
+    }
+    Arrays.sort(latencies);
+    long total = 0;
+    for (long latency : latencies)
+    {
+      total += latency;
+    }
+
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("requests", count);
+    result.put("errors", errors);
+    result.put("throughput", count / settings.seconds);
+    result.put("meanMicros", count > 0 ? total / count / 1000 : 0L);
+    result.put("p50Micros", percentile(latencies, 0.5));
+    result.put("p99Micros", percentile(latencies, 0.99));
+    result.put("p999Micros", percentile(latencies, 0.999));
+    result.put("maxMicros", count > 0 ? latencies[count - 1] / 1000 : 0L);
+    return result;
+  }
+
+  /**
+   * Get a percentile of some sorted latencies (in microseconds).
+   */
+  protected static long percentile(long[] sorted, double q)
+  {
+    if (sorted.length == 0)
+    {
+      return 0;
+    }
+    int i = (int) Math.ceil(q * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1000;
+  }
+
+  /**
+   * A client that makes requests one after another until the end of the run,
+   * recording the latency (nanoseconds) of each request made after the
+   * warmup.
+   */
+  private static class Client implements Runnable
+  {
+    private URL url;
+    private long measureStart;
+    private long end;
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+    private byte[] buffer = new byte[4096];
+
+    public Client(URL url, long measureStart, long end)
+    {
+      this.url = url;
+      this.measureStart = measureStart;
+      this.end = end;
+    }
+
+    @Override
+    public void run()
+    {
+      long now = System.nanoTime();
+      while (now < end)
+      {
+        boolean ok = request();
+        long finished = System.nanoTime();
+        if (now >= measureStart)
+        {
+          if (!ok)
+          {
+            errors++;
+          } else
+          {
+            if (count == latencies.length)
+            {
+              latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = finished - now;
+          }
+        }
+        now = finished;
+      }
+    }
+
+    private boolean request()
+    {
+      HttpURLConnection connection = null;
+      try
+      {
+        connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null)
+        {
+          // Read the whole response so the connection can be reused
+          while (in.read(buffer) >= 0)
+          {
+          }
+          in.close();
+        }
+        return status == HttpServletResponse.SC_OK;
+      } catch (IOException e)
+      {
+        if (connection != null)
+        {
+          connection.disconnect();
+        }
+        return false;
+      }
+    }
+  }
+
+  /**
+   * The synthetic workload: a tree of nested steps that each do some busy
+   * work.
+   */
+  private static class WorkloadServlet extends HttpServlet
+  {
+    private static final long serialVersionUID = 1L;
+
+    private int depth;
+    private int breadth;
+    private long workNanos;
+
+    public WorkloadServlet(int depth, int breadth, int workMicros)
+    {
+      this.depth = depth;
+      this.breadth = breadth;
+      this.workNanos = workMicros * 1000L;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+      work(1);
+      resp.setContentType("text/plain");
+      resp.getWriter().write("ok");
+    }
+
+    private void work(int level)
+    {
+      for (int i = 0; i < breadth; i++)
+      {
+        MiniProfiler.Step step = MiniProfiler.step("Level " + level + " #" + i, i == 0 ? MiniProfiler.DATASTORE : MiniProfiler.RENDER);
+        try
+        {
+          long workEnd = System.nanoTime() + workNanos;
+          while (System.nanoTime() < workEnd)
+          {
+            // Busy wait
+          }
+          if (level < depth)
+          {
+            work(level + 1);
+          }
+        } finally
+        {
+          step.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * The local App Engine services. Every server thread gets its own
+   * environment from them.
+   */
+  private static class Services extends LocalServiceTestHelper
+  {
+    public Services()
+    {
+      super(new LocalServiceTestConfig[] { new LocalMemcacheServiceTestConfig(), new LocalUserServiceTestConfig() });
+    }
+
+    public ApiProxy.Environment createEnvironment()
+    {
+      return newEnvironment();
+    }
+  }
+
+  /**
+   * Passes each request through the filter (if there is one) to the profiler
+   * servlet or the workload.
+   */
+  private static class ServletHandler implements HttpHandler
+  {
+    private Filter filter;
+    private Servlet profilerServlet;
+    private Servlet workloadServlet;
+
+    public ServletHandler(Filter filter, Servlet profilerServlet, Servlet workloadServlet)
+    {
+      this.filter = filter;
+      this.profilerServlet = profilerServlet;
+      this.workloadServlet = workloadServlet;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException
+    {
+      MockRequest request = request(exchange);
+      MockResponse response = new MockResponse();
+      FilterChain chain = new FilterChain()
+      {
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException
+        {
+          String path = ((HttpServletRequest) req).getRequestURI();
+          if (path.startsWith(SERVLET_URL))
+          {
+            profilerServlet.service(req, res);
+          } else if (path.equals(WORK_URL))
+          {
+            workloadServlet.service(req, res);
+          } else
+          {
+            ((HttpServletResponse) res).sendError(HttpServletResponse.SC_NOT_FOUND);
+          }
+        }
+      };
+      try
+      {
+        if (filter != null)
+        {
+          filter.doFilter(request.create(), response.create(), chain);
+        } else
+        {
+          chain.doFilter(request.create(), response.create());
+        }
+        response.getBody();
+      } catch (Exception e)
+      {
+        response.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        response.body.reset();
+      }
+      send(exchange, response);
+    }
+
+    /**
+     * Copy what the profiler and the workload use from the exchange to a
+     * request.
+     */
+    private static MockRequest request(HttpExchange exchange) throws IOException
+    {
+      MockRequest request = new MockRequest(exchange.getRequestURI().getRawPath());
+      request.method = exchange.getRequestMethod();
+      request.queryString = exchange.getRequestURI().getRawQuery();
+      request.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet())
+      {
+        if (!header.getValue().isEmpty())
+        {
+          request.headers.put(header.getKey(), header.getValue().get(0));
+        }
+      }
+      request.contentType = request.headers.get("Content-Type");
+      if (request.queryString != null)
+      {
+        for (String part : request.queryString.split("&"))
+        {
+          int equals = part.indexOf('=');
+          String key = URLDecoder.decode(equals >= 0 ? part.substring(0, equals) : part, "UTF-8");
+          if (!request.parameters.containsKey(key))
+          {
+            request.parameters.put(key, equals >= 0 ? URLDecoder.decode(part.substring(equals + 1), "UTF-8") : "");
+          }
+        }
+      }
+      String cookies = request.headers.get("Cookie");
+      if (cookies != null)
+      {
+        for (String part : cookies.split(";"))
+        {
+          int equals = part.indexOf('=');
+          if (equals > 0)
+          {
+            request.cookies.add(new Cookie(part.substring(0, equals).trim(), part.substring(equals + 1).trim()));
+          }
+        }
+      }
+      return request;
+    }
+
+    /**
+     * Send a response once the request is done.
+     */
+    private static void send(HttpExchange exchange, MockResponse response) throws IOException
+    {
+      for (Map.Entry<String, String> header : response.headers.entrySet())
+      {
+        exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+      }
+      for (Cookie cookie : response.cookies)
+      {
+        exchange.getResponseHeaders().add("Set-Cookie", cookie.getName() + "=" + cookie.getValue() + "; Path=/");
+      }
+      exchange.sendResponseHeaders(response.status, response.body.size() > 0 ? response.body.size() : -1);
+      if (response.body.size() > 0)
+      {
+        OutputStream out = exchange.getResponseBody();
+        response.body.writeTo(out);
+        out.close();
+      }
+      exchange.close();
+    }
+  }
+}
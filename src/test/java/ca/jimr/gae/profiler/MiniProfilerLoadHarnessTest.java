@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.*;
+
+public class MiniProfilerLoadHarnessTest
+{
+  @Test
+  public void testPercentile()
+  {
+    long[] latencies = new long[1000];
+    for (int i = 0; i < latencies.length; i++)
+    {
+      latencies[i] = (i + 1) * 1000L;
+    }
+    assertEquals(500, MiniProfilerLoadHarness.percentile(latencies, 0.5));
+    assertEquals(990, MiniProfilerLoadHarness.percentile(latencies, 0.99));
+    assertEquals(999, MiniProfilerLoadHarness.percentile(latencies, 0.999));
+    assertEquals(0, MiniProfilerLoadHarness.percentile(new long[0], 0.5));
+  }
+
+  @Test
+  public void testParse()
+  {
+    MiniProfilerLoadHarness.Settings settings = MiniProfilerLoadHarness.parse(new String[] { "--clients", "8", "--seconds", "1.5",
+        "--modes", "none,on", "--filterParam", "watchdog=50", "--filterParam", "a=b=c", "--out", "load.json" });
+    assertEquals(8, settings.clients);
+    assertEquals(32, settings.threads);
+    assertEquals(1.5, settings.seconds, 0);
+    assertEquals(Arrays.asList("none", "on"), settings.modes);
+    assertEquals("50", settings.filterParams.get("watchdog"));
+    assertEquals("b=c", settings.filterParams.get("a"));
+    assertEquals(new File("load.json"), settings.out);
+
+    for (String[] args : new String[][] { { "--clients" }, { "--bogus", "1" }, { "--filterParam", "=1" }, { "--depth", "x" } })
+    {
+      try
+      {
+        MiniProfilerLoadHarness.parse(args);
+        fail("Should have rejected " + Arrays.toString(args));
+      } catch (IllegalArgumentException e)
+      {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * A short run of every mode. It starts real servers, so it only runs when
+   * asked for with {@code -DloadHarness=true}.
+   */
+  @Test
+  public void testRun() throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("loadHarness"));
+    File out = File.createTempFile("load", ".json");
+    try
+    {
+      MiniProfilerLoadHarness.Settings settings = new MiniProfilerLoadHarness.Settings();
+      settings.clients = 4;
+      settings.threads = 4;
+      settings.seconds = 0.5;
+      settings.warmupSeconds = 0.1;
+      settings.depth = 2;
+      settings.breadth = 2;
+      settings.workMicros = 1;
+      settings.samplePercent = 50;
+      settings.out = out;
+      MiniProfilerLoadHarness.run(settings);
+
+      @SuppressWarnings("unchecked")
+      Map<String, Object> results = new ObjectMapper().readValue(out, Map.class);
+      @SuppressWarnings("unchecked")
+      List<Map<String, Object>> modes = (List<Map<String, Object>>) results.get("modes");
+      assertEquals(4, modes.size());
+      for (int i = 0; i < modes.size(); i++)
+      {
+        Map<String, Object> mode = modes.get(i);
+        assertEquals(MiniProfilerLoadHarness.MODES[i], mode.get("mode"));
+        assertTrue("Requests should have been made", ((Number) mode.get("requests")).intValue() > 0);
+        assertEquals(0, ((Number) mode.get("errors")).intValue());
+        assertTrue(((Number) mode.get("p99Micros")).longValue() >= ((Number) mode.get("p50Micros")).longValue());
+      }
+      assertTrue("Overhead should be compared to the baseline", modes.get(3).containsKey("p99OverheadMicros"));
+    } finally
+    {
+      out.delete();
+    }
+  }
+}
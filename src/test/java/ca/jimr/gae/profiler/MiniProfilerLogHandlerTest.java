@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Log;
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+import ca.jimr.gae.profiler.MiniProfiler.Step;
+
+public class MiniProfilerLogHandlerTest
+{
+  private Logger logger = Logger.getLogger(MiniProfilerLogHandlerTest.class.getName());
+  private MiniProfilerLogHandler handler;
+
+  @Before
+  public void setUp()
+  {
+    handler = new MiniProfilerLogHandler(3, 10);
+    logger.setUseParentHandlers(false);
+    logger.addHandler(handler);
+  }
+
+  @After
+  public void tearDown()
+  {
+    logger.removeHandler(handler);
+    logger.setUseParentHandlers(true);
+  }
+
+  @Test
+  public void testNotProfiling()
+  {
+    logger.info("Not captured");
+    MiniProfiler.start();
+    Profile result = MiniProfiler.stop();
+    assertNull(result.getLogs());
+  }
+
+  @Test
+  public void testCapture()
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      logger.info("Start");
+      Step s = MiniProfiler.step("Step 1");
+      logger.log(Level.WARNING, "Value {0}", 42);
+      logger.severe("A very long message");
+      s.close();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    List<Log> logs = result.getLogs();
+    assertEquals(1, logs.size());
+    assertEquals("INFO", logs.get(0).getLevel());
+    assertEquals("Start", logs.get(0).getMessage());
+    assertEquals(logger.getName(), logs.get(0).getLogger());
+    assertEquals(0, logs.get(0).getStepId());
+
+    Profile step = result.getChildren().get(0);
+    logs = step.getLogs();
+    assertEquals(2, logs.size());
+    assertEquals("Value 42", logs.get(0).getMessage());
+    assertEquals("A very lon...", logs.get(1).getMessage());
+    assertEquals(step.getId(), logs.get(1).getStepId());
+    assertTrue(logs.get(0).getOffset() <= logs.get(1).getOffset());
+  }
+
+  @Test
+  public void testOldestDropped()
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      for (int i = 0; i < 5; i++)
+      {
+        logger.info("Log " + i);
+      }
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    List<Log> logs = result.getLogs();
+    assertEquals(3, logs.size());
+    assertEquals("Log 2", logs.get(0).getMessage());
+    assertEquals("Log 4", logs.get(2).getMessage());
+    assertEquals(2, result.getDetails().get("droppedLogs"));
+  }
+
+  @Test
+  public void testFolded()
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      for (int i = 0; i < 2; i++)
+      {
+        Step s = MiniProfiler.step("Trivial " + i);
+        logger.info("Log " + i);
+        s.close();
+      }
+    } finally
+    {
+      result = MiniProfiler.stop(Long.MAX_VALUE, 0);
+    }
+
+    Profile folded = result.getChildren().get(0);
+    assertEquals(MiniProfiler.TRIVIAL_STEPS, folded.getName());
+    assertEquals(2, folded.getLogs().size());
+    assertEquals("Log 0", folded.getLogs().get(0).getMessage());
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class MiniProfilerMemcacheTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testSizeOf()
+  {
+    assertEquals(0, MiniProfilerMemcache.sizeOf(null));
+    assertEquals(3, MiniProfilerMemcache.sizeOf(new byte[3]));
+    assertTrue(MiniProfilerMemcache.sizeOf("a longer string value") > MiniProfilerMemcache.sizeOf("a"));
+  }
+
+  @Test
+  public void testCalls()
+  {
+    MemcacheService ms = MiniProfilerMemcache.wrap(MemcacheServiceFactory.getMemcacheService());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      ms.put("a", new byte[100]);
+      ms.get("a");
+      ms.get("b");
+      ms.get("a");
+      ms.get("a");
+      ms.getAll(Arrays.asList("a", "b", "c"));
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    List<Profile> children = result.getChildren();
+    assertEquals(4, children.size());
+    Profile put = children.get(0);
+    assertEquals("Memcache put", put.getName());
+    assertEquals(1, put.getDetails().get("keys"));
+    assertEquals(100L, put.getDetails().get("bytes"));
+
+    // Repeated gets of "a" are added to the first one
+    Profile get = children.get(1);
+    assertEquals("Memcache get", get.getName());
+    assertEquals(3, get.getDetails().get("calls"));
+    assertEquals(3, get.getDetails().get("hits"));
+    assertEquals(0, get.getDetails().get("misses"));
+    assertEquals(300L, get.getDetails().get("bytes"));
+    assertTrue((Long) get.getDetails().get("totalTime") >= 0);
+
+    Profile miss = children.get(2);
+    assertEquals(0, miss.getDetails().get("hits"));
+    assertEquals(1, miss.getDetails().get("misses"));
+    assertNull(miss.getDetails().get("calls"));
+
+    Profile getAll = children.get(3);
+    assertEquals("Memcache getAll", getAll.getName());
+    assertEquals(3, getAll.getDetails().get("keys"));
+    assertEquals(1, getAll.getDetails().get("hits"));
+    assertEquals(2, getAll.getDetails().get("misses"));
+    assertEquals(100L, getAll.getDetails().get("bytes"));
+  }
+
+  @Test
+  public void testSizeNotTimed()
+  {
+    MemcacheService ms = MiniProfilerMemcache.wrap(MemcacheServiceFactory.getMemcacheService());
+    ms.put("slow", new SlowToSerialize());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      SlowToSerialize.delayMillis = 50;
+      ms.get("slow");
+    } finally
+    {
+      SlowToSerialize.delayMillis = 0;
+      result = MiniProfiler.stop();
+    }
+    Profile get = result.getChildren().get(0);
+    assertTrue("The value's size is measured outside of the step", get.getDuration() < 50000000);
+    assertTrue((Long) get.getDetails().get("bytes") > 0);
+  }
+
+  /**
+   * A value that can be made slow to serialize (only the profiler serializes
+   * it while it's slow).
+   */
+  private static class SlowToSerialize implements java.io.Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private static volatile long delayMillis;
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException, InterruptedException
+    {
+      Thread.sleep(delayMillis);
+      out.defaultWriteObject();
+    }
+  }
+
+  @Test
+  public void testAsync() throws Exception
+  {
+    AsyncMemcacheService ms = MiniProfilerMemcache.wrap(MemcacheServiceFactory.getAsyncMemcacheService());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      ms.put("a", "value").get();
+      assertEquals("value", ms.get("a").get());
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(2, result.getChildren().size());
+    Profile get = result.getChildren().get(1);
+    assertEquals("Memcache get", get.getName());
+    assertTrue(get.isAsync());
+    assertEquals(1, get.getDetails().get("hits"));
+  }
+
+  @Test
+  public void testNotWrapped()
+  {
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    assertSame(ms, MiniProfilerMemcache.wrap(ms));
+
+    // Nothing is recorded when not profiling
+    ms = MiniProfilerMemcache.wrap(MemcacheServiceFactory.getMemcacheService());
+    ms.put("a", "value");
+    assertEquals("value", ms.get("a"));
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+import ca.jimr.gae.profiler.MiniProfiler.Step;
+
+public class MiniProfilerMetricsTest
+{
+  @Before
+  public void setUp()
+  {
+    MiniProfilerMetrics.setRegistry(new MiniProfilerMetrics());
+  }
+
+  @Test
+  public void testTimer()
+  {
+    MiniProfilerTimer timer = MiniProfilerMetrics.stepTimer("Query");
+    assertSame(timer, MiniProfilerMetrics.stepTimer("Query"));
+    timer.record(500000);
+    timer.record(1000000);
+    timer.record(3000000);
+    timer.record(120000000000L);
+    assertEquals(4, timer.getCount());
+    assertEquals(120004500000L, timer.getSum());
+    long[] counts = timer.getBucketCounts();
+    assertEquals(timer.getBucketBounds().length + 1, counts.length);
+    assertEquals(2, counts[0]);
+    assertEquals(1, counts[2]);
+    assertEquals(1, counts[counts.length - 1]);
+  }
+
+  @Test
+  public void testStepTimer()
+  {
+    MiniProfilerTimer timer = MiniProfilerMetrics.stepTimer("Query");
+
+    // Timed even when the request isn't being profiled
+    Step s = MiniProfiler.step("Query", timer);
+    s.close();
+    assertEquals(1, timer.getCount());
+
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      s = MiniProfiler.step("Query", timer);
+      s.close();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+    assertEquals(2, timer.getCount());
+    assertEquals("Query", result.getChildren().get(0).getName());
+    assertTrue(timer.getSum() >= result.getChildren().get(0).getDuration());
+  }
+
+  @Test
+  public void testPrometheus() throws Exception
+  {
+    MiniProfilerMetrics.stepTimer("Say \"hi\"").record(2000000);
+    MiniProfilerMetrics.recordRequest("/users/123", 500000000);
+    MiniProfilerMetrics.recordRequest("/users/456", 1500000000);
+
+    StringWriter w = new StringWriter();
+    MiniProfilerMetrics.writePrometheus(MiniProfilerMetrics.getRegistry().getTimers(), w);
+    String output = w.toString();
+    assertTrue(output.startsWith("# TYPE mini_profiler_request_seconds histogram\n"));
+    assertTrue(output.contains("mini_profiler_request_seconds_bucket{url_pattern=\"/users/*\",le=\"0.5\"} 1\n"));
+    assertTrue(output.contains("mini_profiler_request_seconds_bucket{url_pattern=\"/users/*\",le=\"+Inf\"} 2\n"));
+    assertTrue(output.contains("mini_profiler_request_seconds_sum{url_pattern=\"/users/*\"} 2.0\n"));
+    assertTrue(output.contains("mini_profiler_request_seconds_count{url_pattern=\"/users/*\"} 2\n"));
+    assertTrue(output.contains("# TYPE mini_profiler_step_seconds histogram\n"));
+    assertTrue(output.contains("mini_profiler_step_seconds_bucket{step=\"Say \\\"hi\\\"\",le=\"0.001\"} 0\n"));
+    assertTrue(output.contains("mini_profiler_step_seconds_bucket{step=\"Say \\\"hi\\\"\",le=\"0.0025\"} 1\n"));
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+public class MiniProfilerProxyTest
+{
+  public interface Service
+  {
+    String hello(String name);
+
+    @Profiled("Custom name")
+    void fail() throws IOException;
+
+    int unprofiled();
+  }
+
+  public static class ServiceImpl implements Service
+  {
+    @Override
+    @Profiled
+    public String hello(String name)
+    {
+      return "Hello " + name;
+    }
+
+    @Override
+    public void fail() throws IOException
+    {
+      throw new IOException("Failed");
+    }
+
+    @Override
+    public int unprofiled()
+    {
+      return 1;
+    }
+  }
+
+  @Profiled
+  public static class AllProfiled implements Runnable
+  {
+    @Override
+    public void run()
+    {
+    }
+  }
+
+  @Test
+  public void testProxy()
+  {
+    Service service = MiniProfilerProxy.wrap(Service.class, new ServiceImpl());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      assertEquals("Hello Bob", service.hello("Bob"));
+      try
+      {
+        service.fail();
+        fail("The exception should be thrown");
+      } catch (IOException e)
+      {
+        assertEquals("Failed", e.getMessage());
+      }
+      assertEquals(1, service.unprofiled());
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(2, result.getChildren().size());
+    assertEquals("ServiceImpl.hello", result.getChildren().get(0).getName());
+    assertEquals("Custom name", result.getChildren().get(1).getName());
+  }
+
+  @Test
+  public void testClassAnnotation()
+  {
+    Runnable runnable = MiniProfilerProxy.wrap(Runnable.class, new AllProfiled());
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      runnable.run();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+    assertEquals(1, result.getChildren().size());
+    assertEquals("AllProfiled.run", result.getChildren().get(0).getName());
+  }
+
+  @Test
+  public void testNothingProfiled()
+  {
+    Runnable runnable = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+      }
+    };
+    assertSame(runnable, MiniProfilerProxy.wrap(Runnable.class, runnable));
+  }
+}
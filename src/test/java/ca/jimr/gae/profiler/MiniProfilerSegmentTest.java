@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.profile;
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.requestData;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+public class MiniProfilerSegmentTest
+{
+  private File segment1;
+  private File segment2;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    segment1 = File.createTempFile("mini_profile", ".mps");
+    segment2 = File.createTempFile("mini_profile", ".mps");
+
+    MiniProfilerSegmentWriter writer = new MiniProfilerSegmentWriter(new FileOutputStream(segment1));
+    writer.write("1", "a@example.com", requestData("/a", 1000, profile(10, 4, 2)));
+    writer.write("2", null, requestData("/b", 2000, profile(20, 8, 4)));
+    writer.close();
+
+    writer = new MiniProfilerSegmentWriter(new FileOutputStream(segment2));
+    writer.write("3", "a@example.com", requestData("/a", 3000, profile(30, 20, 2)));
+    writer.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    segment1.delete();
+    segment2.delete();
+  }
+
+  @Test
+  public void testReadSegment() throws Exception
+  {
+    MiniProfilerSegmentReader reader = new MiniProfilerSegmentReader(segment1);
+    try
+    {
+      assertEquals(2, reader.getRecordCount());
+      assertEquals(1000, reader.getTimestamp(0));
+      assertEquals(10000000, reader.getDuration(0));
+      assertEquals("/a", reader.getURL(0));
+      assertEquals("a@example.com", reader.getUser(0));
+      assertEquals("1", reader.getRequestId(0));
+      assertEquals(3, reader.getNodeCount(0));
+      assertEquals("Request", reader.getNodeName(0, 0));
+      assertEquals("Step 1", reader.getNodeName(0, 1));
+      assertEquals(1, reader.getNodeDepth(0, 1));
+      assertEquals(4000000, reader.getNodeDuration(0, 1));
+      assertEquals("Step 1.1", reader.getNodeName(0, 2));
+      assertEquals(2, reader.getNodeDepth(0, 2));
+      assertEquals(1000000, reader.getNodeOffset(0, 2));
+
+      assertEquals("/b", reader.getURL(1));
+      assertNull(reader.getUser(1));
+      assertEquals("2", reader.getRequestId(1));
+      // Step names are only stored once, and the strings of each request are
+      // stored with it
+      assertEquals(3, reader.getStringCount());
+      assertEquals("Request", reader.getString(reader.getNodeNameIndex(1, 0)));
+      assertNull(reader.getString(-1));
+
+      Profile profile = reader.getProfile(1);
+      assertEquals("Request", profile.getName());
+      assertEquals(20000000, profile.getDuration());
+      assertEquals(1, profile.getChildren().size());
+      Profile child = profile.getChildren().get(0);
+      assertEquals("Step 1", child.getName());
+      assertEquals(8000000, child.getDuration());
+      assertEquals("Step 1.1", child.getChildren().get(0).getName());
+      assertEquals(2, child.getChildren().get(0).getDepth());
+    } finally
+    {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testLongStrings() throws Exception
+  {
+    StringBuilder sql = new StringBuilder("SELECT * FROM t WHERE id IN (");
+    while (sql.length() < 100000)
+    {
+      sql.append("\u00e9, ");
+    }
+    String name = sql.toString();
+    Profile profile = new Profile(0, "Request");
+    Profile step = new Profile(1, name);
+    step.setDepth(1);
+    profile.addChild(step);
+
+    File file = File.createTempFile("mini_profile", ".mps");
+    try
+    {
+      MiniProfilerSegmentWriter writer = new MiniProfilerSegmentWriter(new FileOutputStream(file));
+      writer.write("1", null, requestData("/a", 1000, profile));
+      writer.close();
+      MiniProfilerSegmentReader reader = new MiniProfilerSegmentReader(file);
+      try
+      {
+        assertEquals(name, reader.getNodeName(0, 1));
+      } finally
+      {
+        reader.close();
+      }
+    } finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadInvalidSegment() throws Exception
+  {
+    File file = File.createTempFile("mini_profile", ".mps");
+    try
+    {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[100]);
+      out.close();
+      new MiniProfilerSegmentReader(file);
+    } finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testAggregate() throws Exception
+  {
+    MiniProfilerSegmentTool.Aggregate aggregate = MiniProfilerSegmentTool.aggregate(Arrays.asList(segment1, segment2),
+        new MiniProfilerSegmentTool.Criteria());
+    assertEquals(3, aggregate.getRequestCount());
+    assertEquals(3, aggregate.getCount("Step 1"));
+    assertEquals(32000000, aggregate.getTotal("Step 1"));
+    assertEquals(24000000, aggregate.getSelfTotal("Step 1"));
+    assertEquals(20000000, aggregate.getMax("Step 1"));
+    assertEquals(60000000 - 32000000, aggregate.getSelfTotal("Request"));
+
+    aggregate = MiniProfilerSegmentTool.aggregate(Arrays.asList(segment1, segment2), new MiniProfilerSegmentTool.Criteria().url("^/a$").minDuration(15));
+    assertEquals(1, aggregate.getRequestCount());
+    assertEquals(20000000, aggregate.getTotal("Step 1"));
+  }
+
+  @Test
+  public void testFilter() throws Exception
+  {
+    File out = File.createTempFile("mini_profile", ".mps");
+    try
+    {
+      assertEquals(2, MiniProfilerSegmentTool.filter(Arrays.asList(segment1, segment2), new MiniProfilerSegmentTool.Criteria().user("a@example.com"), out));
+      MiniProfilerSegmentReader reader = new MiniProfilerSegmentReader(out);
+      try
+      {
+        assertEquals(2, reader.getRecordCount());
+        assertEquals("1", reader.getRequestId(0));
+        assertEquals("3", reader.getRequestId(1));
+        assertEquals(3, reader.getNodeCount(1));
+        assertEquals(20000000, reader.getNodeDuration(1, 1));
+      } finally
+      {
+        reader.close();
+      }
+    } finally
+    {
+      out.delete();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import javax.servlet.http.Cookie;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.*;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockConfig;
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockRequest;
+import ca.jimr.gae.profiler.MiniProfilerFixtures.MockResponse;
+
+public class MiniProfilerServletTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+      new LocalMemcacheServiceTestConfig());
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testPoll() throws Exception
+  {
+    MiniProfilerFilter filter = new MiniProfilerFilter();
+    MockConfig filterConfig = new MockConfig();
+    filterConfig.initParameters.put(MiniProfilerFilter.LIVE_RESULTS_KEY, "true");
+    filter.init(filterConfig);
+    MiniProfilerServlet servlet = new MiniProfilerServlet();
+    MockConfig servletConfig = new MockConfig();
+    servletConfig.initParameters.put("pollTimeout", "1");
+    servlet.init(servletConfig);
+
+    // Requests are added to the client's sequence
+    filter.doFilter(clientRequest("/a").create(), new MockResponse().create(), MiniProfilerFixtures.EMPTY_CHAIN);
+    filter.doFilter(clientRequest("/b").create(), new MockResponse().create(), MiniProfilerFixtures.EMPTY_CHAIN);
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    assertEquals(2L, ms.get(String.format(MiniProfilerFilter.MEMCACHE_CLIENT_SEQ_KEY_FORMAT_STRING, "client")));
+    assertNotNull(ms.get(String.format(MiniProfilerFilter.MEMCACHE_CLIENT_KEY_FORMAT_STRING, "client", 2)));
+
+    // Both requests are returned together
+    Map<String, Object> result = poll(servlet, 0);
+    assertEquals(true, result.get("ok"));
+    assertEquals(2, ((Number) result.get("seq")).intValue());
+    assertEquals(Arrays.asList("/a", "/b"), urls(result));
+
+    // Nothing new, so the poll gives up after the timeout
+    long start = System.currentTimeMillis();
+    result = poll(servlet, 2);
+    assertTrue("Poll should stop at the timeout", System.currentTimeMillis() - start < 2000);
+    assertEquals(2, ((Number) result.get("seq")).intValue());
+    assertTrue(urls(result).isEmpty());
+
+    // A sequence that has been started again is read from the start
+    result = poll(servlet, 10);
+    assertEquals(2, ((Number) result.get("seq")).intValue());
+    assertEquals(Arrays.asList("/a", "/b"), urls(result));
+
+    // A poll without a client id fails
+    MockResponse res = new MockResponse();
+    servlet.doGet(new MockRequest("/gae_mini_profile/poll").create(), res.create());
+    assertEquals(false, new ObjectMapper().readValue(res.getBody(), Map.class).get("ok"));
+  }
+
+  private static MockRequest clientRequest(String url)
+  {
+    MockRequest req = new MockRequest(url);
+    req.cookies.add(new Cookie(MiniProfilerFilter.CLIENT_ID_COOKIE, "client"));
+    return req;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> poll(MiniProfilerServlet servlet, long since) throws Exception
+  {
+    MockRequest req = clientRequest("/gae_mini_profile/poll");
+    req.parameters.put("since", String.valueOf(since));
+    MockResponse res = new MockResponse();
+    servlet.doGet(req.create(), res.create());
+    return new ObjectMapper().readValue(res.getBody(), Map.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> urls(Map<String, Object> result)
+  {
+    List<String> urls = new ArrayList<String>();
+    for (Map<String, Object> request : (List<Map<String, Object>>) result.get("requests"))
+    {
+      urls.add((String) request.get("requestURL"));
+    }
+    return urls;
+  }
+}
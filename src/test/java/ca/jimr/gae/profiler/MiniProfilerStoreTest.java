@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class MiniProfilerStoreTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+  private MemcacheService ms;
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+    ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testSmallAndCompressed()
+  {
+    assertTrue(put("small", value(10, false)));
+    assertEquals(value(10, false), MiniProfilerStore.get(ms, "small"));
+
+    // Compresses well, so it fits in a single value
+    assertTrue(put("compressed", value(2000000, false)));
+    assertEquals(1, ms.getAll(Arrays.asList("compressed")).size());
+    assertEquals(value(2000000, false), MiniProfilerStore.get(ms, "compressed"));
+  }
+
+  @Test
+  public void testChunked()
+  {
+    Map<String, Object> value = value(2500000, true);
+    assertTrue(put("chunked", value));
+    ms.put("plain", "not stored by the store");
+
+    Map<String, Object> result = MiniProfilerStore.getAll(ms, Arrays.asList("chunked", "plain", "missing"));
+    assertEquals(2, result.size());
+    assertEquals(value, result.get("chunked"));
+    assertEquals("not stored by the store", result.get("plain"));
+
+    // Only stored if it isn't there already
+    assertFalse(MiniProfilerStore.put(ms, "chunked", value(10, false), null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+    assertEquals(value, MiniProfilerStore.get(ms, "chunked"));
+  }
+
+  @Test
+  public void testMissingChunk()
+  {
+    assertTrue(put("chunked", value(2500000, true)));
+    MiniProfilerStore.Stored stored = (MiniProfilerStore.Stored) ms.get("chunked");
+    assertTrue(stored.getChunks() > 1);
+
+    // Evicted (or overwritten) chunks are a clean miss
+    ms.delete(MiniProfilerStore.chunkKey("chunked", stored.getToken(), 1));
+    assertNull(MiniProfilerStore.get(ms, "chunked"));
+    ms.put(MiniProfilerStore.chunkKey("chunked", stored.getToken(), 1), new byte[MiniProfilerStore.CHUNK_SIZE]);
+    assertNull(MiniProfilerStore.get(ms, "chunked"));
+  }
+
+  private boolean put(String key, Object value)
+  {
+    return MiniProfilerStore.put(ms, key, value, Expiration.byDeltaSeconds(60), MemcacheService.SetPolicy.SET_ALWAYS);
+  }
+
+  /**
+   * A value with a lot of data (either repetitive or random).
+   */
+  private static Map<String, Object> value(int size, boolean random)
+  {
+    char[] data = new char[size];
+    Random r = new Random(size);
+    for (int i = 0; i < size; i++)
+    {
+      data[i] = random ? (char) ('a' + r.nextInt(26)) : 'x';
+    }
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("requestURL", "/big");
+    result.put("payload", new String(data));
+    return result;
+  }
+}
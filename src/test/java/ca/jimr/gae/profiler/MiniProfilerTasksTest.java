@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.profile;
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.requestData;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import org.junit.*;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+public class MiniProfilerTasksTest
+{
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+  @Before
+  public void setUp()
+  {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown()
+  {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testParentHeader()
+  {
+    Queue queue = MiniProfilerTasks.wrap(QueueFactory.getDefaultQueue());
+    // Not profiling, so no header
+    queue.add(TaskOptions.Builder.withUrl("/task/1"));
+
+    Profile result = null;
+    MiniProfiler.start().setRequestId("7");
+    try
+    {
+      queue.add(TaskOptions.Builder.withUrl("/task/2"));
+      queue.add(Arrays.asList(TaskOptions.Builder.withUrl("/task/3"), TaskOptions.Builder.withUrl("/task/4")));
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(2, result.getChildren().size());
+    assertEquals("Task add default", result.getChildren().get(0).getName());
+    assertEquals(2, result.getChildren().get(1).getDetails().get("tasks"));
+
+    QueueStateInfo state = LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo().get(Queue.DEFAULT_QUEUE);
+    Map<String, String> parentIds = new HashMap<String, String>();
+    for (QueueStateInfo.TaskStateInfo task : state.getTaskInfo())
+    {
+      String parentId = null;
+      for (QueueStateInfo.HeaderWrapper header : task.getHeaders())
+      {
+        if (MiniProfilerTasks.PARENT_ID_HEADER.equals(header.getKey()))
+        {
+          parentId = header.getValue();
+        }
+      }
+      parentIds.put(task.getUrl(), parentId);
+    }
+    assertEquals(4, parentIds.size());
+    assertNull(parentIds.get("/task/1"));
+    assertEquals("7", parentIds.get("/task/2"));
+    assertEquals("7", parentIds.get("/task/3"));
+    assertEquals("7", parentIds.get("/task/4"));
+  }
+
+  @Test
+  public void testTimeline()
+  {
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    assertNull(MiniProfilerTasks.getTimeline(ms, "1"));
+
+    store(ms, "1", 1000, 50);
+    store(ms, "2", 1100, 100);
+    store(ms, "3", 1300, 20);
+    MiniProfilerTasks.addChild(ms, "1", "2", 60);
+    MiniProfilerTasks.addChild(ms, "2", "3", 60);
+    assertEquals(Arrays.asList("2"), MiniProfilerTasks.getChildren(ms, "1"));
+
+    Map<String, Object> timeline = MiniProfilerTasks.getTimeline(ms, "1");
+    List<Map<String, Object>> requests = requests(timeline);
+    assertEquals(3, requests.size());
+    assertNull(requests.get(0).get("parentId"));
+    assertEquals("3", requests.get(2).get("id"));
+    assertEquals("2", requests.get(2).get("parentId"));
+    assertEquals(300L, requests.get(2).get("start"));
+    assertEquals(320L, timeline.get("totalTime"));
+    assertEquals(true, timeline.get("complete"));
+
+    // A task that has started but hasn't finished
+    MiniProfilerTasks.addChild(ms, "1", "4", 60);
+    timeline = MiniProfilerTasks.getTimeline(ms, "1");
+    requests = requests(timeline);
+    assertEquals(4, requests.size());
+    assertEquals(true, requests.get(2).get("pending"));
+    assertEquals(false, timeline.get("complete"));
+  }
+
+  @Test
+  public void testLargeTimeline()
+  {
+    MemcacheService ms = MemcacheServiceFactory.getMemcacheService(MiniProfilerFilter.MEMCACHE_NAMESPACE);
+    store(ms, "root", 1000, 10);
+    for (int i = 0; i < 30; i++)
+    {
+      store(ms, "t" + i, 1000 + i, 10);
+      MiniProfilerTasks.addChild(ms, "root", "t" + i, 60);
+      for (int j = 0; j < 3; j++)
+      {
+        store(ms, "t" + i + "." + j, 1100 + i, 10);
+        MiniProfilerTasks.addChild(ms, "t" + i, "t" + i + "." + j, 60);
+      }
+    }
+
+    // Each level is loaded with a few batched calls
+    final int[] calls = new int[1];
+    MemcacheService counting = (MemcacheService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { MemcacheService.class },
+        new CountingHandler(ms, calls));
+    Map<String, Object> timeline = MiniProfilerTasks.getTimeline(counting, "root");
+    assertTrue("Too many memcache calls: " + calls[0], calls[0] <= 10);
+
+    List<Map<String, Object>> requests = requests(timeline);
+    assertEquals(100, requests.size());
+    assertEquals(false, timeline.get("complete"));
+    assertEquals("t0", requests.get(1).get("id"));
+    assertEquals("t0.0", requests.get(31).get("id"));
+    assertEquals("t0", requests.get(31).get("parentId"));
+  }
+
+  /**
+   * Counts the calls made to a memcache service.
+   */
+  private static class CountingHandler implements InvocationHandler
+  {
+    private MemcacheService ms;
+    private int[] calls;
+
+    public CountingHandler(MemcacheService ms, int[] calls)
+    {
+      this.ms = ms;
+      this.calls = calls;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      calls[0]++;
+      try
+      {
+        return method.invoke(ms, args);
+      } catch (InvocationTargetException e)
+      {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static void store(MemcacheService ms, String requestId, long timestamp, long durationMillis)
+  {
+    ms.put(String.format(MiniProfilerFilter.MEMCACHE_KEY_FORMAT_STRING, requestId), requestData("/" + requestId, timestamp, profile(durationMillis)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> requests(Map<String, Object> timeline)
+  {
+    return (List<Map<String, Object>>) timeline.get("requests");
+  }
+}
@@ -23,7 +23,9 @@ package ca.jimr.gae.profiler;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -113,4 +115,194 @@ public class MiniProfilerTest
     assertEquals("Step 2.2", child2.getName());
     assertEquals(2, child2.getDepth());    
   }
+
+  @Test
+  public void testPrune() throws Exception
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      Step slow = MiniProfiler.step("Slow");
+      for (int i = 0; i < 3; i++)
+      {
+        MiniProfiler.step("Trivial " + i).close();
+      }
+      Step deep = MiniProfiler.step("Deep");
+      Step deeper = MiniProfiler.step("Deeper");
+      MiniProfiler.step("Deepest").close();
+      deeper.close();
+      Thread.sleep(10);
+      deep.close();
+      slow.close();
+      MiniProfiler.step("Quick").close();
+    } finally
+    {
+      result = MiniProfiler.stop(5000000, 3);
+    }
+
+    assertEquals(2, result.getChildren().size());
+    Profile slow = result.getChildren().get(0);
+    // A single trivial step is kept
+    assertEquals("Quick", result.getChildren().get(1).getName());
+
+    assertEquals(2, slow.getChildren().size());
+    Profile trivial = slow.getChildren().get(0);
+    assertEquals(MiniProfiler.TRIVIAL_STEPS, trivial.getName());
+    assertEquals(3, trivial.getDetails().get("steps"));
+    assertEquals(2, trivial.getDepth());
+    Profile deep = slow.getChildren().get(1);
+    assertEquals("Deep", deep.getName());
+    // Totals are kept, so self time is unchanged
+    assertEquals(slow.getDuration() - trivial.getDuration() - deep.getDuration(), slow.getSelf());
+
+    Profile deeper = deep.getChildren().get(0);
+    assertEquals("Deeper", deeper.getName());
+    assertEquals(1, deeper.getChildren().size());
+    assertEquals(MiniProfiler.DEEPER_STEPS, deeper.getChildren().get(0).getName());
+    assertEquals(1, deeper.getChildren().get(0).getDetails().get("steps"));
+  }
+
+  @Test
+  public void testCategories() throws Exception
+  {
+    List<Map<String, Object>> categories = null;
+    Profile result = null;
+    MiniProfiler.Root root = MiniProfiler.start();
+    try
+    {
+      Step outer = MiniProfiler.step("Query", MiniProfiler.DATASTORE);
+      // Nested in a step of the same category, so its time isn't counted again
+      MiniProfiler.step("Nested query", MiniProfiler.DATASTORE).close();
+      Step render = MiniProfiler.step("Render", MiniProfiler.RENDER);
+      render.close();
+      Thread.sleep(5);
+      outer.close();
+      MiniProfiler.asyncStep("Fetch", MiniProfiler.HTTP).close();
+      MiniProfiler.step("Plain").close();
+      categories = root.getCategories();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals("datastore", result.getChildren().get(0).getCategory());
+    assertNull(result.getChildren().get(2).getCategory());
+    assertEquals(3, categories.size());
+    Map<String, Object> datastore = categories.get(0);
+    assertEquals("datastore", datastore.get("name"));
+    assertEquals(2, datastore.get("count"));
+    assertEquals(result.getChildren().get(0).getDuration(), datastore.get("duration"));
+
+    assertEquals(MiniProfiler.DATASTORE, MiniProfiler.category("datastore"));
+    int custom = MiniProfiler.category("custom");
+    assertEquals("custom", MiniProfiler.getCategoryName(custom));
+    assertNull(MiniProfiler.getCategoryName(MiniProfiler.NO_CATEGORY));
+    assertNull(MiniProfiler.getCategoryName(MiniProfiler.MAX_CATEGORIES));
+  }
+
+  @Test
+  public void testProfileWithoutResourceTracking()
+  {
+    Profile result = null;
+    MiniProfiler.start();
+    try
+    {
+      Step s = MiniProfiler.step("Step 1");
+      s.close();
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    assertEquals(-1, result.getCpuTime());
+    assertEquals(-1, result.getAllocatedBytes());
+    assertEquals(-1, result.getChildren().get(0).getCpuTime());
+    assertEquals(-1, result.getChildren().get(0).getAllocatedBytes());
+  }
+
+  @Test
+  public void testProfileWithResourceTracking()
+  {
+    Profile result = null;
+    MiniProfiler.start(true);
+    try
+    {
+      Step s = MiniProfiler.step("Step 1");
+      try
+      {
+        List<byte[]> garbage = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++)
+        {
+          garbage.add(new byte[1024]);
+        }
+        assertEquals(10, garbage.size());
+      } finally
+      {
+        s.close();
+      }
+    } finally
+    {
+      result = MiniProfiler.stop();
+    }
+
+    Profile child = result.getChildren().get(0);
+    assertTrue(result.getCpuTime() >= 0);
+    assertTrue(child.getCpuTime() >= 0);
+    assertTrue(child.getCpuTime() <= result.getCpuTime());
+    assertTrue(child.getAllocatedBytes() >= 10 * 1024);
+    assertTrue(result.getAllocatedBytes() >= child.getAllocatedBytes());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception
+  {
+    final MiniProfiler.Root root = MiniProfiler.start();
+    final Profile[] snapshot = new Profile[1];
+    try
+    {
+      Step s1 = MiniProfiler.step("Step 1");
+      for (int i = 0; i < 40; i++)
+      {
+        MiniProfiler.step("Step 1." + i).close();
+      }
+      s1.close();
+      Step s2 = MiniProfiler.step("Step 2");
+      Step s21 = MiniProfiler.step("Step 2.1");
+      // Take the snapshot from another thread, which doesn't need the lock
+      // that the profiled thread uses
+      Thread t = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          snapshot[0] = root.snapshot();
+        }
+      });
+      synchronized (root)
+      {
+        t.start();
+        t.join(5000);
+      }
+      assertFalse("The snapshot shouldn't wait for the profiled thread", t.isAlive());
+      s21.close();
+      s2.close();
+    } finally
+    {
+      MiniProfiler.stop();
+    }
+
+    Profile result = snapshot[0];
+    assertTrue(result.isRunning());
+    assertTrue(result.getDuration() > 0);
+    assertEquals(2, result.getChildren().size());
+    assertFalse(result.getChildren().get(0).isRunning());
+    assertEquals(40, result.getChildren().get(0).getChildren().size());
+    assertEquals("Step 1.39", result.getChildren().get(0).getChildren().get(39).getName());
+    Profile step2 = result.getChildren().get(1);
+    assertTrue(step2.isRunning());
+    assertEquals(1, step2.getChildren().size());
+    assertTrue(step2.getChildren().get(0).isRunning());
+    assertEquals("Step 2.1", step2.getChildren().get(0).getName());
+  }
 }
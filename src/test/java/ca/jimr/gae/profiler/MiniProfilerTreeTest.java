@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011 by Jim Riecken
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ca.jimr.gae.profiler;
+
+import static ca.jimr.gae.profiler.MiniProfilerFixtures.step;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import ca.jimr.gae.profiler.MiniProfiler.Profile;
+
+public class MiniProfilerTreeTest
+{
+  @Test
+  public void testSummarize()
+  {
+    Profile profile = profile();
+    Map<String, Object> summary = MiniProfilerTree.summarize(profile, 1, 100);
+    assertEquals(7, summary.get("stepCount"));
+    assertEquals(3, summary.get("childCount"));
+    assertEquals(100L, summary.get("duration"));
+    // Self time is worked out from all of the children, even though they
+    // aren't included
+    assertEquals(40L, summary.get("self"));
+
+    List<Map<String, Object>> children = children(summary);
+    assertEquals(3, children.size());
+    assertEquals("a", children.get(0).get("name"));
+    assertEquals(2, children.get(0).get("childCount"));
+    assertTrue(children(children.get(0)).isEmpty());
+
+    // Steps closer to the root are included first
+    summary = MiniProfilerTree.summarize(profile, 5, 4);
+    children = children(summary);
+    assertEquals(3, children.size());
+    assertEquals(1, children(children.get(0)).size());
+    assertNull(MiniProfilerTree.summarize(null, 1, 100));
+  }
+
+  @Test
+  public void testSubtree()
+  {
+    Profile profile = profile();
+    Map<String, Object> subtree = MiniProfilerTree.subtree(profile, 1, 1, 100);
+    assertEquals("a", subtree.get("name"));
+    List<Map<String, Object>> children = children(subtree);
+    assertEquals(Arrays.asList("a1", "a2"), Arrays.asList(children.get(0).get("name"), children.get(1).get("name")));
+    assertEquals(1, children.get(0).get("childCount"));
+    assertTrue(children(children.get(0)).isEmpty());
+
+    assertEquals(1, children(children(MiniProfilerTree.subtree(profile, 1, 2, 100)).get(0)).size());
+    assertNull(MiniProfilerTree.subtree(profile, 99, 1, 100));
+  }
+
+  @Test
+  public void testSameFieldsAsProfile()
+  {
+    Profile step = step(1, "a", 30);
+    step.setCategory(MiniProfiler.DATASTORE);
+    @SuppressWarnings("unchecked")
+    Map<String, Object> full = new ObjectMapper().convertValue(step, Map.class);
+    Map<String, Object> node = MiniProfilerTree.summarize(step, 0, 100);
+    assertEquals(step.getCategory(), node.get("category"));
+    for (String field : full.keySet())
+    {
+      assertTrue(field, node.containsKey(field));
+    }
+  }
+
+  /**
+   * Request (100) > a (30) > [a1 (10) > x (5), a2 (10)], b (20), c (10)
+   */
+  private static Profile profile()
+  {
+    Profile root = step(0, "Request", 100);
+    Profile a = step(1, "a", 30);
+    Profile a1 = step(2, "a1", 10);
+    a1.addChild(step(3, "x", 5));
+    a.addChild(a1);
+    a.addChild(step(4, "a2", 10));
+    root.addChild(a);
+    root.addChild(step(5, "b", 20));
+    root.addChild(step(6, "c", 10));
+    return root;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> children(Map<String, Object> node)
+  {
+    return (List<Map<String, Object>>) node.get("children");
+  }
+}